@@ -1,9 +1,13 @@
 package edu.oregonstate.carto.grid.operators;
 
+import edu.oregonstate.carto.tilemanager.util.FlatGrid;
 import edu.oregonstate.carto.tilemanager.util.Grid;
+import edu.oregonstate.carto.tilemanager.util.GridGeometry;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.util.Arrays;
 
 /**
@@ -214,6 +218,77 @@ public class ColorizerOperator extends ThreadedGridOperator {
         return dstImage;
     }
 
+    /**
+     * Compute the color image from gray values computed by a chain of
+     * operators, without storing the gray values in a grid. For example, a
+     * chain with a ShaderOperator colorizes shaded relief in a single pass.
+     *
+     * @param chain Chain computing gray values between 0 and 255 from the
+     * elevation grid.
+     * @param elevationGrid Grid or MosaicGrid with elevation values.
+     * @param image Image to write pixels to. Must have the size of the grid.
+     * Can be a sub-image of a larger image.
+     * @param minElev Lowest elevation in elevationGrid
+     * @param maxElev Highest elevation in elevationGrid
+     * @return The passed image.
+     */
+    public BufferedImage operate(GridOperatorChain chain, GridGeometry elevationGrid,
+            final BufferedImage image, float minElev, float maxElev) {
+        this.minElev = minElev;
+        this.maxElev = maxElev;
+        WritableRaster raster = image.getRaster();
+        final int[] imageBuffer = ((DataBufferInt) (raster.getDataBuffer())).getData();
+        // a sub-image shares the pixels of its parent image
+        final int scanlineStride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+        final int firstPixel = -raster.getSampleModelTranslateY() * scanlineStride
+                - raster.getSampleModelTranslateX();
+        return chain.operate(elevationGrid, image, new RowImageWriter() {
+
+            @Override
+            public void writeRow(GridGeometry src, float[] srcRow, float[] values,
+                    int row, BufferedImage img) {
+                colorizeRow(values, 0, srcRow, 0, imageBuffer,
+                        firstPixel + row * scanlineStride, img.getWidth());
+            }
+        });
+    }
+
+    /**
+     * Compute the color image from flat grids.
+     *
+     * @param grayShadingGrid Grid with shading values between 0 and 255
+     * @param elevationGrid Grid with elevation values.
+     * @param image Image to write pixels to.
+     * @param minElev Lowest elevation in elevationGrid
+     * @param maxElev Highest elevation in elevationGrid
+     * @return The passed image.
+     */
+    public BufferedImage operate(FlatGrid grayShadingGrid, FlatGrid elevationGrid,
+            BufferedImage image, float minElev, float maxElev) {
+        dstImage = image;
+        this.minElev = minElev;
+        this.maxElev = maxElev;
+        super.operate(grayShadingGrid, elevationGrid);
+        return dstImage;
+    }
+
+    /**
+     * Do not call this method. It will throw an UnsupportedOperationException.
+     *
+     * @param src
+     * @param dst
+     * @return
+     */
+    @Override
+    public FlatGrid operate(FlatGrid src, FlatGrid dst) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isFlatGridSupported() {
+        return true;
+    }
+
     /**
      * Compute a colored chunk of this image.
      *
@@ -224,44 +299,82 @@ public class ColorizerOperator extends ThreadedGridOperator {
      */
     @Override
     protected void operate(Grid grayShadingGrid, Grid elevationGrid, int startRow, int endRow) {
-        int argb = 0;
-        float elev;
         int nCols = dstImage.getWidth();
         int[] imageBuffer = ((DataBufferInt) (dstImage.getRaster().getDataBuffer())).getData();
+        float[][] grayGrid = grayShadingGrid.getGrid();
+        float[][] elevGrid = elevationGrid.getGrid();
+        for (int row = startRow; row < endRow; ++row) {
+            colorizeRow(grayGrid[row], 0, elevGrid[row], 0, imageBuffer, row * nCols, nCols);
+        }
+    }
+
+    /**
+     * Compute a colored chunk of this image from flat grids.
+     *
+     * @param grayShadingGrid Grid with shaded values between 0 and 255
+     * @param elevationGrid Grid with elevation values.
+     * @param startRow First row to compute.
+     * @param endRow First row of next chunk.
+     */
+    @Override
+    protected void operate(FlatGrid grayShadingGrid, FlatGrid elevationGrid, int startRow, int endRow) {
+        int nCols = dstImage.getWidth();
+        int[] imageBuffer = ((DataBufferInt) (dstImage.getRaster().getDataBuffer())).getData();
+        float[] grayData = grayShadingGrid.getData();
+        float[] elevData = elevationGrid.getData();
         for (int row = startRow; row < endRow; ++row) {
-            for (int col = 0; col < nCols; ++col) {
-                //Get the height or gray shading value of the current cell
-                float gray = grayShadingGrid.getValue(col, row);
-                if (Float.isNaN(gray)) {
-                    imageBuffer[row * nCols + col] = VOID_COLOR;
-                    continue;
-                }
-                switch (colorVisualization) {
-                    case GRAY_SHADING:
-                        // convert the shaded gray value to an ARGB pixel value
-                        int g = (int) gray;
-                        argb = g | (g << 8) | (g << 16) | 0xFF000000;
-                        break;
-                    case EXPOSITION:
-                        // apply a color ramp to the shaded gray value 
-                        argb = getLinearRGB(gray, 0, 255, 1f);
-                        break;
-                    case HYPSOMETRIC_SHADING:
-                    case LOCAL_HYPSOMETRIC_SHADING:
-                        // apply a color ramp to the elevation value
-                        elev = elevationGrid.getValue(col, row);
-                        // multiply the elevation color with the gray value of the shading
-                        argb = getLinearRGB(elev, minElev, maxElev, gray / 255f);
-                        break;
-                    case HYPSOMETRIC:
-                    case LOCAL_HYPSOMETRIC:
-                        // apply a color ramp to the elevation value
-                        elev = elevationGrid.getValue(col, row);
-                        argb = getLinearRGB(elev, minElev, maxElev, 1);
-                        break;
-                }
-                imageBuffer[row * nCols + col] = argb;
+            colorizeRow(grayData, grayShadingGrid.index(0, row),
+                    elevData, elevationGrid.index(0, row), imageBuffer, row * nCols, nCols);
+        }
+    }
+
+    /**
+     * Compute a colored row of the image.
+     *
+     * @param gray Shaded values between 0 and 255
+     * @param grayStart Index of the first shaded value of the row.
+     * @param elevation Elevation values.
+     * @param elevationStart Index of the first elevation value of the row.
+     * @param imageBuffer Pixels of the image.
+     * @param px Index of the first pixel of the row in imageBuffer.
+     * @param nCols Width of the image.
+     */
+    private void colorizeRow(float[] gray, int grayStart, float[] elevation,
+            int elevationStart, int[] imageBuffer, int px, int nCols) {
+        int argb = 0;
+        float elev;
+        for (int col = 0; col < nCols; ++col) {
+            //Get the height or gray shading value of the current cell
+            float grayValue = gray[grayStart + col];
+            if (Float.isNaN(grayValue)) {
+                imageBuffer[px + col] = VOID_COLOR;
+                continue;
+            }
+            switch (colorVisualization) {
+                case GRAY_SHADING:
+                    // convert the shaded gray value to an ARGB pixel value
+                    int g = (int) grayValue;
+                    argb = g | (g << 8) | (g << 16) | 0xFF000000;
+                    break;
+                case EXPOSITION:
+                    // apply a color ramp to the shaded gray value 
+                    argb = getLinearRGB(grayValue, 0, 255, 1f);
+                    break;
+                case HYPSOMETRIC_SHADING:
+                case LOCAL_HYPSOMETRIC_SHADING:
+                    // apply a color ramp to the elevation value
+                    elev = elevation[elevationStart + col];
+                    // multiply the elevation color with the gray value of the shading
+                    argb = getLinearRGB(elev, minElev, maxElev, grayValue / 255f);
+                    break;
+                case HYPSOMETRIC:
+                case LOCAL_HYPSOMETRIC:
+                    // apply a color ramp to the elevation value
+                    elev = elevation[elevationStart + col];
+                    argb = getLinearRGB(elev, minElev, maxElev, 1);
+                    break;
             }
+            imageBuffer[px + col] = argb;
         }
     }
 
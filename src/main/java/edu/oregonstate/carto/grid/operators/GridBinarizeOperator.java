@@ -1,6 +1,8 @@
 package edu.oregonstate.carto.grid.operators;
 
+import edu.oregonstate.carto.tilemanager.util.FlatGrid;
 import edu.oregonstate.carto.tilemanager.util.Grid;
+import edu.oregonstate.carto.tilemanager.util.GridGeometry;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -9,7 +11,7 @@ import java.util.Arrays;
  *
  * @author Bernhard Jenny, Oregon State University
  */
-public class GridBinarizeOperator extends ThreadedGridOperator {
+public class GridBinarizeOperator extends ThreadedGridOperator implements RowOperator {
 
     /**
      * sorted array with values to be converted to 1
@@ -48,17 +50,55 @@ public class GridBinarizeOperator extends ThreadedGridOperator {
     public void operate(Grid src, Grid dst, int startRow, int endRow) {
         float[][] srcGrid = src.getGrid();
         float[][] dstGrid = dst.getGrid();
+        float[][] window = new float[1][];
+        for (int row = startRow; row < endRow; ++row) {
+            window[0] = srcGrid[row];
+            operateRow(src, window, dstGrid[row], row);
+        }
+    }
+
+    @Override
+    protected void operate(FlatGrid src, FlatGrid dst, int startRow, int endRow) {
+        float[] srcData = src.getData();
+        float[] dstData = dst.getData();
         final int nCols = src.getCols();
         for (int row = startRow; row < endRow; ++row) {
-            float[] srcRow = srcGrid[row];
-            float[] dstRow = dstGrid[row];
-            for (int col = 0; col < nCols; ++col) {
-                float v = srcRow[col];
-                if (Arrays.binarySearch(maskValues, v) < 0) {
-                    dstRow[col] = 0;
-                } else {
-                    dstRow[col] = 1;
-                }
+            binarize(srcData, src.index(0, row), dstData, dst.index(0, row), nCols);
+        }
+    }
+
+    @Override
+    public boolean isFlatGridSupported() {
+        return true;
+    }
+
+    @Override
+    public int getRowRadius() {
+        return 0;
+    }
+
+    @Override
+    public void operateRow(GridGeometry src, float[][] window, float[] dst, int row) {
+        binarize(window[0], 0, dst, 0, src.getCols());
+    }
+
+    /**
+     * Binarize a sequence of values.
+     *
+     * @param src Source values.
+     * @param srcStart Index of the first source value.
+     * @param dst Destination values.
+     * @param dstStart Index of the first destination value.
+     * @param n Number of values.
+     */
+    private void binarize(float[] src, int srcStart, float[] dst, int dstStart, int n) {
+        final float[] values = maskValues;
+        for (int i = 0; i < n; ++i) {
+            float v = src[srcStart + i];
+            if (Arrays.binarySearch(values, v) < 0) {
+                dst[dstStart + i] = 0;
+            } else {
+                dst[dstStart + i] = 1;
             }
         }
     }
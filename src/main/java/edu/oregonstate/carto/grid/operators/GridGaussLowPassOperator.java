@@ -20,6 +20,10 @@ import edu.oregonstate.carto.tilemanager.util.Grid;
  * operators are merged into one multi-threaded operator.
  * See http://en.wikipedia.org/wiki/Gaussian_blur
  * August 26, 2010, and April 14, 2011.
+ * For large standard deviations, the Gaussian is approximated by iterated box
+ * filters, which need a constant number of operations per cell, independent of
+ * the standard deviation. See Kovesi, P. (2010) Fast almost-Gaussian
+ * filtering. Proceedings of DICTA 2010.
  *
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
  */
@@ -46,6 +50,19 @@ public class GridGaussLowPassOperator implements GridOperator{
      */
     private int relativeFilterSize = 8;
 
+    /**
+     * Number of box filters that approximate a Gaussian filter.
+     */
+    private static final int BOX_PASSES = 3;
+
+    /**
+     * Standard deviation from which the Gaussian filter is approximated by
+     * iterated box filters. The box filters are faster for a standard deviation
+     * of 2 and more, but for small standard deviations the variance of the box
+     * filters is less close to the variance of the Gaussian.
+     */
+    private double boxApproximationThreshold = 4;
+
     /**
      * Applies horizontal Gaussian convolution and stores results in a
      * transposed grid.
@@ -84,9 +101,50 @@ public class GridGaussLowPassOperator implements GridOperator{
             return super.operate(src, dst);
         }
 
+        /**
+         * Rows of the source are written to columns of the transposed grid.
+         */
+        @Override
+        protected boolean isDestinationRowAligned() {
+            return false;
+        }
+
         @Override
         public void operate(Grid src, Grid dst, int startRow, int endRow) {
+            if (isBoxApproximation()) {
+                boxFilter(src, dst, startRow, endRow);
+            } else {
+                convolve(src, dst, startRow, endRow);
+            }
+        }
+
+        /**
+         * Convolves rows with iterated box filters.
+         */
+        private void boxFilter(Grid src, Grid dst, int startRow, int endRow) {
+            final int ncols = src.getCols();
+            final int[] radii = boxRadii();
+            final float[][] dstGrid = dst.getGrid();
+            float[] a = new float[ncols];
+            float[] b = new float[ncols];
+            for (int row = startRow; row < endRow; row++) {
+                float[] in = src.getGrid()[row];
+                for (int radius : radii) {
+                    GridGaussLowPassOperator.boxFilter(in, a, ncols, radius);
+                    in = a;
+                    a = b;
+                    b = in;
+                }
+                for (int col = 0; col < ncols; col++) {
+                    dstGrid[col][row] = in[col]; // transposed destination
+                }
+            }
+        }
 
+        /**
+         * Convolves rows with the Gaussian kernel.
+         */
+        private void convolve(Grid src, Grid dst, int startRow, int endRow) {
             final int ncols = src.getCols();
             final int halfFilterSize = kernelSize() / 2;
             final float[] kernel = kernel();
@@ -182,6 +240,134 @@ public class GridGaussLowPassOperator implements GridOperator{
         return filterSize;
     }
     
+    /**
+     * Returns true if the Gaussian filter is approximated by box filters.
+     *
+     * @return True if the standard deviation is not smaller than the
+     * threshold for the box approximation.
+     */
+    private boolean isBoxApproximation() {
+        return std >= boxApproximationThreshold;
+    }
+
+    /**
+     * Computes the radii of the box filters. The filters have two different
+     * widths, such that the variance of the iterated filters is as close as
+     * possible to the variance of the Gaussian (Kovesi 2010).
+     *
+     * @return BOX_PASSES radii.
+     */
+    private int[] boxRadii() {
+        final int n = BOX_PASSES;
+        final double variance = std * std;
+        // the variance of a box of width w is (w * w - 1) / 12
+        int wl = (int) Math.floor(Math.sqrt(12 * variance / n + 1));
+        if (wl % 2 == 0) {
+            wl--;
+        }
+        final int wu = wl + 2;
+        // number of filters with width wl
+        final long m = Math.round((12 * variance - n * wl * wl - 4 * n * wl - 3 * n) / (-4. * wl - 4));
+        int[] radii = new int[n];
+        for (int i = 0; i < n; i++) {
+            radii[i] = (i < m ? wl : wu) / 2;
+        }
+        return radii;
+    }
+
+    /**
+     * Computes the moving average of a row. Cells close to the ends of the
+     * row are the average of the available cells. Cells with a NaN value
+     * within radius are NaN.
+     *
+     * @param src The source values.
+     * @param dst The destination values.
+     * @param n Number of values.
+     * @param radius Half the width of the box, excluding the center.
+     */
+    private static void boxFilter(float[] src, float[] dst, int n, int radius) {
+        for (int i = 0; i < n; i++) {
+            if (Float.isNaN(src[i])) {
+                boxFilterWithVoids(src, dst, n, radius);
+                return;
+            }
+        }
+
+        double sum = 0;
+        for (int i = 0; i < Math.min(radius, n); i++) {
+            sum += src[i];
+        }
+        // the box is clipped at the start of the row
+        int col = 0;
+        for (; col < n && col <= radius; col++) {
+            int in = col + radius;
+            if (in < n) {
+                sum += src[in];
+            }
+            dst[col] = (float) (sum / (Math.min(in, n - 1) + 1));
+        }
+        // the box is inside the row
+        final double scale = 1. / (2 * radius + 1);
+        for (; col < n - radius; col++) {
+            sum += src[col + radius] - src[col - radius - 1];
+            dst[col] = (float) (sum * scale);
+        }
+        // the box is clipped at the end of the row
+        for (; col < n; col++) {
+            sum -= src[col - radius - 1];
+            dst[col] = (float) (sum / (n - col + radius));
+        }
+    }
+
+    /**
+     * Computes the moving average of a row with NaN values. Cells with a NaN
+     * value within radius are NaN.
+     *
+     * @param src The source values.
+     * @param dst The destination values.
+     * @param n Number of values.
+     * @param radius Half the width of the box, excluding the center.
+     */
+    private static void boxFilterWithVoids(float[] src, float[] dst, int n, int radius) {
+        // sum of the values in the box that are not NaN
+        double sum = 0;
+        // number of cells and number of NaN cells in the box
+        int count = 0;
+        int nanCount = 0;
+        for (int i = 0; i < Math.min(radius, n); i++) {
+            float v = src[i];
+            if (Float.isNaN(v)) {
+                nanCount++;
+            } else {
+                sum += v;
+            }
+            count++;
+        }
+        for (int col = 0; col < n; col++) {
+            int in = col + radius;
+            if (in < n) {
+                float v = src[in];
+                if (Float.isNaN(v)) {
+                    nanCount++;
+                } else {
+                    sum += v;
+                }
+                count++;
+            }
+            int out = col - radius - 1;
+            if (out >= 0) {
+                float v = src[out];
+                if (Float.isNaN(v)) {
+                    nanCount--;
+                } else {
+                    sum -= v;
+                }
+                count--;
+            }
+            dst[col] = nanCount > 0 ? Float.NaN : (float) (sum / count);
+        }
+    }
+
     /**
      * Computes the coefficients for the Gaussian kernel
      * @param filterSize
@@ -276,4 +462,25 @@ public class GridGaussLowPassOperator implements GridOperator{
     public void setRelativeFilterSize(int relativeFilterSize) {
         this.relativeFilterSize = relativeFilterSize;
     }
+
+    /**
+     * Get the standard deviation from which the Gaussian filter is
+     * approximated by iterated box filters.
+     * @return the threshold
+     */
+    public double getBoxApproximationThreshold() {
+        return boxApproximationThreshold;
+    }
+
+    /**
+     * Set the standard deviation from which the Gaussian filter is
+     * approximated by iterated box filters. The approximation needs a
+     * constant number of operations per cell, but deviates slightly from the
+     * Gaussian filter. Use Double.POSITIVE_INFINITY to always apply the exact
+     * Gaussian filter.
+     * @param boxApproximationThreshold the threshold to set
+     */
+    public void setBoxApproximationThreshold(double boxApproximationThreshold) {
+        this.boxApproximationThreshold = boxApproximationThreshold;
+    }
 }
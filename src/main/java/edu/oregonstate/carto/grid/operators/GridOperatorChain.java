@@ -0,0 +1,291 @@
+package edu.oregonstate.carto.grid.operators;
+
+import edu.oregonstate.carto.tilemanager.util.Grid;
+import edu.oregonstate.carto.tilemanager.util.GridGeometry;
+import edu.oregonstate.carto.tilemanager.util.MosaicGrid;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Applies a sequence of row operators in a single pass over the source grid.
+ * Each block of rows is computed row by row: a row of the first operator is
+ * passed to the second operator, and so on. No intermediate grids are created.
+ * An operator with neighboring rows (for example, shading or slope) keeps a
+ * window of rows of the previous operator, which is recycled while the window
+ * moves down the block.
+ *
+ * The result is stored in a grid, or converted to an image with a
+ * RowImageWriter. Images can also be computed from a MosaicGrid, in which
+ * case only the rows of the current window are copied from the tiles.
+ */
+public class GridOperatorChain extends ThreadedGridOperator {
+
+    private final List<RowOperator> operators = new ArrayList<>();
+
+    // source and image output of operate(GridGeometry, BufferedImage, RowImageWriter)
+    private MosaicGrid srcMosaic;
+    private BufferedImage dstImage;
+    private RowImageWriter imageWriter;
+
+    /**
+     * Creates a new chain.
+     *
+     * @param operators The operators in the order of their application.
+     */
+    public GridOperatorChain(RowOperator... operators) {
+        this.operators.addAll(Arrays.asList(operators));
+    }
+
+    /**
+     * Appends an operator to the end of the chain.
+     *
+     * @param operator The operator to append.
+     * @return This chain.
+     */
+    public GridOperatorChain append(RowOperator operator) {
+        if (operator == null) {
+            throw new IllegalArgumentException();
+        }
+        operators.add(operator);
+        return this;
+    }
+
+    /**
+     * Returns the operators of this chain.
+     *
+     * @return The operators in the order of their application.
+     */
+    public List<RowOperator> getOperators() {
+        return new ArrayList<>(operators);
+    }
+
+    /**
+     * The source grid can only be overwritten if no operator accesses
+     * neighboring rows.
+     *
+     * @return True if all operators are point-wise.
+     */
+    @Override
+    public boolean isOverwritingSupported() {
+        for (RowOperator operator : operators) {
+            if (operator.getRowRadius() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies the chain and converts the result to an image. The source can
+     * be a Grid or a MosaicGrid. The rows of a MosaicGrid are copied to a
+     * small buffer when they are needed, and the values of its tiles are not
+     * merged into a single grid.
+     *
+     * @param src The source grid, a Grid or a MosaicGrid.
+     * @param image The image to write to. Must have the size of the grid.
+     * @param writer Converts rows of the result to pixels.
+     * @return The passed image.
+     */
+    public BufferedImage operate(GridGeometry src, BufferedImage image, RowImageWriter writer) {
+        if (!(src instanceof Grid || src instanceof MosaicGrid)
+                || src.getCols() < 1 || src.getRows() < 1) {
+            throw new IllegalArgumentException(getName() + ": invalid source grid");
+        }
+        if (image == null || image.getWidth() != src.getCols()
+                || image.getHeight() != src.getRows()) {
+            throw new IllegalArgumentException(getName() + ": invalid image size");
+        }
+        dstImage = image;
+        imageWriter = writer;
+        try {
+            if (src instanceof Grid) {
+                operateRows((Grid) src, null);
+            } else {
+                srcMosaic = (MosaicGrid) src;
+                operateRows(src.getRows(), src.getCols());
+            }
+        } finally {
+            dstImage = null;
+            imageWriter = null;
+            srcMosaic = null;
+        }
+        return image;
+    }
+
+    /**
+     * Computes a block of rows.
+     *
+     * @param src The source grid, or null if the source is a MosaicGrid.
+     * @param dst The destination grid, or null if rows are written to an
+     * image.
+     * @param startRow The first row.
+     * @param endRow The first row of the next block.
+     */
+    @Override
+    protected void operate(Grid src, Grid dst, int startRow, int endRow) {
+        GridGeometry geometry = src != null ? src : srcMosaic;
+        final int nCols = geometry.getCols();
+        final int nStages = operators.size();
+        Stage[] stages = new Stage[nStages];
+        int totalRadius = 0;
+        for (int i = 0; i < nStages; i++) {
+            // the rows of a stage are buffered for the window of the next
+            // stage. The last stage writes to the destination.
+            int bufferedRows = i < nStages - 1
+                    ? 2 * operators.get(i + 1).getRowRadius() + 1 : 0;
+            stages[i] = new Stage(operators.get(i), bufferedRows, nCols);
+            totalRadius += operators.get(i).getRowRadius();
+        }
+        // rows copied from a MosaicGrid are buffered for the window of the
+        // first stage and for the image writer, which needs the source row
+        // after all stages have computed the row
+        int firstRadius = nStages > 0 ? operators.get(0).getRowRadius() : 0;
+        Source source = new Source(src, srcMosaic,
+                Math.max(2 * firstRadius + 1, totalRadius + 1), nCols);
+
+        float[] imageRow = dst == null ? new float[nCols] : null;
+        for (int row = startRow; row < endRow; ++row) {
+            float[] dstRow = dst == null ? imageRow : dst.getGrid()[row];
+            if (nStages == 0) {
+                System.arraycopy(source.row(row), 0, dstRow, 0, nCols);
+            } else {
+                computeRow(geometry, source, stages, nStages - 1, row, dstRow);
+            }
+            if (dst == null) {
+                imageWriter.writeRow(geometry, source.row(row), dstRow, row, dstImage);
+            }
+        }
+    }
+
+    /**
+     * Computes a row of a stage.
+     *
+     * @param src The source grid.
+     * @param source The rows of the source grid.
+     * @param stages The stages of the chain.
+     * @param stage The index of the stage.
+     * @param row The index of the row.
+     * @param dst Receives the values of the row.
+     */
+    private static void computeRow(GridGeometry src, Source source, Stage[] stages,
+            int stage, int row, float[] dst) {
+        Stage s = stages[stage];
+        int radius = s.operator.getRowRadius();
+        for (int i = -radius; i <= radius; i++) {
+            s.window[i + radius] = bufferedRow(src, source, stages, stage - 1, row + i);
+        }
+        s.operator.operateRow(src, s.window, dst, row);
+    }
+
+    /**
+     * Returns a row computed by a stage. The row is computed if it is not
+     * buffered. The next stage requests the rows of its window in increasing
+     * order, so that the buffer of a stage never drops a row that is still
+     * needed.
+     *
+     * @param src The source grid.
+     * @param source The rows of the source grid.
+     * @param stages The stages of the chain.
+     * @param stage The index of the stage, or -1 for the source grid.
+     * @param row The index of the row.
+     * @return The row, or null if the row is outside of the grid.
+     */
+    private static float[] bufferedRow(GridGeometry src, Source source, Stage[] stages,
+            int stage, int row) {
+        if (row < 0 || row >= src.getRows()) {
+            return null;
+        }
+        if (stage < 0) {
+            return source.row(row);
+        }
+        Stage s = stages[stage];
+        int slot = row % s.rows.length;
+        if (s.rowIndices[slot] != row) {
+            computeRow(src, source, stages, stage, row, s.rows[slot]);
+            s.rowIndices[slot] = row;
+        }
+        return s.rows[slot];
+    }
+
+    /**
+     * Fills a window with rows of a grid. Rows outside of the grid are null.
+     *
+     * @param grid The rows of the grid.
+     * @param row The index of the central row of the window.
+     * @param window The window to fill. Has an odd length.
+     */
+    static void fillWindow(float[][] grid, int row, float[][] window) {
+        int radius = window.length / 2;
+        for (int i = -radius; i <= radius; i++) {
+            int r = row + i;
+            window[i + radius] = r >= 0 && r < grid.length ? grid[r] : null;
+        }
+    }
+
+    @Override
+    public String getName() {
+        StringBuilder sb = new StringBuilder("Chain");
+        for (RowOperator operator : operators) {
+            sb.append(sb.length() == 5 ? ": " : ", ");
+            sb.append(operator instanceof GridOperator
+                    ? ((GridOperator) operator).getName() : operator.toString());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The rows of the source grid. The rows of a Grid are used directly, the
+     * rows of a MosaicGrid are copied to a buffer when they are needed.
+     */
+    private static final class Source {
+
+        final float[][] gridRows;
+        final MosaicGrid mosaic;
+        final float[][] rows;
+        final int[] rowIndices;
+
+        Source(Grid grid, MosaicGrid mosaic, int bufferedRows, int nCols) {
+            this.gridRows = grid != null ? grid.getGrid() : null;
+            this.mosaic = mosaic;
+            rows = grid != null ? null : new float[bufferedRows][nCols];
+            rowIndices = grid != null ? null : new int[bufferedRows];
+            if (rowIndices != null) {
+                Arrays.fill(rowIndices, -1);
+            }
+        }
+
+        float[] row(int row) {
+            if (gridRows != null) {
+                return gridRows[row];
+            }
+            int slot = row % rows.length;
+            if (rowIndices[slot] != row) {
+                mosaic.copyRow(row, rows[slot], 0);
+                rowIndices[slot] = row;
+            }
+            return rows[slot];
+        }
+    }
+
+    /**
+     * An operator of the chain with its window and the buffered rows it has
+     * computed for the next operator.
+     */
+    private static final class Stage {
+
+        final RowOperator operator;
+        final float[][] window;
+        final float[][] rows;
+        final int[] rowIndices;
+
+        Stage(RowOperator operator, int bufferedRows, int nCols) {
+            this.operator = operator;
+            window = new float[2 * operator.getRowRadius() + 1][];
+            rows = new float[bufferedRows][nCols];
+            rowIndices = new int[bufferedRows];
+            Arrays.fill(rowIndices, -1);
+        }
+    }
+}
@@ -1,12 +1,13 @@
 package edu.oregonstate.carto.grid.operators;
 
 import edu.oregonstate.carto.tilemanager.util.Grid;
+import edu.oregonstate.carto.tilemanager.util.GridGeometry;
 
 /**
  * Multiply a grid by a constant factor.
  * @author Bernhard Jenny, Oregon State University
  */
-public class GridScaleOperator extends ThreadedGridOperator {
+public class GridScaleOperator extends ThreadedGridOperator implements RowOperator {
     
     private float scale;
 
@@ -21,13 +22,24 @@ public class GridScaleOperator extends ThreadedGridOperator {
     public void operate(Grid src, Grid dst, int startRow, int endRow) {
         float[][] srcGrid = src.getGrid();
         float[][] dstGrid = dst.getGrid();
-        final int nCols = src.getCols();
+        float[][] window = new float[1][];
         for (int row = startRow; row < endRow; ++row) {
-            float[] srcRow = srcGrid[row];
-            float[] dstRow = dstGrid[row];
-            for (int col = 0; col < nCols; ++col) {
-                dstRow[col] = srcRow[col] * scale;
-            }
+            window[0] = srcGrid[row];
+            operateRow(src, window, dstGrid[row], row);
+        }
+    }
+
+    @Override
+    public int getRowRadius() {
+        return 0;
+    }
+
+    @Override
+    public void operateRow(GridGeometry src, float[][] window, float[] dst, int row) {
+        float[] srcRow = window[0];
+        final int nCols = src.getCols();
+        for (int col = 0; col < nCols; ++col) {
+            dst[col] = srcRow[col] * scale;
         }
     }
 
@@ -49,6 +49,21 @@ public class GridScaleToRangeOperator extends ThreadedGridOperator {
         return super.operate(src, dst);
     }
 
+    /**
+     * The statistics of the destination grid are derived from the statistics
+     * of the source grid, which are needed for the minimum and maximum anyway.
+     */
+    @Override
+    protected Grid.GeoGridStatistics getDestinationStatistics(Grid src) {
+        final float srcRange = srcMax - srcMin;
+        final float dstRange = dstMax - dstMin;
+        if (srcRange <= 0 || dstRange <= 0) {
+            // all cells are set to the new minimum
+            return new Grid.GeoGridStatistics(dstMin, (long) src.getRows() * src.getCols());
+        }
+        return src.getStatistics().rescale(srcMin, dstRange / srcRange, dstMin);
+    }
+
     @Override
     public void operate(Grid src, Grid dst, int startRow, int endRow) {
 
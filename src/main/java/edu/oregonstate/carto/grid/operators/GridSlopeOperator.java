@@ -1,29 +1,107 @@
 package edu.oregonstate.carto.grid.operators;
 
+import edu.oregonstate.carto.tilemanager.util.FlatGrid;
 import edu.oregonstate.carto.tilemanager.util.Grid;
+import edu.oregonstate.carto.tilemanager.util.GridGeometry;
+import java.util.Arrays;
 
 
 /**
  * Compute slope
  * @author Bernhard Jenny, Oregon State University
  */
-public class GridSlopeOperator extends ThreadedGridOperator {
+public class GridSlopeOperator extends ThreadedGridOperator implements RowOperator {
     
     public GridSlopeOperator() {
     }
    
     @Override
     public void operate(Grid src, Grid dst, int startRow, int endRow) {
+        float[][] srcGrid = src.getGrid();
         float[][] dstGrid = dst.getGrid();
+        float[][] window = new float[3][];
+        for (int row = startRow; row < endRow; ++row) {
+            GridOperatorChain.fillWindow(srcGrid, row, window);
+            operateRow(src, window, dstGrid[row], row);
+        }
+    }
+
+    @Override
+    protected void operate(FlatGrid src, FlatGrid dst, int startRow, int endRow) {
+        float[] srcData = src.getData();
+        float[] dstData = dst.getData();
+        final int nRows = src.getRows();
         final int nCols = src.getCols();
+        final int stride = src.getStride();
+        final double cellSize = src.getCellSize();
         for (int row = startRow; row < endRow; ++row) {
-            float[] dstRow = dstGrid[row];
-            for (int col = 0; col < nCols; ++col) {
-                dstRow[col] = (float)src.getSlope(col, row);
+            int c = src.index(0, row);
+            int d = dst.index(0, row);
+            if (row == 0 || row == nRows - 1) {
+                slope(null, 0, srcData, c, null, 0, dstData, d, nCols, cellSize);
+            } else {
+                slope(srcData, c - stride, srcData, c, srcData, c + stride,
+                        dstData, d, nCols, cellSize);
             }
         }
     }
 
+    @Override
+    public boolean isFlatGridSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean isOverwritingSupported() {
+        return false;
+    }
+
+    @Override
+    public int getRowRadius() {
+        return 1;
+    }
+
+    /**
+     * Computes the slope of a row with four neighbors, as Grid.getSlope(). The
+     * slope of border cells is NaN.
+     */
+    @Override
+    public void operateRow(GridGeometry src, float[][] window, float[] dst, int row) {
+        slope(window[0], 0, window[1], 0, window[2], 0, dst, 0, src.getCols(),
+                src.getCellSize(row));
+    }
+
+    /**
+     * Computes the slope of a row. The rows can be in separate arrays or in
+     * the same array at different start indices.
+     *
+     * @param n The row above, or null for the first row of the grid.
+     * @param nStart Index of the first value of the row above.
+     * @param c The row.
+     * @param cStart Index of the first value of the row.
+     * @param s The row below, or null for the last row of the grid.
+     * @param sStart Index of the first value of the row below.
+     * @param dst Receives the slope values.
+     * @param dstStart Index of the first slope value.
+     * @param nCols Number of columns.
+     * @param cellSize Size of a cell.
+     */
+    private static void slope(float[] n, int nStart, float[] c, int cStart,
+            float[] s, int sStart, float[] dst, int dstStart, int nCols, double cellSize) {
+        if (n == null || s == null) {
+            Arrays.fill(dst, dstStart, dstStart + nCols, Float.NaN);
+            return;
+        }
+        final double d = 2 * cellSize;
+        dst[dstStart] = dst[dstStart + nCols - 1] = Float.NaN;
+        for (int col = 1; col < nCols - 1; ++col) {
+            float e = c[cStart + col + 1];
+            float w = c[cStart + col - 1];
+            float dy = n[nStart + col] - s[sStart + col];
+            dst[dstStart + col] = (float) Math.atan(Math.hypot(e - w, dy) / d);
+        }
+    }
+
     @Override
     public String getName() {
         return "Slope";
@@ -1,6 +1,7 @@
 package edu.oregonstate.carto.grid.operators;
 
 import edu.oregonstate.carto.tilemanager.util.Grid;
+import edu.oregonstate.carto.tilemanager.util.GridGeometry;
 import java.awt.image.*;
 import java.util.Arrays;
 
@@ -79,4 +80,51 @@ public class GridToImageOperator {
         return bufferedImage;
     }
 
+    /**
+     * Applies a chain of operators and converts the result to a gray image in
+     * a single pass, without storing the result of the chain in a grid.
+     *
+     * @param chain The operators to apply.
+     * @param grid The source grid of the chain, a Grid or a MosaicGrid.
+     * @param min The value of the result converted to black.
+     * @param max The value of the result converted to white.
+     * @return A gray image, or null if the grid is empty.
+     */
+    public BufferedImage operate(GridOperatorChain chain, GridGeometry grid,
+            final float min, float max) {
+
+        if (grid == null) {
+            throw new IllegalArgumentException();
+        }
+
+        final int nrows = grid.getRows();
+        final int ncols = grid.getCols();
+        if (nrows == 0 || ncols == 0) {
+            return null;
+        }
+
+        final float oldRange = max - min;
+        BufferedImage bufferedImage = new BufferedImage(ncols, nrows,
+                BufferedImage.TYPE_BYTE_GRAY);
+        final byte[] pixels = ((DataBufferByte) bufferedImage.getRaster().getDataBuffer()).getData();
+        if (oldRange == 0) {
+            // make white image
+            Arrays.fill(pixels, (byte) 255);
+            return bufferedImage;
+        }
+
+        chain.operate(grid, bufferedImage, new RowImageWriter() {
+
+            @Override
+            public void writeRow(GridGeometry src, float[] srcRow, float[] values,
+                    int row, BufferedImage image) {
+                int px = row * ncols;
+                for (int col = 0; col < ncols; ++col) {
+                    pixels[px++] = (byte) ((values[col] - min) / oldRange * 255.f);
+                }
+            }
+        });
+        return bufferedImage;
+    }
+
 }
@@ -62,6 +62,16 @@ public class IlluminatedContoursOperator extends ThreadedGridOperator {
     // pixel buffer to render to
     private int[] imageBuffer;
 
+    // direction of illumination as geometric angle (from east counterclockwise)
+    private final double illuminationX, illuminationY;
+
+    // cosines of transitionAngle, and of the limits of the gradient around it
+    private final double cosTransitionAngle, cosShadedAngle, cosIlluminatedAngle;
+
+    // if true, values of scaled images are interpolated between values
+    // computed once per cell of the source grid
+    private boolean interpolateCellValues = true;
+
     /**
      *
      * @param illuminated
@@ -98,6 +108,12 @@ public class IlluminatedContoursOperator extends ThreadedGridOperator {
         this.illluminatedGray = illluminatedGray;
         this.aspectGaussBlur = aspectGaussBlur;
         this.transitionAngle = transitionAngle;
+        double illumination = Math.toRadians(90 - azimuth);
+        this.illuminationX = Math.cos(illumination);
+        this.illuminationY = Math.sin(illumination);
+        this.cosTransitionAngle = Math.cos(Math.toRadians(transitionAngle));
+        this.cosShadedAngle = Math.cos(Math.toRadians(Math.min(180, transitionAngle + gradientAngle)));
+        this.cosIlluminatedAngle = Math.cos(Math.toRadians(Math.max(0, transitionAngle - gradientAngle)));
     }
 
     /**
@@ -107,7 +123,8 @@ public class IlluminatedContoursOperator extends ThreadedGridOperator {
      * grid.
      * @param grid Grid with elevation values.
      * @param slopeGrid Grid with slope values.
-     * @param progress Progress indicator. Not used when scale is 1.
+     * @param progress Progress indicator, checked for cancellation before each
+     * block of rows and, for scaled images, before each row. Can be null.
      */
     public void renderToImage(BufferedImage destinationImage, Grid grid, Grid slopeGrid, SwingWorker progress) {
         if (destinationImage == null) {
@@ -134,6 +151,11 @@ public class IlluminatedContoursOperator extends ThreadedGridOperator {
         endRow = Math.min(src.getRows() - 2, endRow);
         int cols = src.getCols();
 
+        // stop rendering this block of rows if the user canceled
+        if (startRow >= endRow || isCancelled()) {
+            return;
+        }
+
         int scale = image.getWidth() / src.getCols();
         if (scale == 1) {
             for (int row = startRow; row < endRow; row++) {
@@ -141,6 +163,28 @@ public class IlluminatedContoursOperator extends ThreadedGridOperator {
                     illuminatedContours(src, col, row);
                 }
             }
+        } else if (interpolateCellValues) {
+            // gradients of the smoothed grid along the top and the bottom
+            // of the current row of cells
+            float[] gxTop = new float[cols];
+            float[] gyTop = new float[cols];
+            float[] gxBottom = new float[cols];
+            float[] gyBottom = new float[cols];
+            gradientRow(startRow, gxBottom, gyBottom);
+            for (int row = startRow; row < endRow; row++) {
+                if (isCancelled()) {
+                    return;
+                }
+                float[] tmp = gxTop;
+                gxTop = gxBottom;
+                gxBottom = tmp;
+                tmp = gyTop;
+                gyTop = gyBottom;
+                gyBottom = tmp;
+                gradientRow(row + 1, gxBottom, gyBottom);
+                scaledIlluminatedContoursRow(src, slopeGrid, row, scale,
+                        gxTop, gyTop, gxBottom, gyBottom);
+            }
         } else {
             // only report progress if this is the first chunk of the image
             // all chunks are the same size, but are rendered in different threads.
@@ -149,7 +193,7 @@ public class IlluminatedContoursOperator extends ThreadedGridOperator {
 
             for (int row = startRow; row < endRow; row++) {
                 // stop rendering if the user canceled
-                if (progress != null && progress.isCancelled()) {
+                if (isCancelled()) {
                     return;
                 }
 
@@ -226,6 +270,167 @@ public class IlluminatedContoursOperator extends ThreadedGridOperator {
         }
     }
 
+    /**
+     * Compute the pixels for a row of cells in the source grid. The image has
+     * a different size than the source grid. The elevation, the slope and the
+     * gradient of the smoothed grid are interpolated bilinearly between the
+     * corners of each cell. The interpolated values are updated incrementally
+     * from one pixel to the next.
+     *
+     * @param src The source terrain elevation grid.
+     * @param slopeGrid Slope grid.
+     * @param row The row in the source grid.
+     * @param scale The image is this many times larger than the terrain model
+     * grid.
+     * @param gxTop Horizontal gradients of the smoothed grid in row.
+     * @param gyTop Vertical gradients of the smoothed grid in row.
+     * @param gxBottom Horizontal gradients of the smoothed grid in row + 1.
+     * @param gyBottom Vertical gradients of the smoothed grid in row + 1.
+     */
+    private void scaledIlluminatedContoursRow(Grid src, Grid slopeGrid, int row, int scale,
+            float[] gxTop, float[] gyTop, float[] gxBottom, float[] gyBottom) {
+        final int cols = src.getCols();
+        final double cellSize = src.getCellSize();
+        final int imageWidth = image.getWidth();
+        final float[] elevTop = src.getGrid()[row];
+        final float[] elevBottom = src.getGrid()[row + 1];
+        final float[] slopeTop = slopeGrid.getGrid()[row];
+        final float[] slopeBottom = slopeGrid.getGrid()[row + 1];
+
+        for (int col = 1; col < cols - 1; col++) {
+            for (int r = 0; r < scale; r++) {
+                final double ty = (double) r / scale;
+                // values along the left and right border of the cell
+                double elevLeft = lerp(elevTop[col], elevBottom[col], ty);
+                double elevRight = lerp(elevTop[col + 1], elevBottom[col + 1], ty);
+                double slopeLeft = lerp(slopeTop[col], slopeBottom[col], ty);
+                double slopeRight = lerp(slopeTop[col + 1], slopeBottom[col + 1], ty);
+                double gxLeft = lerp(gxTop[col], gxBottom[col], ty);
+                double gxRight = lerp(gxTop[col + 1], gxBottom[col + 1], ty);
+                double gyLeft = lerp(gyTop[col], gyBottom[col], ty);
+                double gyRight = lerp(gyTop[col + 1], gyBottom[col + 1], ty);
+
+                // increments from one pixel to the next
+                final double dElev = (elevRight - elevLeft) / scale;
+                final double dSlope = (slopeRight - slopeLeft) / scale;
+                final double dgx = (gxRight - gxLeft) / scale;
+                final double dgy = (gyRight - gyLeft) / scale;
+
+                int px = (row * scale + r) * imageWidth + col * scale;
+                for (int c = 0; c < scale; c++) {
+                    int g = computeGray(elevLeft, gxLeft, gyLeft, slopeLeft, cellSize);
+                    if (g != CONTOURS_TRANSPARENT) {
+                        imageBuffer[px + c] = g | (g << 8) | (g << 16) | 0xFF000000;
+                    }
+                    elevLeft += dElev;
+                    slopeLeft += dSlope;
+                    gxLeft += dgx;
+                    gyLeft += dgy;
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the gradient of the smoothed grid for each cell of a row with
+     * central differences. The gradient is the difference between the east
+     * and west neighbors, and between the north and south neighbors. Its
+     * direction is the aspect returned by Grid.getAspect(). Cells along the
+     * left and right border of the grid use one-sided differences.
+     *
+     * @param row The row. Must not be the first or last row of the grid.
+     * @param gx Receives the horizontal gradients.
+     * @param gy Receives the vertical gradients.
+     */
+    private void gradientRow(int row, float[] gx, float[] gy) {
+        final float[][] g = smoothGrid.getGrid();
+        final float[] r = g[row];
+        final float[] n = g[row - 1];
+        final float[] s = g[row + 1];
+        final int cols = r.length;
+        for (int col = 0; col < cols; col++) {
+            int w = Math.max(col - 1, 0);
+            int e = Math.min(col + 1, cols - 1);
+            gx[col] = r[e] - r[w];
+            gy[col] = n[col] - s[col];
+        }
+    }
+
+    /**
+     * Compute the gray value for the illuminated contour line image from the
+     * gradient of the smoothed grid. Equivalent to computeGray() with the
+     * aspect of the gradient, but the angle between aspect and illumination
+     * is only computed for pixels in the gradient between illuminated and
+     * shaded contour lines. Elsewhere, its cosine is sufficient.
+     *
+     * @param elevation Elevation of the point.
+     * @param gx Horizontal gradient of the smoothed grid.
+     * @param gy Vertical gradient of the smoothed grid.
+     * @param slope Slope of the point.
+     * @param cellSize
+     * @return Gray value between 0 and 255, or CONTOURS_TRANSPARENT.
+     */
+    private int computeGray(double elevation, double gx, double gy, double slope, double cellSize) {
+        // cosine of the angle between illumination and aspect, which is
+        // opposite to the gradient
+        double length = Math.sqrt(gx * gx + gy * gy);
+        double cosAngleDiff = length == 0
+                ? -illuminationX // aspect of 180 degrees for flat areas
+                : -(gx * illuminationX + gy * illuminationY) / length;
+
+        double a;
+        if (cosAngleDiff < cosTransitionAngle) {
+            a = shadowWidth * slope * cellSize;
+        } else {
+            a = illuminatedWidth * slope * cellSize;
+        }
+        if (tanaka) {
+            a *= Math.abs(cosAngleDiff);
+        }
+        a = Math.max(minWidth * slope * cellSize, a);
+
+        double e = Math.abs(elevation);
+        double dist = e - Math.floor(e / interval) * interval;
+        if (dist > a) {
+            dist = interval - dist;
+        }
+        if (a > dist) {
+            // the cosine decreases with increasing angles between 0 and 180
+            if (cosAngleDiff <= cosShadedAngle) {
+                return 0;
+            } else if (cosAngleDiff >= cosIlluminatedAngle) {
+                return illuminated ? illluminatedGray : 0;
+            } else {
+                double angleDiff = Math.toDegrees(Math.acos(cosAngleDiff));
+                double d = transitionAngle + gradientAngle - angleDiff;
+                return (int) (d / (2. * gradientAngle) * 255.);
+            }
+        }
+        return CONTOURS_TRANSPARENT;
+    }
+
+    private static double lerp(double a, double b, double t) {
+        return a + (b - a) * t;
+    }
+
+    /**
+     * Returns true if the user canceled rendering.
+     */
+    private boolean isCancelled() {
+        return progress != null && progress.isCancelled();
+    }
+
+    /**
+     * If true, scaled images are computed by interpolating values between
+     * the corners of cells, which is considerably faster than interpolating
+     * the grids for each pixel. True by default.
+     *
+     * @param interpolateCellValues
+     */
+    public void setInterpolateCellValues(boolean interpolateCellValues) {
+        this.interpolateCellValues = interpolateCellValues;
+    }
+
     @Override
     public String getName() {
         return "Illuminated Contours";
@@ -0,0 +1,24 @@
+package edu.oregonstate.carto.grid.operators;
+
+import edu.oregonstate.carto.tilemanager.util.GridGeometry;
+import java.awt.image.BufferedImage;
+
+/**
+ * Converts rows computed by a GridOperatorChain to pixels of an image.
+ */
+public interface RowImageWriter {
+
+    /**
+     * Writes a row of values to an image. Called concurrently for different
+     * rows.
+     *
+     * @param src The size and cell size of the source grid of the chain.
+     * @param srcRow The values of the row in the source grid.
+     * @param values The values of the row computed by the chain.
+     * @param row The index of the row, which is also the index of the row of
+     * pixels in the image.
+     * @param image The image to write to.
+     */
+    public void writeRow(GridGeometry src, float[] srcRow, float[] values,
+            int row, BufferedImage image);
+}
@@ -0,0 +1,33 @@
+package edu.oregonstate.carto.grid.operators;
+
+import edu.oregonstate.carto.tilemanager.util.GridGeometry;
+
+/**
+ * An operator that computes one row at a time from a window of rows of its
+ * input. Row operators can be chained with a GridOperatorChain, which passes
+ * the rows computed by one operator to the next operator without creating
+ * intermediate grids.
+ */
+public interface RowOperator {
+
+    /**
+     * Returns the number of rows above and below a row that are needed for
+     * computing the row. Point-wise operators return 0.
+     *
+     * @return The number of neighboring rows on each side.
+     */
+    public int getRowRadius();
+
+    /**
+     * Computes a row.
+     *
+     * @param src The size and cell size of the source grid of the chain.
+     * @param window Rows of the input of this operator. The row to compute is
+     * at index getRowRadius(), the rows above it are at smaller indices.
+     * Entries for rows outside of the grid are null. The rows must not be
+     * changed.
+     * @param dst Receives the computed values.
+     * @param row The index of the row to compute.
+     */
+    public void operateRow(GridGeometry src, float[][] window, float[] dst, int row);
+}
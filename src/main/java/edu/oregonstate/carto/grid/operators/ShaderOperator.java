@@ -1,6 +1,8 @@
 package edu.oregonstate.carto.grid.operators;
 
+import edu.oregonstate.carto.tilemanager.util.FlatGrid;
 import edu.oregonstate.carto.tilemanager.util.Grid;
+import edu.oregonstate.carto.tilemanager.util.GridGeometry;
 import edu.oregonstate.carto.app.Vector3D;
 
 /**
@@ -8,7 +10,7 @@ import edu.oregonstate.carto.app.Vector3D;
  *
  * @author Charles Preppernau and Bernie Jenny, Oregon State University
  */
-public class ShaderOperator extends ThreadedGridOperator {
+public class ShaderOperator extends ThreadedGridOperator implements RowOperator {
 
     // vertical exaggeration factor applied to terrain values before computing a 
     // shading value
@@ -26,6 +28,35 @@ public class ShaderOperator extends ThreadedGridOperator {
      */
     private int illuminationZenith = 45;
 
+    /**
+     * Azimuths of the lights for multi-directional shading, or null for a
+     * single light at illuminationAzimuth. All lights have the vertical angle
+     * illuminationZenith.
+     */
+    private int[] multidirectionalAzimuths = null;
+
+    /**
+     * Weights of the lights for multi-directional shading. The sum is 1.
+     */
+    private float[] multidirectionalWeights = null;
+
+    /**
+     * If true, shading values are interpolated in a table of precomputed
+     * values for slope and aspect instead of computing them for each cell.
+     */
+    private boolean lookupTableEnabled = false;
+
+    /**
+     * Number of values along each side of the lookup table.
+     */
+    private static final int LUT_SIZE = 256;
+
+    /**
+     * Shading values for LUT_SIZE x LUT_SIZE normal vectors. Created when
+     * needed and discarded when the illumination changes.
+     */
+    private volatile float[] lookupTable = null;
+
     /**
      * Creates a new instance
      */
@@ -33,84 +64,26 @@ public class ShaderOperator extends ThreadedGridOperator {
     }
 
     /**
-     * Compute a normal vector for a point on a digital elevation model. The
-     * length of the normal vector is 1.
+     * Compute a shading for a chunk of the grid.
      *
-     * @param col The horizontal coordinate at which a normal must be computed.
-     * @param row The vertical coordinate at which a normal must be computed.
-     * @param grid Grid with elevation values
-     * @param n The vector that will receive the resulting normal. Invalid upon
-     * start, only used to avoid creation of a new Vector3D object.
-     * @param cellSize The cell size in meters. Should not be in degrees.
-     * <B>Important: row is counted from top to bottom.</B>
-     */
-    private void computeTerrainNormal(int col, int row, Grid grid, Vector3D n, double cellSize) {
-        float[][] g = grid.getGrid();
-        
-        //Make sure the point is inside the grid and not on the border of the grid.
-        // FIXME compute shading along border
-        if (col > 0
-                && col < grid.getCols() - 1
-                && row > 0
-                && row < grid.getRows() - 1) {
-            
-            // get height values
-            float[] centralRow = g[row];
-            double elevCenter = centralRow[col];
-            double elevS = (g[row + 1][col] - elevCenter) * vertExaggeration;
-            double elevE = (centralRow[col + 1] - elevCenter) * vertExaggeration;
-            double elevN = (g[row - 1][col] - elevCenter) * vertExaggeration;
-            double elevW = (centralRow[col - 1] - elevCenter) * vertExaggeration;
-
-            // sum vector products, one for each quadrant
-            // south x east
-            // |0        |   |cellSize|
-            // |-cellSize| x |0       |
-            // |elevS    |   |elevE   |
-            double x = -cellSize * elevE;
-            double y = elevS * cellSize;
-            double z = cellSize * cellSize;
-        
-            // east x north
-            // |cellSize|   |0       |
-            // |0       | x |cellSize|
-            // |elevE   |   |elevN   |
-            x += -elevE * cellSize;
-            y += -cellSize * elevN;
-            z += cellSize * cellSize;
-
-            // north x west
-            // |0       |   |-cellSize|
-            // |cellSize| x |0        |
-            // |elevN   |   |elevW    |
-            x += cellSize * elevW;
-            y += -elevN * cellSize;
-            z += cellSize * cellSize;
-
-            // west x south
-            // |-cellSize|   |0        |
-            // |0        | x |-cellSize|
-            // |elevW    |   |elevS    |
-            x += elevW * cellSize;
-            y += cellSize * elevS;
-            z += cellSize * cellSize;
-
-            // normalize and return vector
-            double length = Math.sqrt(x * x + y * y + z * z);
-            n.x = x / length;
-            n.y = y / length;
-            n.z = z / length;
-
-        } else {
-            // border pixels are stuck with a level surface.
-            n.x = 0;
-            n.y = 0;
-            n.z = Float.isNaN(g[row][col]) ? Double.NaN : 1;
+     * @param src Source grid
+     * @param dst Destination grid
+     * @param startRow First row.
+     * @param endRow First row of next chunk.
+     */
+    @Override
+    protected void operate(Grid src, Grid dst, int startRow, int endRow) {
+        float[][] srcGrid = src.getGrid();
+        float[][] dstGrid = dst.getGrid();
+        float[][] window = new float[3][];
+        for (int row = startRow; row < endRow; ++row) {
+            GridOperatorChain.fillWindow(srcGrid, row, window);
+            operateRow(src, window, dstGrid[row], row);
         }
     }
 
     /**
-     * Compute a shading for a chunk of the grid.
+     * Compute a shading for a chunk of a flat grid.
      *
      * @param src Source grid
      * @param dst Destination grid
@@ -118,39 +91,271 @@ public class ShaderOperator extends ThreadedGridOperator {
      * @param endRow First row of next chunk.
      */
     @Override
-    protected void operate(Grid src, Grid dst, int startRow, int endRow) {
-        int cols = src.getCols();
+    protected void operate(FlatGrid src, FlatGrid dst, int startRow, int endRow) {
+        float[] srcData = src.getData();
+        float[] dstData = dst.getData();
+        final int nRows = src.getRows();
+        final int nCols = src.getCols();
+        final int stride = src.getStride();
+        for (int row = startRow; row < endRow; ++row) {
+            int c = src.index(0, row);
+            // rows above and below are in the same array
+            float[] north = row > 0 ? srcData : null;
+            float[] south = row < nRows - 1 ? srcData : null;
+            shadeRow(north, c - stride, srcData, c, south, c + stride,
+                    dstData, dst.index(0, row), nCols, src.getCellSize());
+        }
+    }
 
-        // create a light vector
-        Vector3D light = new Vector3D(illuminationAzimuth, illuminationZenith);
+    @Override
+    public boolean isFlatGridSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean isOverwritingSupported() {
+        return false;
+    }
+
+    @Override
+    public int getRowRadius() {
+        return 1;
+    }
+
+    /**
+     * Compute the shading of a row.
+     *
+     * @param src The elevation grid, used for the size of cells in the row.
+     * @param window The row above, the row to shade, and the row below.
+     * @param dst Destination row.
+     * @param row Index of the row.
+     */
+    @Override
+    public void operateRow(GridGeometry src, float[][] window, float[] dst, int row) {
+        shadeRow(window[0], 0, window[1], 0, window[2], 0, dst, 0,
+                src.getCols(), src.getCellSize(row));
+    }
 
-        // create a normal vector, and re-use it for every pixel
-        Vector3D n = new Vector3D(0, 0, 0);
+    /**
+     * Compute the shading of a row. The rows can be in separate arrays or in
+     * the same array at different start indices.
+     *
+     * @param north The row above, or null for the first row of the grid.
+     * @param northStart Index of the first value of the row above.
+     * @param central The row to shade.
+     * @param centralStart Index of the first value of the row to shade.
+     * @param south The row below, or null for the last row of the grid.
+     * @param southStart Index of the first value of the row below.
+     * @param dst Destination values.
+     * @param dstStart Index of the first destination value.
+     * @param cols Number of columns.
+     * @param cellSize The size of a cell in meters or degrees.
+     */
+    private void shadeRow(float[] north, int northStart, float[] central, int centralStart,
+            float[] south, int southStart, float[] dst, int dstStart, int cols, double cellSize) {
 
         // the cell size to calculate the horizontal components of vectors
-        double cellSize = src.getCellSize();
         // convert degrees to meters on a sphere
         if (cellSize < 0.1) {
             cellSize = cellSize / 180 * Math.PI * 6371000;
         }
 
-        // Loop through each grid cell
-        float[][] dstGrid = dst.getGrid();
-        for (int row = startRow; row < endRow; ++row) {
-            float[] dstRow = dstGrid[row];
+        // The normal of a cell is the sum of the vector products of the
+        // vectors to the four neighbors (south x east, east x north, north x
+        // west and west x south). The sum is
+        // (2 * cellSize * (w - e), 2 * cellSize * (s - n), 4 * cellSize^2),
+        // with w, e, s and n the exaggerated elevations of the neighbors. It is
+        // divided by 2 * cellSize, which does not change its direction.
+        final float nz = (float) (2 * cellSize);
+        final float ve = (float) vertExaggeration;
+
+        // border cells are stuck with a level surface
+        // FIXME compute shading along border
+        final float level = shade(0, 0, 1);
+        if (north == null || south == null) {
             for (int col = 0; col < cols; col++) {
-                // compute the normal of the cell
-                computeTerrainNormal(col, row, src, n, cellSize);
+                dst[dstStart + col] = Float.isNaN(central[centralStart + col]) ? Float.NaN : level;
+            }
+            return;
+        }
+        dst[dstStart] = Float.isNaN(central[centralStart]) ? Float.NaN : level;
+        if (cols > 1) {
+            int c = centralStart + cols - 1;
+            dst[dstStart + cols - 1] = Float.isNaN(central[c]) ? Float.NaN : level;
+        }
+
+        if (lookupTableEnabled) {
+            shadeInnerCellsWithLookupTable(north, northStart, central, centralStart,
+                    south, southStart, dst, dstStart, cols, nz, ve);
+        } else if (multidirectionalAzimuths != null) {
+            shadeInnerCellsMultidirectional(north, northStart, central, centralStart,
+                    south, southStart, dst, dstStart, cols, nz, ve);
+        } else {
+            shadeInnerCells(north, northStart, central, centralStart,
+                    south, southStart, dst, dstStart, cols, nz, ve);
+        }
+    }
+
+    /**
+     * Compute the shading of the inner cells of a row with a single light.
+     * There are no branches except for void cells, and all values are read
+     * from arrays with consecutive indices.
+     *
+     * @param nz The vertical component of normal vectors.
+     * @param ve The vertical exaggeration.
+     */
+    private void shadeInnerCells(float[] north, int northStart, float[] central, int centralStart,
+            float[] south, int southStart, float[] dst, int dstStart, int cols, float nz, float ve) {
+        Vector3D light = new Vector3D(illuminationAzimuth, illuminationZenith);
+        final float lx = (float) light.x;
+        final float ly = (float) light.y;
+        final float nzlz = nz * (float) light.z;
+        final float nz2 = nz * nz;
+        for (int col = 1; col < cols - 1; col++) {
+            int c = centralStart + col;
+            float nx = (central[c - 1] - central[c + 1]) * ve;
+            float ny = (south[southStart + col] - north[northStart + col]) * ve;
+
+            // The dot product of the normalized normal and the light vector
+            // is between -1 (surface faces directly away from light) and 1
+            // (surface faces directly toward light).
+            float dotProduct = (nx * lx + ny * ly + nzlz) / (float) Math.sqrt(nx * nx + ny * ny + nz2);
+
+            // scale dot product from [-1, +1] to a gray value in [0, 255]
+            float gray = (dotProduct + 1) * 127.5f;
+            dst[dstStart + col] = Float.isNaN(central[c]) ? Float.NaN : gray;
+        }
+    }
+
+    /**
+     * Compute the shading of the inner cells of a row with multiple lights.
+     *
+     * @param nz The vertical component of normal vectors.
+     * @param ve The vertical exaggeration.
+     */
+    private void shadeInnerCellsMultidirectional(float[] north, int northStart,
+            float[] central, int centralStart, float[] south, int southStart,
+            float[] dst, int dstStart, int cols, float nz, float ve) {
+        final int nLights = multidirectionalAzimuths.length;
+        final float[] lx = new float[nLights];
+        final float[] ly = new float[nLights];
+        final float[] nzlz = new float[nLights];
+        final float[] w = new float[nLights];
+        for (int i = 0; i < nLights; i++) {
+            Vector3D light = new Vector3D(multidirectionalAzimuths[i], illuminationZenith);
+            // weights include the scale to gray values
+            w[i] = multidirectionalWeights[i] * 255f;
+            lx[i] = (float) light.x;
+            ly[i] = (float) light.y;
+            nzlz[i] = nz * (float) light.z;
+        }
+        final float nz2 = nz * nz;
+        for (int col = 1; col < cols - 1; col++) {
+            int c = centralStart + col;
+            float nx = (central[c - 1] - central[c + 1]) * ve;
+            float ny = (south[southStart + col] - north[northStart + col]) * ve;
+            float inverseLength = 1f / (float) Math.sqrt(nx * nx + ny * ny + nz2);
+            float gray = 0;
+            for (int i = 0; i < nLights; i++) {
+                float dotProduct = (nx * lx[i] + ny * ly[i] + nzlz[i]) * inverseLength;
+                gray += w[i] * Math.max(dotProduct, 0f);
+            }
+            dst[dstStart + col] = Float.isNaN(central[c]) ? Float.NaN : gray;
+        }
+    }
+
+    /**
+     * Compute the shading of the inner cells of a row by bilinear
+     * interpolation in the lookup table. The cost per cell does not depend on
+     * the number of lights.
+     *
+     * @param nz The vertical component of normal vectors.
+     * @param ve The vertical exaggeration.
+     */
+    private void shadeInnerCellsWithLookupTable(float[] north, int northStart,
+            float[] central, int centralStart, float[] south, int southStart,
+            float[] dst, int dstStart, int cols, float nz, float ve) {
+        final float[] lut = getLookupTable();
+        final float nz2 = nz * nz;
+        final float scale = (LUT_SIZE - 1) / 2f;
+        for (int col = 1; col < cols - 1; col++) {
+            int c = centralStart + col;
+            float nx = (central[c - 1] - central[c + 1]) * ve;
+            float ny = (south[southStart + col] - north[northStart + col]) * ve;
+
+            // position of the stereographic projection of the normal in the table
+            float s = scale / ((float) Math.sqrt(nx * nx + ny * ny + nz2) + nz);
+            float x = nx * s + scale;
+            float y = ny * s + scale;
+            int ix = Math.min((int) x, LUT_SIZE - 2);
+            int iy = Math.min((int) y, LUT_SIZE - 2);
+            float dx = x - ix;
+            float dy = y - iy;
+            int i = iy * LUT_SIZE + ix;
+            float top = lut[i] + dx * (lut[i + 1] - lut[i]);
+            float bottom = lut[i + LUT_SIZE] + dx * (lut[i + LUT_SIZE + 1] - lut[i + LUT_SIZE]);
+            float gray = top + dy * (bottom - top);
+            dst[dstStart + col] = Float.isNaN(central[c]) ? Float.NaN : gray;
+        }
+    }
 
-                // compute the dot product of the normal and the light vector. This
-                // gives a value between -1 (surface faces directly away from
-                // light) and 1 (surface faces directly toward light)
-                double dotProduct = n.dotProduct(light);
+    /**
+     * Compute the shading value for a normal vector.
+     *
+     * @param x X component of the normal vector of length 1.
+     * @param y Y component of the normal vector of length 1.
+     * @param z Z component of the normal vector of length 1.
+     * @return The gray value between 0 and 255.
+     */
+    private float shade(double x, double y, double z) {
+        Vector3D n = new Vector3D(x, y, z);
+        if (multidirectionalAzimuths == null) {
+            double dotProduct = n.dotProduct(new Vector3D(illuminationAzimuth, illuminationZenith));
+            return (float) ((dotProduct + 1) / 2 * 255);
+        }
+        double gray = 0;
+        for (int i = 0; i < multidirectionalAzimuths.length; i++) {
+            Vector3D light = new Vector3D(multidirectionalAzimuths[i], illuminationZenith);
+            gray += multidirectionalWeights[i] * Math.max(n.dotProduct(light), 0);
+        }
+        return (float) (gray * 255);
+    }
 
-                // scale dot product from [-1, +1] to a gray value in [0, 255]
-                dstRow[col] = (float) ((dotProduct + 1) / 2 * 255.0D);
+    /**
+     * Returns the table with shading values, and creates it if needed. The
+     * table is indexed by the stereographic projection of normal vectors of
+     * length 1, (x / (1 + z), y / (1 + z)). The distance to the center is
+     * tan(slope / 2), and the direction is the aspect. Slope and aspect are
+     * therefore quantized without computing trigonometric functions for each
+     * cell, and with a resolution that is nearly uniform for gentle and steep
+     * slopes.
+     *
+     * @return LUT_SIZE x LUT_SIZE values in row-major order.
+     */
+    private synchronized float[] getLookupTable() {
+        if (lookupTable == null) {
+            float[] lut = new float[LUT_SIZE * LUT_SIZE];
+            for (int row = 0; row < LUT_SIZE; row++) {
+                for (int col = 0; col < LUT_SIZE; col++) {
+                    double px = col * 2. / (LUT_SIZE - 1) - 1;
+                    double py = row * 2. / (LUT_SIZE - 1) - 1;
+                    // outside of the unit circle use the closest vertical face
+                    double r2 = px * px + py * py;
+                    if (r2 > 1) {
+                        double r = Math.sqrt(r2);
+                        px /= r;
+                        py /= r;
+                        r2 = 1;
+                    }
+                    double x = 2 * px / (1 + r2);
+                    double y = 2 * py / (1 + r2);
+                    double z = (1 - r2) / (1 + r2);
+                    lut[row * LUT_SIZE + col] = shade(x, y, z);
+                }
             }
+            lookupTable = lut;
         }
+        return lookupTable;
     }
 
     @Override
@@ -164,6 +369,7 @@ public class ShaderOperator extends ThreadedGridOperator {
      */
     public void setIlluminationAzimuth(int illuminationAzimuth) {
         this.illuminationAzimuth = illuminationAzimuth;
+        lookupTable = null;
     }
 
     /**
@@ -172,6 +378,66 @@ public class ShaderOperator extends ThreadedGridOperator {
      */
     public void setIlluminationZenith(int illuminationZenith) {
         this.illuminationZenith = illuminationZenith;
+        lookupTable = null;
+    }
+
+    /**
+     * Use several lights for multi-directional shading. The shading of a cell
+     * is the weighted sum of the illumination by each light, which is the
+     * cosine of the angle between the normal and the light, or 0 for cells
+     * facing away from the light. All lights have the vertical angle of
+     * setIlluminationZenith().
+     *
+     * @param azimuths Azimuths of the lights, counted from north in
+     * counter-clock-wise direction. Between 0 and 360 degrees. Pass null to
+     * use a single light with the azimuth of setIlluminationAzimuth().
+     * @param weights The relative weights of the lights. Must be positive. Are
+     * scaled to a sum of 1.
+     */
+    public void setMultidirectionalIllumination(int[] azimuths, float[] weights) {
+        if (azimuths == null) {
+            multidirectionalAzimuths = null;
+            multidirectionalWeights = null;
+        } else {
+            if (azimuths.length == 0 || weights == null || weights.length != azimuths.length) {
+                throw new IllegalArgumentException();
+            }
+            float sum = 0;
+            for (float weight : weights) {
+                if (!(weight > 0)) {
+                    throw new IllegalArgumentException("weights must be positive");
+                }
+                sum += weight;
+            }
+            float[] w = new float[weights.length];
+            for (int i = 0; i < w.length; i++) {
+                w[i] = weights[i] / sum;
+            }
+            multidirectionalAzimuths = azimuths.clone();
+            multidirectionalWeights = w;
+        }
+        lookupTable = null;
+    }
+
+    /**
+     * Use multi-directional shading with the four lights at 225, 270, 315 and
+     * 360 degrees that are commonly used for pseudo-natural relief shading. The
+     * light at 315 degrees has the largest weight.
+     */
+    public void setMultidirectionalIllumination() {
+        setMultidirectionalIllumination(new int[]{225, 270, 315, 360},
+                new float[]{1, 2, 4, 2});
+    }
+
+    /**
+     * @param enabled If true, shading values are interpolated in a table of
+     * precomputed values for slope and aspect. This is faster for
+     * multi-directional shading, and the cost does not grow with the number
+     * of lights. The difference to the computed shading is less than a gray
+     * level for most slopes.
+     */
+    public void setLookupTableEnabled(boolean enabled) {
+        this.lookupTableEnabled = enabled;
     }
 
     /**
@@ -1,17 +1,100 @@
 package edu.oregonstate.carto.grid.operators;
 
+import edu.oregonstate.carto.tilemanager.util.FlatGrid;
 import edu.oregonstate.carto.tilemanager.util.Grid;
-import java.util.ArrayList;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
- * A base class for multi-threaded grid operators. Allocates as many threads
- * for operating on the grid as CPU cores are available.
+ * A base class for multi-threaded grid operators. The grid is split into
+ * blocks of rows, which are processed by a pool of threads shared by all
+ * operators. By default, the pool has as many threads as CPU cores are
+ * available. Small grids are processed by the calling thread.
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
  */
 public abstract class ThreadedGridOperator implements GridOperator {
 
+    /**
+     * Minimum number of cells in a block of rows. Grids with fewer than twice
+     * this number of cells are processed by the calling thread.
+     */
+    private static final int MIN_CELLS_PER_BLOCK = 16 * 1024;
+
+    /**
+     * Number of blocks per thread. More blocks than threads balance the load
+     * if blocks take different amounts of time.
+     */
+    private static final int BLOCKS_PER_THREAD = 4;
+
+    private static int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private static ForkJoinPool pool;
+
+    /**
+     * Maximum number of threads used by this operator, or 0 for all threads
+     * of the pool.
+     */
+    private int maxThreads = 0;
+
+    /**
+     * Returns the number of threads shared by all operators.
+     *
+     * @return The number of threads.
+     */
+    public static synchronized int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of threads shared by all operators. A server rendering
+     * many tiles concurrently may reduce this number to avoid oversubscribing
+     * the CPU cores. Operators started afterwards use a new pool. Operators
+     * that are running finish in the old pool, which is not shut down; its
+     * idle daemon threads terminate by themselves.
+     *
+     * @param threads The number of threads. Must be 1 or larger.
+     */
+    public static synchronized void setParallelism(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("invalid number of threads");
+        }
+        if (threads != parallelism) {
+            pool = null;
+        }
+        parallelism = threads;
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    /**
+     * Returns the maximum number of threads used by this operator.
+     *
+     * @return The number of threads, or 0 if all threads of the shared pool
+     * can be used.
+     */
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * Sets the maximum number of threads used by this operator. Useful for
+     * limiting the share of the pool used by a single request.
+     *
+     * @param maxThreads The number of threads, 0 to use all threads of the
+     * shared pool, 1 to process grids by the calling thread.
+     */
+    public void setMaxThreads(int maxThreads) {
+        if (maxThreads < 0) {
+            throw new IllegalArgumentException("invalid number of threads");
+        }
+        this.maxThreads = maxThreads;
+    }
+
     /**
      * Operate row-wise on the passed source grid and store the result in the passed 
      * destination grid. The source and the destination can be the same object
@@ -24,6 +107,27 @@ public abstract class ThreadedGridOperator implements GridOperator {
      */
     protected abstract void operate(Grid src, Grid dst, int startRow, int endRow);
 
+    /**
+     * Operate row-wise on flat grids. Derived classes supporting flat grids
+     * override this method and isFlatGridSupported().
+     * @param src The source grid.
+     * @param dst The destination grid.
+     * @param startRow The index of the first row to operate on.
+     * @param endRow The index of the last row. Derived classes should not
+     * operate on this row. It may be equal to src.getRows().
+     */
+    protected void operate(FlatGrid src, FlatGrid dst, int startRow, int endRow) {
+        throw new UnsupportedOperationException(getName() + ": flat grids are not supported");
+    }
+
+    /**
+     * Returns whether this operator can operate on flat grids.
+     * @return True if operate(FlatGrid, FlatGrid) is supported.
+     */
+    public boolean isFlatGridSupported() {
+        return false;
+    }
+
     /**
      * Returns whether the source and destination grids can be the same object.
      * Defaults to true, that is, the source grid can be overwritten. Needs to
@@ -34,6 +138,31 @@ public abstract class ThreadedGridOperator implements GridOperator {
     public boolean isOverwritingSupported() {
         return true;
     }
+
+    /**
+     * Returns whether operate(src, dst, startRow, endRow) only writes the rows
+     * startRow to endRow of the destination grid. The statistics of the
+     * destination grid are then computed for each block of rows right after
+     * the block has been computed, and the statistics of the blocks are
+     * merged. Derived classes writing other cells, such as a transposed
+     * destination grid, must return false.
+     * @return True if each block writes the same rows of the destination grid.
+     */
+    protected boolean isDestinationRowAligned() {
+        return true;
+    }
+
+    /**
+     * Returns the statistics of the destination grid if they can be derived
+     * from the source grid and the parameters of the operator without parsing
+     * the destination grid. Called before the values are computed.
+     * @param src The source grid.
+     * @return The statistics or null if they are to be computed from the
+     * blocks of rows of the destination grid.
+     */
+    protected Grid.GeoGridStatistics getDestinationStatistics(Grid src) {
+        return null;
+    }
     
     /**
      * Creates a new grid that will store the results of the operator. This
@@ -69,6 +198,8 @@ public abstract class ThreadedGridOperator implements GridOperator {
 
     /**
      * Apply the filter and store the result in the passed destination grid.
+     * The statistics of the destination grid are derived by
+     * getDestinationStatistics() or computed while the rows are processed.
      * @param src The source grid.
      * @param dst The destination grid. May not be null.
      * @return The passed dst grid is returned.
@@ -84,55 +215,162 @@ public abstract class ThreadedGridOperator implements GridOperator {
         if (!isOverwritingSupported() && src.getGrid() == dst.getGrid()) {
             throw new IllegalArgumentException(getName() + ": overwriting source grid is not possible");
         }
-        
-        int nRows = src.getRows();
-        int nThreads = Runtime.getRuntime().availableProcessors();
-        ArrayList<GridOperatorThread> threads = new ArrayList(nThreads);
-        int rowChunk = (nRows / nThreads) + 1;
-        for (int i = 0; i < nThreads; i++) {
-            int startRow = i * rowChunk;
-            int endRow = Math.min(nRows, startRow + rowChunk);
-            GridOperatorThread t = new GridOperatorThread(src, dst, startRow, endRow);
-            t.setName(this.getName() + " " + i);
-            threads.add(t);
-            t.start();
-        }
-
-        for (Thread t : threads) {
-            try {
-                t.join();
-            } catch (InterruptedException ex) {
-                Logger.getLogger(ThreadedGridOperator.class.getName()).log(Level.SEVERE, null, ex);
-            }
+        Grid.GeoGridStatistics stats = getDestinationStatistics(src);
+        boolean blockStats = stats == null && isDestinationRowAligned();
+        Grid.GeoGridStatistics computedStats = schedule(src, dst, null, null,
+                src.getRows(), src.getCols(), blockStats);
+        dst.setStatistics(stats != null ? stats : computedStats);
+        return dst;
+    }
+
+    /**
+     * Apply the filter to a flat grid and store the result in a new flat grid
+     * that is returned.
+     * @param src The source grid.
+     * @return The new grid storing the result.
+     */
+    public FlatGrid operate(FlatGrid src) {
+        if (src == null || !src.isWellFormed()) {
+            throw new IllegalArgumentException(getName() + ": invalid source grid");
         }
+        FlatGrid dst = new FlatGrid(src.getCols(), src.getRows(), src.getCellSize());
+        dst.setWest(src.getWest());
+        dst.setNorth(src.getNorth());
+        return operate(src, dst);
+    }
 
+    /**
+     * Apply the filter to a flat grid and store the result in the passed
+     * destination grid.
+     * @param src The source grid.
+     * @param dst The destination grid. May not be null.
+     * @return The passed dst grid is returned.
+     */
+    public FlatGrid operate(FlatGrid src, FlatGrid dst) {
+        if (!isFlatGridSupported()) {
+            throw new UnsupportedOperationException(getName() + ": flat grids are not supported");
+        }
+        if (src == null || !src.isWellFormed()) {
+            throw new IllegalArgumentException(getName() + ": invalid source grid");
+        }
+        if (dst == null || !dst.isWellFormed()) {
+            throw new IllegalArgumentException(getName() + ": invalid destination grid");
+        }
+        if (!isOverwritingSupported() && src.getData() == dst.getData()) {
+            throw new IllegalArgumentException(getName() + ": overwriting source grid is not possible");
+        }
+        schedule(null, null, src, dst, src.getRows(), src.getCols(), false);
         return dst;
     }
 
     /**
-     * A private utility class for wrapping a thread.
+     * Splits the source grid into blocks of rows and calls
+     * operate(src, dst, startRow, endRow) for each block. The grids are not
+     * validated.
+     * @param src The source grid.
+     * @param dst The destination grid. Is passed to operate() and may be null
+     * if the derived class does not store its result in a grid.
+     */
+    protected final void operateRows(Grid src, Grid dst) {
+        schedule(src, dst, null, null, src.getRows(), src.getCols(), false);
+    }
+
+    /**
+     * Splits a number of rows into blocks and calls
+     * operate(null, null, startRow, endRow) for each block. For derived
+     * classes that keep their source and destination in fields.
+     * @param nRows The number of rows.
+     * @param nCols The number of columns.
+     */
+    protected final void operateRows(int nRows, int nCols) {
+        schedule(null, null, null, null, nRows, nCols, false);
+    }
+
+    /**
+     * Splits the rows into blocks and processes the blocks in the shared pool.
+     * Either the grids or the flat grids are null.
+     * @return The merged statistics of the blocks of the destination grid if
+     * statistics is true, null otherwise.
      */
-    private class GridOperatorThread extends Thread {
+    private Grid.GeoGridStatistics schedule(Grid src, Grid dst, FlatGrid flatSrc,
+            FlatGrid flatDst, int nRows, int nCols, boolean statistics) {
+        long nCells = (long) nRows * nCols;
+        int blocks = maxThreads > 0 ? maxThreads : getParallelism() * BLOCKS_PER_THREAD;
+        blocks = (int) Math.min(Math.min(blocks, nRows), nCells / MIN_CELLS_PER_BLOCK);
+        RowBlocks task = new RowBlocks(src, dst, flatSrc, flatDst, nRows,
+                Math.max(1, blocks), 0, Math.max(1, blocks), statistics);
+        if (blocks <= 1) {
+            return task.compute();
+        } else {
+            return getPool().invoke(task);
+        }
+    }
+
+    /**
+     * A task operating on a range of blocks of rows. Ranges with more than one
+     * block are split in two halves. The result is the statistics of the rows
+     * of the destination grid, or null if statistics are not computed.
+     */
+    private class RowBlocks extends RecursiveTask<Grid.GeoGridStatistics> {
+
+        private static final long serialVersionUID = 1L;
 
         final Grid srcGrid;
         final Grid dstGrid;
-        final int startRow;
-        final int endRow;
-
-        public GridOperatorThread(Grid srcGrid,
-                Grid dstGrid,
-                int startRow,
-                int endRow) {
+        final FlatGrid flatSrc;
+        final FlatGrid flatDst;
+        final int nRows;
+        final int blocks;
+        final int startBlock;
+        final int endBlock;
+        final boolean statistics;
 
+        RowBlocks(Grid srcGrid, Grid dstGrid, FlatGrid flatSrc, FlatGrid flatDst,
+                int nRows, int blocks, int startBlock, int endBlock,
+                boolean statistics) {
             this.srcGrid = srcGrid;
             this.dstGrid = dstGrid;
-            this.startRow = startRow;
-            this.endRow = endRow;
+            this.flatSrc = flatSrc;
+            this.flatDst = flatDst;
+            this.nRows = nRows;
+            this.blocks = blocks;
+            this.startBlock = startBlock;
+            this.endBlock = endBlock;
+            this.statistics = statistics;
+        }
+
+        private int firstRow(int block) {
+            return (int) ((long) nRows * block / blocks);
+        }
+
+        private RowBlocks subBlocks(int start, int end) {
+            return new RowBlocks(srcGrid, dstGrid, flatSrc, flatDst, nRows,
+                    blocks, start, end, statistics);
         }
 
         @Override
-        public void run() {
-            operate(srcGrid, dstGrid, startRow, endRow);
+        protected Grid.GeoGridStatistics compute() {
+            if (endBlock - startBlock == 1) {
+                int startRow = firstRow(startBlock);
+                int endRow = firstRow(endBlock);
+                if (flatSrc != null) {
+                    operate(flatSrc, flatDst, startRow, endRow);
+                } else {
+                    operate(srcGrid, dstGrid, startRow, endRow);
+                }
+                if (!statistics) {
+                    return null;
+                }
+                // the rows of the block are still in the processor cache
+                return new Grid.GeoGridStatistics(dstGrid.getGrid(), startRow,
+                        endRow, 0, dstGrid.getCols());
+            } else {
+                int middle = (startBlock + endBlock) >>> 1;
+                RowBlocks first = subBlocks(startBlock, middle);
+                RowBlocks second = subBlocks(middle, endBlock);
+                invokeAll(first, second);
+                return statistics ? first.join().merge(second.join()) : null;
+            }
         }
     }
 }
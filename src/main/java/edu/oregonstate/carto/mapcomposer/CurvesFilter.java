@@ -68,6 +68,19 @@ public class CurvesFilter extends TransferFilter {
         return curves;
     }
 
+    /**
+     * Applies the curves to a single color.
+     *
+     * @param rgb The ARGB color.
+     * @return The new ARGB color.
+     */
+    public int filterRGB(int rgb) {
+        if (!initialized) {
+            initialize();
+        }
+        return filterRGB(0, 0, rgb);
+    }
+
     public String toString() {
         return "Colors/Curves...";
     }
@@ -9,6 +9,7 @@ import com.jhlabs.image.LightFilter;
 import com.jhlabs.image.ShadowFilter;
 import com.jhlabs.image.TileImageFilter;
 import edu.oregonstate.carto.grid.operators.GridBinarizeOperator;
+import edu.oregonstate.carto.grid.operators.GridOperatorChain;
 import edu.oregonstate.carto.grid.operators.GridToImageOperator;
 import edu.oregonstate.carto.importer.AdobeCurveReader;
 import edu.oregonstate.carto.mapcomposer.tilerenderer.IDWGridTileRenderer;
@@ -20,23 +21,36 @@ import edu.oregonstate.carto.tilemanager.GridTile;
 import edu.oregonstate.carto.tilemanager.ImageTile;
 import edu.oregonstate.carto.tilemanager.Tile;
 import edu.oregonstate.carto.tilemanager.TileSet;
-import edu.oregonstate.carto.tilemanager.util.Grid;
+import edu.oregonstate.carto.tilemanager.util.MosaicGrid;
+import edu.oregonstate.carto.utils.BufferPool;
 import java.awt.AlphaComposite;
-import java.awt.Color;
+import java.awt.Composite;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorConvertOp;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
+import edu.oregonstate.carto.utils.HashUtils;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 import javax.imageio.ImageIO;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlTransient;
+import javax.xml.namespace.QName;
 
 /**
  * A map layer.
@@ -105,6 +119,52 @@ public class Layer {
 
     private ColorType colorType = ColorType.NONE;
 
+    /**
+     * XML elements of properties that do not change the rendered image of a
+     * layer.
+     */
+    private static final Pattern COMPOSITING_PROPERTIES = Pattern.compile(
+            "<(visible|locked|name|blending|opacity)>[^<]*</\\1>");
+
+    /**
+     * Incremented whenever a property changes that affects the rendered image.
+     */
+    @XmlTransient
+    private final AtomicLong renderVersion = new AtomicLong();
+
+    /**
+     * Cached render hash. Null if the hash has not been computed yet.
+     */
+    @XmlTransient
+    private volatile VersionedHash renderHash;
+
+    /**
+     * Source of modification stamps shared by all layers and maps. Stamps
+     * increase with every modification, so the largest stamp of a map and its
+     * layers changes whenever the map or one of its layers is modified.
+     */
+    private static final AtomicLong modificationCounter = new AtomicLong();
+
+    /**
+     * Stamp of the last modification of any property of this layer.
+     */
+    @XmlTransient
+    private volatile long modificationStamp = nextModificationStamp();
+
+    /**
+     * A hash and the version of the properties it was computed for.
+     */
+    static final class VersionedHash {
+
+        final String hash;
+        final long version;
+
+        VersionedHash(String hash, long version) {
+            this.hash = hash;
+            this.version = version;
+        }
+    }
+
     public Layer() {
         tileSet = new TileSet(null);
     }
@@ -128,13 +188,68 @@ public class Layer {
      * @param y Vertical y coordinate of tile.
      */
     public void renderToTile(Graphics2D g2d, int z, int x, int y) {
+        g2d.setComposite(getComposite());
+        BufferedImage layerImage = renderTile(z, x, y);
+        g2d.drawImage(layerImage, null, null);
+        BufferPool.release(layerImage);
+    }
 
+    /**
+     * Returns the composite for blending this layer with the layers below.
+     *
+     * @return The composite for the blending type and opacity of this layer.
+     */
+    public Composite getComposite() {
         if (isBlendingNormal()) {
-            g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, getOpacity()));
+            return AlphaComposite.getInstance(AlphaComposite.SRC_OVER, getOpacity());
         } else {
-            g2d.setComposite(new MultiplyComposite(getOpacity()));
+            return new MultiplyComposite(getOpacity());
+        }
+    }
+
+    /**
+     * Render a tile of this layer to a new image with a transparent background.
+     * The blending type and the opacity of this layer are not applied; the
+     * returned image is to be blended with the layers below using
+     * getComposite(). This method does not modify the map and can be called
+     * concurrently for different layers. Temporary images are taken from and
+     * returned to the BufferPool.
+     *
+     * @param z Zoom level of tile
+     * @param x Horizontal x coordinate of tile.
+     * @param y Vertical y coordinate of tile.
+     * @return A new image of Tile.TILE_SIZE x Tile.TILE_SIZE pixels. Can be
+     * released to the BufferPool when it is no longer needed.
+     */
+    public BufferedImage renderTile(int z, int x, int y) {
+        return renderMetaTile(z, x, y, 1);
+    }
+
+    /**
+     * Render a square block of tiles of this layer to a new image with a
+     * transparent background. Rendering a block of tiles is faster than
+     * rendering each tile separately, because source tiles along the border
+     * of each tile are only processed once. See renderTile.
+     *
+     * @param z Zoom level of tiles
+     * @param x Horizontal x coordinate of the top-left tile.
+     * @param y Vertical y coordinate of the top-left tile.
+     * @param tilesPerSide The number of tiles along each side of the block.
+     * @return A new image of tilesPerSide * Tile.TILE_SIZE pixels. Can be
+     * released to the BufferPool when it is no longer needed.
+     */
+    public BufferedImage renderMetaTile(int z, int x, int y, int tilesPerSide) {
+        if (tilesPerSide < 1) {
+            throw new IllegalArgumentException("invalid number of tiles");
         }
 
+        // the block of tiles with a border of one tile
+        final int size = Tile.TILE_SIZE * tilesPerSide;
+        final int megaTileSize = size + Tile.TILE_SIZE * 2;
+
+        BufferedImage layerImage = BufferPool.acquireImage(size, size);
+        Graphics2D g2d = layerImage.createGraphics();
+
         BufferedImage image = null;
         if (textureTileFilePath != null) {
             //try {
@@ -144,19 +259,21 @@ public class Layer {
             //    loadTextureTile();
             //}
 
-            // scale texture patch if needed
+            // scale texture patch if needed. The scaled texture is not stored
+            // in textureTile, as other threads may be rendering this layer.
+            BufferedImage texture = textureTile;
             if (textureScale != 1f) {
                 int textureW = (int) (textureTile.getWidth() * this.textureScale);
                 int textureH = (int) (textureTile.getHeight() * this.textureScale);
                 BicubicScaleFilter scaleFilter = new BicubicScaleFilter(textureW, textureH);
-                textureTile = scaleFilter.filter(textureTile, null);
+                texture = scaleFilter.filter(textureTile, null);
             }
 
             TileImageFilter tiler = new TileImageFilter();
-            tiler.setHeight(Tile.TILE_SIZE * 3);
-            tiler.setWidth(Tile.TILE_SIZE * 3);
-            BufferedImage dst = new BufferedImage(Tile.TILE_SIZE * 3, Tile.TILE_SIZE * 3, BufferedImage.TYPE_INT_ARGB);
-            image = tiler.filter(textureTile, dst);
+            tiler.setHeight(megaTileSize);
+            tiler.setWidth(megaTileSize);
+            BufferedImage dst = BufferPool.acquireImage(megaTileSize, megaTileSize);
+            image = tiler.filter(texture, dst);
             /*} catch (IOException ex) {
              image = null;
              // FIXME
@@ -166,17 +283,27 @@ public class Layer {
 
         // load tile image
         if (isTileSetValid()) {
+            BufferPool.release(image);
             Tile tile = tileSet.getTile(z, x, y);
             if (tile instanceof ImageTile) {
-                image = new ImageTileRenderer().render(tile);
+                image = new ImageTileRenderer().render(tile, tilesPerSide);
             } else {
-                image = new ShadingGridTileRenderer().render(tile);
+                // blurring, embossing and shadows use pixels around the
+                // tiles, otherwise a border of one cell avoids seams
+                int border = gaussBlur > 0 || emboss != null || shadow != null ? Tile.TILE_SIZE : 1;
+                image = new ShadingGridTileRenderer(border).render(tile, tilesPerSide);
             }
             // convert to ARGB. All following manipulations are optimized for 
             // this modus.
             // image = ImageUtils.convertImageToARGB(image);
         }
 
+        // A layer without texture and without tile set has a single color,
+        // which is stored in constantColor instead of filling an image. The
+        // image is only created when masking, embossing or a shadow require
+        // varying pixels.
+        int constantColor = 0xFFFFFFFF;
+
         // tinting
         switch (colorType) {
             case NONE:
@@ -189,10 +316,10 @@ public class Layer {
                 if (image != null) {
                     TintFilter tintFilter = new TintFilter();
                     tintFilter.setTint(tint.getTintColor());
-                    image = tintFilter.filter(image, null);
+                    image = tintFilter.filter(image, image);
                 } else {
-                    // no pre-existing image, create a solid color image
-                    image = solidColorImage(Tile.TILE_SIZE * 3, Tile.TILE_SIZE * 3, this.tint.getTintColor());
+                    // no pre-existing image, use the solid tint color
+                    constantColor = this.tint.getTintColor().getRGB();
                 }
                 break;
 
@@ -200,19 +327,24 @@ public class Layer {
                 if (idwTileRenderer != null && isIDWGridTileURLTemplatesValid()) {
                     Tile gridTile1 = grid1TileSet.getTile(z, x, y);
                     Tile gridTile2 = grid2TileSet.getTile(z, x, y);
-                    image = idwTileRenderer.render(gridTile1, gridTile2);
+                    BufferPool.release(image);
+                    image = idwTileRenderer.render(gridTile1, gridTile2, tilesPerSide);
                 }
 
                 break;
         }
 
-        // create solid white background image if no image has been loaded 
-        if (image == null) {
-            image = createWhiteMegaTile();
+        // gradation curve
+        if (image != null) {
+            image = curve(image);
+        } else {
+            constantColor = createCurvesFilter().filterRGB(constantColor);
         }
 
-        // gradation curve
-        image = curve(image);
+        // create a solid color image if pixels will vary
+        if (image == null && (isMaskTileSetValid() || emboss != null || shadow != null)) {
+            image = solidColorImage(megaTileSize, megaTileSize, constantColor);
+        }
 
         // masking
         if (isMaskTileSetValid()) {
@@ -220,13 +352,13 @@ public class Layer {
             Tile maskTile = maskTileSet.getTile(z, x, y);
             if (maskTile instanceof GridTile && maskValues != null && !maskValues.isEmpty()) {
                 try {
-                    Grid mergedGrid = ((GridTile) maskTile).createMegaTile();
-                    Grid maskGrid = new GridBinarizeOperator(maskValues).operate(mergedGrid);
-                    maskImage = new GridToImageOperator().operate(maskGrid, 0, 1);
+                    MosaicGrid mosaic = ((GridTile) maskTile).createMosaic(tilesPerSide);
+                    GridOperatorChain chain = new GridOperatorChain(new GridBinarizeOperator(maskValues));
+                    maskImage = new GridToImageOperator().operate(chain, mosaic, 0, 1);
                 } catch (IOException ex) {
                 }
             } else {
-                maskImage = new ImageTileRenderer().render(maskTile);
+                maskImage = new ImageTileRenderer().render(maskTile, tilesPerSide);
             }
 
             if (maskImage != null) {
@@ -236,10 +368,13 @@ public class Layer {
                     blurFilter.setVRadius(this.maskBlur);
                     blurFilter.setPremultiplyAlpha(false);
                     blurFilter.setIterations(1);
-                    maskImage = blurFilter.filter(maskImage, null);
+                    BufferedImage blurredMaskImage = blurFilter.filter(maskImage, null);
+                    BufferPool.release(maskImage);
+                    maskImage = blurredMaskImage;
                 }
 
                 image = alphaChannelFromGrayImage(image, maskImage, this.invertMask);
+                BufferPool.release(maskImage);
             }
         }
 
@@ -257,32 +392,43 @@ public class Layer {
             forestLight.setIntensity(1f);
             //lightFilter.getMaterial().highlight = 10f;
             lightFilter.getMaterial().highlight = 10f;
-            image = lightFilter.filter(image, null);
+            BufferedImage embossedImage = lightFilter.filter(image,
+                    BufferPool.acquireImage(image.getWidth(), image.getHeight()));
+            BufferPool.release(image);
+            image = embossedImage;
         }
 
         // drop shadow: draw it onto the destination image
         if (this.shadow != null) {
-            BufferedImage shadowImage = ImageUtils.cloneImage(image);
             //x negative : left  -  x positive : right
             //y negative : down  -  y positive : up
             //TODO : distinguish x and y offset OR use a mouving offset !!
             ShadowFilter shadowFilter = new ShadowFilter(this.shadow.getShadowFuziness(), this.shadow.getShadowOffset(), -this.shadow.getShadowOffset(), 1f);
             shadowFilter.setShadowColor(this.shadow.getShadowColor().getRGB());
-            shadowImage = shadowFilter.filter(shadowImage, null);
-            shadowImage = shadowImage.getSubimage(Tile.TILE_SIZE, Tile.TILE_SIZE, Tile.TILE_SIZE, Tile.TILE_SIZE);
-            g2d.drawImage(shadowImage, null, null);
+            // the filter does not modify the source image
+            BufferedImage shadowImage = shadowFilter.filter(image,
+                    BufferPool.acquireImage(image.getWidth(), image.getHeight()));
+            g2d.drawImage(shadowImage.getSubimage(Tile.TILE_SIZE, Tile.TILE_SIZE, size, size), null, null);
+            BufferPool.release(shadowImage);
         }
 
-        // Gaussian Blur
-        if (this.gaussBlur > 0) {
+        // Gaussian Blur, which does not change an image with a single color
+        if (this.gaussBlur > 0 && image != null) {
             GaussianFilter gaussFilter = new GaussianFilter();
             gaussFilter.setRadius(this.gaussBlur);
             image = gaussFilter.filter(image, image);
         }
 
         // draw this layer into the destination image
-        BufferedImage tileImage = image.getSubimage(Tile.TILE_SIZE, Tile.TILE_SIZE, Tile.TILE_SIZE, Tile.TILE_SIZE);
-        g2d.drawImage(tileImage, null, null);
+        if (image != null) {
+            BufferedImage tileImage = image.getSubimage(Tile.TILE_SIZE, Tile.TILE_SIZE, size, size);
+            g2d.drawImage(tileImage, null, null);
+            BufferPool.release(image);
+        } else {
+            Arrays.fill(((DataBufferInt) layerImage.getRaster().getDataBuffer()).getData(), constantColor);
+        }
+        g2d.dispose();
+        return layerImage;
     }
 
     /**
@@ -294,9 +440,13 @@ public class Layer {
     private BufferedImage curve(BufferedImage image) {
         // TODO don't apply linear curve
         // apply curve to image
+        return createCurvesFilter().filter(image, image);
+    }
+
+    private CurvesFilter createCurvesFilter() {
         CurvesFilter curvesFilter = new CurvesFilter();
         curvesFilter.setCurves(curves);
-        return curvesFilter.filter(image, null);
+        return curvesFilter;
     }
 
     /**
@@ -334,24 +484,12 @@ public class Layer {
         return image;
     }
 
-    private static BufferedImage solidColorImage(int width, int height, Color color) {
-        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g2d = image.createGraphics();
-        g2d.setColor(color);
-        g2d.fillRect(0, 0, width, height);
-        g2d.dispose();
+    private static BufferedImage solidColorImage(int width, int height, int argb) {
+        BufferedImage image = BufferPool.acquireImage(width, height);
+        Arrays.fill(((DataBufferInt) image.getRaster().getDataBuffer()).getData(), argb);
         return image;
     }
 
-    private static BufferedImage createWhiteMegaTile() {
-        BufferedImage whiteMegaTile = new BufferedImage(Tile.TILE_SIZE * 3, Tile.TILE_SIZE * 3, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = whiteMegaTile.createGraphics();
-        g.setColor(Color.WHITE);
-        g.fillRect(0, 0, Tile.TILE_SIZE * 3, Tile.TILE_SIZE * 3);
-        g.dispose();
-        return whiteMegaTile;
-    }
-
     /**
      * @return the visible
      */
@@ -364,6 +502,7 @@ public class Layer {
      */
     public void setVisible(boolean visible) {
         this.visible = visible;
+        modificationStamp = nextModificationStamp();
     }
 
     /**
@@ -378,6 +517,7 @@ public class Layer {
      */
     public void setLocked(boolean locked) {
         this.locked = locked;
+        modificationStamp = nextModificationStamp();
     }
 
     /**
@@ -392,6 +532,7 @@ public class Layer {
      */
     public void setName(String name) {
         this.name = name;
+        modificationStamp = nextModificationStamp();
     }
 
     /**
@@ -401,12 +542,36 @@ public class Layer {
         return tileSet;
     }
 
+    /**
+     * Returns the tile sets from which tiles are read when this layer is
+     * rendered.
+     *
+     * @return The tile sets with valid URL templates that are used.
+     */
+    public List<TileSet> getSourceTileSets() {
+        List<TileSet> tileSets = new ArrayList<>();
+        if (isTileSetValid()) {
+            tileSets.add(tileSet);
+        }
+        if (colorType == ColorType.INTERPOLATE && idwTileRenderer != null
+                && isIDWGridTileURLTemplatesValid()) {
+            tileSets.add(grid1TileSet);
+            tileSets.add(grid2TileSet);
+        }
+        if (isMaskTileSetValid()) {
+            tileSets.add(maskTileSet);
+        }
+        return tileSets;
+    }
+
     public void setTileSetURLTemplate(String urlTemplate) {
         tileSet.setUrlTemplate(urlTemplate);
+        renderingChanged();
     }
 
     public void setTileSetTMSSchema(boolean tmsSchema) {
         tileSet.setTMSSchema(tmsSchema);
+        renderingChanged();
     }
 
     public boolean isTileSetValid() {
@@ -431,6 +596,7 @@ public class Layer {
         } else {
             loadTextureTile();
         }
+        renderingChanged();
     }
 
     public boolean isTextureTileFilePathValid() {
@@ -454,10 +620,12 @@ public class Layer {
 
     public void setMaskTileSetURLTemplate(String maskTileSetURL) {
         maskTileSet.setUrlTemplate(maskTileSetURL);
+        renderingChanged();
     }
 
     public void setMaskTileSetTMSSchema(boolean tmsSchema) {
         maskTileSet.setTMSSchema(tmsSchema);
+        renderingChanged();
     }
 
     /**
@@ -475,6 +643,7 @@ public class Layer {
      */
     public void setBlending(BlendType blending) {
         this.blending = blending;
+        modificationStamp = nextModificationStamp();
     }
 
     /**
@@ -489,6 +658,7 @@ public class Layer {
      */
     public void setOpacity(float opacity) {
         this.opacity = opacity;
+        modificationStamp = nextModificationStamp();
     }
 
     /**
@@ -507,6 +677,7 @@ public class Layer {
             for (Curve c : curves) {
                 c.normalize();
             }
+            renderingChanged();
         } catch (IOException ex) {
             Logger.getLogger(Layer.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -518,10 +689,12 @@ public class Layer {
 
     public void setCurve(Curve curve) {
         curves = new Curve[]{curve};
+        renderingChanged();
     }
 
     public void setCurves(Curve[] curves) {
         this.curves = curves;
+        renderingChanged();
     }
 
     /**
@@ -536,6 +709,7 @@ public class Layer {
      */
     public void setTextureScale(float textureScale) {
         this.textureScale = textureScale;
+        renderingChanged();
     }
 
     /**
@@ -550,6 +724,7 @@ public class Layer {
      */
     public void setInvertMask(boolean invertMask) {
         this.invertMask = invertMask;
+        renderingChanged();
     }
 
     /**
@@ -564,6 +739,7 @@ public class Layer {
      */
     public void setMaskBlur(float maskBlur) {
         this.maskBlur = maskBlur;
+        renderingChanged();
     }
 
     public boolean isMaskTileSetValid() {
@@ -589,6 +765,7 @@ public class Layer {
      */
     public void setTint(Tint tint) {
         this.tint = tint;
+        renderingChanged();
     }
 
     /**
@@ -603,6 +780,7 @@ public class Layer {
      */
     public void setShadow(Shadow shadow) {
         this.shadow = shadow;
+        renderingChanged();
     }
 
     /**
@@ -617,6 +795,7 @@ public class Layer {
      */
     public void setEmboss(Emboss emboss) {
         this.emboss = emboss;
+        renderingChanged();
     }
 
     //When I refactored/encapsulated "gaussBlur", it put these under the Layer
@@ -633,6 +812,7 @@ public class Layer {
      */
     public void setGaussBlur(float gaussBlur) {
         this.gaussBlur = gaussBlur;
+        renderingChanged();
     }
 
     @Override
@@ -643,6 +823,7 @@ public class Layer {
     public void setIDWGridTileURLTemplates(String urlTemplate1, String urlTemplate2) {
         grid1TileSet.setUrlTemplate(urlTemplate1);
         grid2TileSet.setUrlTemplate(urlTemplate2);
+        renderingChanged();
     }
 
     public boolean isIDWGridTileURLTemplatesValid() {
@@ -667,6 +848,7 @@ public class Layer {
             maskValues = maskValues.trim();
         }
         this.maskValues = maskValues;
+        renderingChanged();
     }
 
     /**
@@ -681,6 +863,7 @@ public class Layer {
      */
     public void setColorType(ColorType colorType) {
         this.colorType = colorType;
+        renderingChanged();
     }
 
     /**
@@ -704,4 +887,55 @@ public class Layer {
         return grid2TileSet;
     }
 
+    /**
+     * Must be called after a property of this layer that affects the rendered
+     * image has been changed without calling a setter of this layer, for
+     * example, after a Curve, Tint, Shadow or Emboss has been modified in place.
+     * The setters of this layer call this method.
+     */
+    public void renderingChanged() {
+        renderVersion.incrementAndGet();
+        modificationStamp = nextModificationStamp();
+    }
+
+    static long nextModificationStamp() {
+        return modificationCounter.incrementAndGet();
+    }
+
+    /**
+     * Returns the stamp of the last modification of any property of this
+     * layer, including properties that are applied when compositing layers.
+     *
+     * @return A stamp that is larger than all stamps handed out before the
+     * last modification.
+     */
+    long getModificationStamp() {
+        return modificationStamp;
+    }
+
+    /**
+     * Returns a hash of the XML description of this layer, excluding properties
+     * that do not change the rendered image (visibility, lock, name, blending
+     * and opacity). The hash is cached until renderingChanged() is called.
+     *
+     * @return A hexadecimal MD5 hash.
+     * @throws JAXBException
+     */
+    public String getRenderHash() throws JAXBException {
+        // read the version before marshalling, such that a concurrent change
+        // results in a mismatching version and a new hash on the next call
+        long version = renderVersion.get();
+        VersionedHash cached = renderHash;
+        if (cached == null || cached.version != version) {
+            Marshaller m = Map.getJAXBContext().createMarshaller();
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            m.marshal(new JAXBElement<>(new QName("layer"), Layer.class, this), os);
+            String xml = new String(os.toByteArray(), StandardCharsets.UTF_8);
+            xml = COMPOSITING_PROPERTIES.matcher(xml).replaceAll("");
+            cached = new VersionedHash(HashUtils.md5(xml.getBytes(StandardCharsets.UTF_8)), version);
+            renderHash = cached;
+        }
+        return cached.hash;
+    }
+
 }
@@ -0,0 +1,92 @@
+package edu.oregonstate.carto.mapcomposer;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.bind.JAXBException;
+
+/**
+ * Cache for images of single layers rendered by Layer.renderTile. When the
+ * user edits one layer, only this layer needs to be rendered again, and the
+ * cached images of all other layers are composited with the new image.
+ *
+ * Images are identified by their tile coordinates and the render hash of the
+ * layer (see Layer.getRenderHash). Properties that are applied when
+ * compositing the layers (visibility, blending and opacity) and properties
+ * that do not affect the rendered image (name and lock) are excluded from the
+ * hash, such that changing the opacity of a layer does not require rendering
+ * the layer.
+ *
+ * Cached images are shared and must not be modified.
+ */
+public class LayerTileCache {
+
+    /**
+     * Maximum total size of the cached images in bytes.
+     */
+    private static final int MAX_MEMORY_BYTES = 64 * 1024 * 1024;
+
+    private static final LayerTileCache singleton = new LayerTileCache();
+
+    private final ConcurrentMap<String, BufferedImage> map = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_MEMORY_BYTES)
+            .weigher(new Weigher<String, BufferedImage>() {
+                @Override
+                public int weigh(String key, BufferedImage image) {
+                    return image.getWidth() * image.getHeight() * 4;
+                }
+            })
+            .<String, BufferedImage>build().asMap();
+
+    private LayerTileCache() {
+    }
+
+    /**
+     * Returns the cache singleton.
+     *
+     * @return the singleton instance
+     */
+    public static LayerTileCache getInstance() {
+        return singleton;
+    }
+
+    /**
+     * Removes all images from the cache.
+     */
+    public void clear() {
+        map.clear();
+    }
+
+    /**
+     * Returns the rendered image of a layer. The layer is rendered and the
+     * image is added to the cache if it is not in the cache.
+     *
+     * @param layer the layer to render
+     * @param z zoom level
+     * @param x horizontal tile coordinate
+     * @param y vertical tile coordinate
+     * @return the image of the layer, which must not be modified.
+     */
+    public BufferedImage renderTile(Layer layer, int z, int x, int y) {
+        String hash;
+        try {
+            hash = layer.getRenderHash();
+        } catch (JAXBException ex) {
+            // cannot identify the layer, so do not cache the image
+            Logger.getLogger(LayerTileCache.class.getName()).log(Level.WARNING,
+                    "Cannot compute layer hash", ex);
+            return layer.renderTile(z, x, y);
+        }
+
+        String key = hash + "/" + z + "/" + x + "/" + y;
+        BufferedImage image = map.get(key);
+        if (image == null) {
+            image = layer.renderTile(z, x, y);
+            map.put(key, image);
+        }
+        return image;
+    }
+}
@@ -1,10 +1,12 @@
 package edu.oregonstate.carto.mapcomposer;
 
 import edu.oregonstate.carto.mapcomposer.tilerenderer.IDWGridTileRenderer;
+import edu.oregonstate.carto.mapcomposer.utils.ImageCompositor;
+import edu.oregonstate.carto.tilemanager.DecodedTileCache;
 import edu.oregonstate.carto.tilemanager.Tile;
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
+import edu.oregonstate.carto.tilemanager.TileSet;
+import edu.oregonstate.carto.utils.BufferPool;
+import edu.oregonstate.carto.utils.HashUtils;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -17,6 +19,16 @@ import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.bind.JAXBContext;
@@ -67,56 +79,352 @@ public class Map {
     @XmlElement(name = "layer")
     private final ArrayList<Layer> layers = new ArrayList<>();
 
+    /**
+     * Cached hash of the XML description of this map. Null if the hash has not
+     * been computed yet.
+     */
+    private volatile Layer.VersionedHash styleHash;
+
+    /**
+     * Stamp of the last change to the list of layers or the last call to
+     * styleChanged().
+     */
+    private volatile long modificationStamp = Layer.nextModificationStamp();
+
     public Map() {
         Map.map = this;
     }
 
+    /**
+     * Number of threads for rendering the layers of a tile concurrently. Can
+     * be initialized with the mapcomposer.layerRenderThreads system property.
+     * Defaults to the number of available processors.
+     */
+    private static int layerRenderThreads = Math.max(1, Integer.getInteger(
+            "mapcomposer.layerRenderThreads",
+            Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * If true, rendered images of layers are cached by LayerTileCache. Can be
+     * initialized with the mapcomposer.layerCaching system property.
+     */
+    private static volatile boolean layerCaching = Boolean.getBoolean("mapcomposer.layerCaching");
+
+    /**
+     * Executor shared by all maps for rendering layers concurrently. Null if
+     * layers are rendered sequentially.
+     */
+    private static ExecutorService layerRenderExecutor;
+
     /**
      * Renders an image for one tile.
      *
      * @param z Zoom level of the tile.
      * @param x X coordinate of the tile.
      * @param y Y coordinate of the tile.
-     * @return The rendered image.
+     * @return The rendered image. Can be released to the BufferPool when it is
+     * no longer needed.
      */
     public BufferedImage generateTile(int z, int x, int y) {
+        return generateMetaTile(z, x, y, 1);
+    }
 
-        BufferedImage tileImage = new BufferedImage(
-                Tile.TILE_SIZE,
-                Tile.TILE_SIZE,
-                BufferedImage.TYPE_INT_ARGB);
+    /**
+     * Renders an image for a square block of tiles. The image can be cut into
+     * tiles. This is faster than rendering each tile separately.
+     *
+     * @param z Zoom level of the tiles.
+     * @param x X coordinate of the top-left tile.
+     * @param y Y coordinate of the top-left tile.
+     * @param tilesPerSide The number of tiles along each side of the block.
+     * @return The rendered image of tilesPerSide * Tile.TILE_SIZE pixels. Can
+     * be released to the BufferPool when it is no longer needed.
+     * @throws CancellationException If the calling thread is interrupted
+     * while layers are rendered. The interrupt flag of the thread is set.
+     */
+    public BufferedImage generateMetaTile(int z, int x, int y, int tilesPerSide) {
+
+        int size = Tile.TILE_SIZE * tilesPerSide;
         if (hasVisibleLayer()) {
-            Graphics2D g2d = tileImage.createGraphics();
-            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-            g2d.setColor(Color.WHITE);
-            g2d.fillRect(0, 0, Tile.TILE_SIZE, Tile.TILE_SIZE);
-
-            for (int i = layers.size() - 1; i >= 0; i--) {
-                Layer layer = layers.get(i);
-                if (!layer.isVisible()) {
+            Layer[] layersArray = getLayers();
+            // the layer cache only stores single tiles
+            boolean caching = layerCaching && tilesPerSide == 1;
+            BufferedImage[] layerImages = renderLayers(layersArray, caching,
+                    z, x, y, tilesPerSide);
+            BufferedImage tileImage = BufferPool.acquireImage(size, size);
+
+            // white background
+            Arrays.fill(ImageCompositor.pixels(tileImage), 0xFFFFFFFF);
+
+            // composite the layers in order, starting with the bottom layer
+            for (int i = layersArray.length - 1; i >= 0; i--) {
+                if (layerImages[i] != null) {
+                    Layer layer = layersArray[i];
+                    ImageCompositor.composite(tileImage, layerImages[i],
+                            layer.getBlending(), layer.getOpacity());
+                }
+            }
+
+            // cached layer images are shared and must not be reused
+            if (!caching) {
+                for (BufferedImage layerImage : layerImages) {
+                    BufferPool.release(layerImage);
+                }
+            }
+            return tileImage;
+        }
+        return BufferPool.acquireImage(size, size);
+    }
+
+    /**
+     * Fetches and decodes the source tiles required for rendering a block of
+     * tiles, including the border of one tile around the block. Rendering the
+     * block after prefetching does not wait for source tiles, as long as the
+     * tiles remain in the DecodedTileCache.
+     *
+     * @param z Zoom level of the tiles.
+     * @param x X coordinate of the top-left tile.
+     * @param y Y coordinate of the top-left tile.
+     * @param tilesPerSide The number of tiles along each side of the block.
+     */
+    public void prefetchMetaTile(int z, int x, int y, int tilesPerSide) {
+        DecodedTileCache decodedTiles = DecodedTileCache.getInstance();
+        for (Layer layer : getLayers()) {
+            if (!layer.isVisible()) {
+                continue;
+            }
+            for (TileSet tileSet : layer.getSourceTileSets()) {
+                if (!tileSet.isDecodedTileCaching()) {
                     continue;
                 }
-                layer.renderToTile(g2d, z, x, y);
+                for (int row = -1; row <= tilesPerSide; row++) {
+                    for (int col = -1; col <= tilesPerSide; col++) {
+                        decodedTiles.prefetch(tileSet.getTile(z, x + col, y + row));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Renders each visible layer to a separate image. Layers are rendered
+     * concurrently by the shared executor, except for one layer that is
+     * rendered by the calling thread.
+     *
+     * @param layers The layers to render.
+     * @param caching If true, images are taken from the LayerTileCache.
+     * @param z Zoom level of the tiles.
+     * @param x X coordinate of the top-left tile.
+     * @param y Y coordinate of the top-left tile.
+     * @param tilesPerSide The number of tiles along each side of the block.
+     * @return An image for each layer. Null for invisible layers.
+     * @throws CancellationException If the calling thread is interrupted. The
+     * images of layers that have already been rendered are released.
+     */
+    private static BufferedImage[] renderLayers(Layer[] layers,
+            final boolean caching, final int z, final int x, final int y,
+            final int tilesPerSide) {
+
+        BufferedImage[] images = new BufferedImage[layers.length];
+        ExecutorService executor = getLayerRenderExecutor();
+        if (executor == null) {
+            for (int i = 0; i < layers.length; i++) {
+                if (layers[i].isVisible()) {
+                    images[i] = renderLayer(layers[i], caching, z, x, y, tilesPerSide);
+                }
+            }
+            return images;
+        }
+
+        // submit all visible layers except the first one to the executor
+        List<Future<BufferedImage>> futures = new ArrayList<>(
+                Collections.<Future<BufferedImage>>nCopies(layers.length, null));
+        int inlineLayerID = -1;
+        for (int i = 0; i < layers.length; i++) {
+            final Layer layer = layers[i];
+            if (!layer.isVisible()) {
+                continue;
+            }
+            if (inlineLayerID < 0) {
+                inlineLayerID = i;
+                continue;
+            }
+            futures.set(i, executor.submit(new Callable<BufferedImage>() {
+                @Override
+                public BufferedImage call() {
+                    return renderLayer(layer, caching, z, x, y, tilesPerSide);
+                }
+            }));
+        }
+
+        boolean completed = false;
+        try {
+            // render the first layer in the calling thread
+            if (inlineLayerID >= 0) {
+                images[inlineLayerID] = renderLayer(layers[inlineLayerID], caching,
+                        z, x, y, tilesPerSide);
+            }
+            for (int i = 0; i < layers.length; i++) {
+                Future<BufferedImage> future = futures.get(i);
+                if (future != null) {
+                    images[i] = future.get();
+                }
+            }
+            completed = true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            CancellationException cancellation = new CancellationException("layer rendering interrupted");
+            cancellation.initCause(ex);
+            throw cancellation;
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            if (!completed) {
+                // stop layers that are still rendering after an exception,
+                // and release the images of the incomplete tile
+                for (int i = 0; i < layers.length; i++) {
+                    Future<BufferedImage> future = futures.get(i);
+                    if (future != null && !future.cancel(true) && images[i] == null) {
+                        images[i] = doneLayerImage(future);
+                    }
+                }
+                if (!caching) {
+                    for (BufferedImage image : images) {
+                        BufferPool.release(image);
+                    }
+                }
             }
         }
-        return tileImage;
+        return images;
+    }
+
+    /**
+     * Returns the image of a layer that has been rendered, or null if the
+     * rendering failed.
+     */
+    private static BufferedImage doneLayerImage(Future<BufferedImage> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException | CancellationException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Renders a layer or returns the cached image of the layer.
+     */
+    private static BufferedImage renderLayer(Layer layer, boolean caching,
+            int z, int x, int y, int tilesPerSide) {
+        if (caching) {
+            return LayerTileCache.getInstance().renderTile(layer, z, x, y);
+        }
+        return layer.renderMetaTile(z, x, y, tilesPerSide);
+    }
+
+    /**
+     * Returns whether rendered images of layers are cached.
+     *
+     * @return True if layer images are cached.
+     */
+    public static boolean isLayerCaching() {
+        return layerCaching;
+    }
+
+    /**
+     * Sets whether rendered images of layers are cached. Caching is useful
+     * for interactive editing, where typically a single layer changes between
+     * two renderings of the same tile. Cached images are released when
+     * caching is disabled.
+     *
+     * @param caching True if layer images are to be cached.
+     */
+    public static void setLayerCaching(boolean caching) {
+        layerCaching = caching;
+        if (!caching) {
+            LayerTileCache.getInstance().clear();
+        }
+    }
+
+    /**
+     * Returns the executor for rendering layers concurrently.
+     *
+     * @return The executor or null if layers are rendered sequentially.
+     */
+    private static synchronized ExecutorService getLayerRenderExecutor() {
+        if (layerRenderThreads <= 1) {
+            return null;
+        }
+        if (layerRenderExecutor == null) {
+            layerRenderExecutor = Executors.newFixedThreadPool(layerRenderThreads,
+                    new ThreadFactory() {
+                        private int threadCounter = 0;
+
+                        @Override
+                        public synchronized Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "Layer Renderer " + threadCounter++);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return layerRenderExecutor;
+    }
+
+    /**
+     * Returns the number of threads used for rendering layers concurrently.
+     *
+     * @return The number of threads. 1 if layers are rendered sequentially.
+     */
+    public static synchronized int getLayerRenderThreads() {
+        return layerRenderThreads;
+    }
+
+    /**
+     * Sets the number of threads for rendering the layers of a tile
+     * concurrently. The threads are shared by all maps. A large value reduces
+     * the time for rendering a single tile; a value of 1 renders layers
+     * sequentially, which increases throughput when many tiles are rendered
+     * concurrently, for example, by a server.
+     *
+     * @param threads The number of threads. Must be 1 or larger.
+     */
+    public static synchronized void setLayerRenderThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("invalid number of threads");
+        }
+        if (threads != layerRenderThreads && layerRenderExecutor != null) {
+            layerRenderExecutor.shutdown();
+            layerRenderExecutor = null;
+        }
+        layerRenderThreads = threads;
     }
 
     public void addLayer(Layer layer) {
         layers.add(layer);
+        styleChanged();
     }
 
     public void addLayer(int index, Layer layer) {
         layers.add(index, layer);
+        styleChanged();
     }
 
     public void removeLayer(Layer layer) {
         layers.remove(layer);
+        styleChanged();
     }
 
     public Layer removeLayer(int index) {
-        return layers.remove(index);
+        Layer layer = layers.remove(index);
+        styleChanged();
+        return layer;
     }
 
     public Layer getLayer(int index) {
@@ -142,11 +450,59 @@ public class Map {
 
     public void removeAllLayers() {
         layers.clear();
+        styleChanged();
+    }
+
+    /**
+     * The JAXB context is expensive to create and thread-safe, so it is
+     * shared by all maps.
+     */
+    private static JAXBContext jaxbContext;
+
+    static synchronized JAXBContext getJAXBContext() throws JAXBException {
+        if (jaxbContext == null) {
+            String packageName = Map.class.getPackage().getName();
+            jaxbContext = JAXBContext.newInstance(packageName, Map.class.getClassLoader());
+        }
+        return jaxbContext;
     }
 
-    private static JAXBContext getJAXBContext() throws JAXBException {
-        String packageName = Map.class.getPackage().getName();
-        return JAXBContext.newInstance(packageName, Map.class.getClassLoader());
+    /**
+     * Returns a hash of the XML description of this map. The hash changes when
+     * a layer is added, removed or moved, or when any property of a layer
+     * changes that is stored in the XML description. The hash is cached until
+     * a setter of a layer or styleChanged() is called.
+     *
+     * @return A hexadecimal MD5 hash.
+     * @throws JAXBException
+     */
+    public String getStyleHash() throws JAXBException {
+        // read the stamp before marshalling, such that a concurrent change
+        // results in a mismatching stamp and a new hash on the next call
+        long stamp = modificationStamp;
+        for (Layer layer : getLayers()) {
+            stamp = Math.max(stamp, layer.getModificationStamp());
+        }
+        Layer.VersionedHash cached = styleHash;
+        if (cached == null || cached.version != stamp) {
+            cached = new Layer.VersionedHash(HashUtils.md5(marshal()), stamp);
+            styleHash = cached;
+        }
+        return cached.hash;
+    }
+
+    /**
+     * Discards the cached hash of the XML description of this map and the
+     * cached render hashes of its layers. Must be called after a layer has
+     * been modified without calling a setter of the layer, for example, after
+     * a Curve, Tint, Shadow or Emboss has been modified in place. Adding and
+     * removing layers calls this method.
+     */
+    public void styleChanged() {
+        modificationStamp = Layer.nextModificationStamp();
+        for (Layer layer : getLayers()) {
+            layer.renderingChanged();
+        }
     }
 
     public static Map unmarshal(InputStream is) throws JAXBException {
@@ -0,0 +1,314 @@
+package edu.oregonstate.carto.mapcomposer;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import edu.oregonstate.carto.tilemanager.TileEncoder;
+import edu.oregonstate.carto.utils.BufferPool;
+import edu.oregonstate.carto.utils.FileUtils;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.bind.JAXBException;
+
+/**
+ * Cache for PNG encoded map tiles rendered by Map.generateTile. Tiles are
+ * identified by their tile coordinates and a hash of the XML description of
+ * the map. Changing any property of the map or one of its layers with a setter
+ * changes the hash, so that outdated tiles are never returned. Map.styleChanged
+ * must be called after a property of a layer has been modified in place.
+ *
+ * The cache has an in-memory tier with a least recently used (LRU) eviction
+ * policy, and an optional disk tier. The disk tier is enabled with
+ * setDirectory or with the mapcomposer.tileCacheDirectory system property.
+ * Tiles on disk are stored in directory/hash/z/x/y.png. When the files exceed
+ * the maximum size of the disk tier, entire hash directories are deleted,
+ * starting with the directory that has least recently received a tile. The
+ * maximum size can be initialized with the mapcomposer.tileCacheMaxBytes
+ * system property.
+ */
+public class RenderedTileCache {
+
+    /**
+     * Maximum total size of the PNG data in the in-memory tier in bytes.
+     */
+    private static final int MAX_MEMORY_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Default maximum total size of the files in the disk tier in bytes.
+     */
+    private static final long DEFAULT_MAX_DISK_BYTES = 1024L * 1024 * 1024;
+
+    private static final RenderedTileCache singleton = new RenderedTileCache();
+
+    private final ConcurrentMap<String, byte[]> map = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_MEMORY_BYTES)
+            .weigher(new Weigher<String, byte[]>() {
+                @Override
+                public int weigh(String key, byte[] png) {
+                    return png.length;
+                }
+            })
+            .<String, byte[]>build().asMap();
+
+    /**
+     * Directory for the disk tier or null if the disk tier is disabled.
+     */
+    private volatile File directory;
+
+    /**
+     * Maximum total size of the files in the disk tier in bytes.
+     */
+    private volatile long maxDiskBytes = Long.getLong(
+            "mapcomposer.tileCacheMaxBytes", DEFAULT_MAX_DISK_BYTES);
+
+    /**
+     * Total size of the files in the disk tier, or -1 if the directory has not
+     * been measured yet. Guarded by this.
+     */
+    private long diskBytes = -1;
+
+    /**
+     * Fast PNG encoder. Low compression levels are sufficient for tiles that
+     * are displayed locally.
+     */
+    private final TileEncoder encoder = new TileEncoder();
+
+    private RenderedTileCache() {
+        encoder.setCompressionLevel(1);
+
+        String dir = System.getProperty("mapcomposer.tileCacheDirectory");
+        if (dir != null && !dir.trim().isEmpty()) {
+            directory = new File(dir.trim());
+        }
+    }
+
+    /**
+     * Returns the cache singleton.
+     *
+     * @return the singleton instance
+     */
+    public static RenderedTileCache getInstance() {
+        return singleton;
+    }
+
+    /**
+     * Returns the directory of the disk tier.
+     *
+     * @return the directory or null if the disk tier is disabled.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Sets the directory of the disk tier.
+     *
+     * @param directory the directory or null to disable the disk tier.
+     */
+    public synchronized void setDirectory(File directory) {
+        this.directory = directory;
+        diskBytes = -1;
+    }
+
+    /**
+     * Returns the maximum total size of the files in the disk tier.
+     *
+     * @return the size in bytes
+     */
+    public long getMaxDiskBytes() {
+        return maxDiskBytes;
+    }
+
+    /**
+     * Sets the maximum total size of the files in the disk tier. Files are
+     * deleted when the next tile is written to disk.
+     *
+     * @param maxDiskBytes the size in bytes
+     */
+    public void setMaxDiskBytes(long maxDiskBytes) {
+        if (maxDiskBytes < 0) {
+            throw new IllegalArgumentException("negative size");
+        }
+        this.maxDiskBytes = maxDiskBytes;
+    }
+
+    /**
+     * Removes all tiles from the in-memory tier. Files on disk are not deleted.
+     */
+    public void clear() {
+        map.clear();
+    }
+
+    /**
+     * Returns a PNG encoded tile. The tile is rendered and added to the cache
+     * if it is not in the cache.
+     *
+     * @param m the map to render
+     * @param z zoom level
+     * @param x horizontal tile coordinate
+     * @param y vertical tile coordinate
+     * @return PNG data
+     * @throws IOException
+     */
+    public byte[] getPNG(Map m, int z, int x, int y) throws IOException {
+        String hash;
+        try {
+            hash = m.getStyleHash();
+        } catch (JAXBException ex) {
+            // cannot identify the map, so do not cache the tile
+            Logger.getLogger(RenderedTileCache.class.getName()).log(Level.WARNING,
+                    "Cannot compute map hash", ex);
+            return encode(m.generateTile(z, x, y));
+        }
+
+        String key = hash + "/" + z + "/" + x + "/" + y;
+        byte[] png = map.get(key);
+        if (png != null) {
+            return png;
+        }
+
+        File dir = directory;
+        File file = dir == null ? null : new File(dir, key + ".png");
+        png = file == null ? null : read(file);
+        if (png == null) {
+            png = encode(m.generateTile(z, x, y));
+            if (file != null) {
+                FileUtils.writeAtomically(png, file);
+                fileAdded(dir, hash, png.length);
+            }
+        }
+        map.put(key, png);
+        return png;
+    }
+
+    /**
+     * Reads a tile from the disk tier.
+     *
+     * @return the PNG data or null if the file does not exist
+     */
+    private static byte[] read(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (NoSuchFileException ex) {
+            // deleted by the eviction of the disk tier
+            return null;
+        }
+    }
+
+    /**
+     * Updates the size of the disk tier after a tile has been written and
+     * deletes hash directories if the disk tier is too large. The directory
+     * of the current hash is deleted last.
+     */
+    private synchronized void fileAdded(File dir, String hash, long bytes) {
+        if (dir != directory) {
+            return;
+        }
+        File hashDir = new File(dir, hash);
+        hashDir.setLastModified(System.currentTimeMillis());
+        diskBytes = diskBytes < 0 ? size(dir) : diskBytes + bytes;
+        if (diskBytes <= maxDiskBytes) {
+            return;
+        }
+        File[] hashDirs = dir.listFiles();
+        if (hashDirs == null) {
+            return;
+        }
+        Arrays.sort(hashDirs, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        for (int i = 0; i < hashDirs.length && diskBytes > maxDiskBytes; i++) {
+            if (hashDirs[i].isDirectory() && !hashDirs[i].equals(hashDir)) {
+                diskBytes -= delete(hashDirs[i]);
+            }
+        }
+        if (diskBytes > maxDiskBytes) {
+            diskBytes -= delete(hashDir);
+        }
+    }
+
+    /**
+     * Returns the total size of the files in a directory and its
+     * sub-directories.
+     */
+    private static long size(File dir) {
+        final long[] size = new long[1];
+        try {
+            Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    size[0] += attrs.size();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(RenderedTileCache.class.getName()).log(Level.WARNING,
+                    "Cannot measure tile cache directory", ex);
+        }
+        return size[0];
+    }
+
+    /**
+     * Deletes a directory with all files and sub-directories.
+     *
+     * @return the total size of the deleted files
+     */
+    private static long delete(File dir) {
+        final long[] size = new long[1];
+        try {
+            Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (Files.deleteIfExists(file)) {
+                        size[0] += attrs.size();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path d, IOException ex) throws IOException {
+                    Files.deleteIfExists(d);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            // another thread may have added a file in the meantime
+            Logger.getLogger(RenderedTileCache.class.getName()).log(Level.WARNING,
+                    "Cannot delete tile cache directory " + dir, ex);
+        }
+        return size[0];
+    }
+
+    private byte[] encode(BufferedImage image) throws IOException {
+        byte[] png = encoder.encode(image);
+        BufferPool.release(image);
+        return png;
+    }
+}
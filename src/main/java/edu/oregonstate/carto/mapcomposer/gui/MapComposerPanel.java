@@ -193,6 +193,9 @@ public class MapComposerPanel extends javax.swing.JPanel {
     public MapComposerPanel() {
         readExtentPreferences();
         initComponents();
+
+        // only the edited layer needs to be rendered when tiles are reloaded
+        Map.setLayerCaching(true);
         try {
             this.undo = new Undo(map.marshal());
         } catch (JAXBException ex) {
@@ -376,6 +379,9 @@ public class MapComposerPanel extends javax.swing.JPanel {
     public void reloadMapTiles() {
         assert SwingUtilities.isEventDispatchThread();
 
+        // a layer may have changed
+        map.styleChanged();
+
         final String colorPointsStr = canAddColorPoints() ? getColorPointsOfSelectedLayer() : null;
         System.out.println("Tiles reload " + ++reloadTilesCounter + " " + colorPointsStr != null ? colorPointsStr : "");
 
@@ -2012,7 +2018,7 @@ public class MapComposerPanel extends javax.swing.JPanel {
                 previewExtent.getMaxY());
         tileGenerator.setZoomRange(previewMinZoom, previewMaxZoom);
         worker.setMaxTimeWithoutDialogMilliseconds(0);
-        worker.setIndeterminate(true);
+        worker.setIndeterminate(false);
         worker.setMessage("");
         worker.execute();
     }
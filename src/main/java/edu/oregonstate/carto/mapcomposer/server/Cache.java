@@ -2,7 +2,8 @@ package edu.oregonstate.carto.mapcomposer.server;
 
 import edu.oregonstate.carto.mapcomposer.Layer;
 import edu.oregonstate.carto.mapcomposer.Map;
-import java.awt.image.BufferedImage;
+import edu.oregonstate.carto.mapcomposer.RenderedTileCache;
+import java.io.IOException;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.PathParam;
@@ -33,13 +34,13 @@ public class Cache {
             @PathParam("z") int z,
             @PathParam("x") int x,
             @PathParam("y") int y,
-            @QueryParam("source") String source) { //NH Why does this work? Numbers are put in the format.
+            @QueryParam("source") String source) throws IOException { //NH Why does this work? Numbers are put in the format.
 
         Map map = new Map();
         Layer layer = new Layer(null, source);
         map.addLayer(layer);
-        BufferedImage img = map.generateTile(z, x, y);
+        byte[] png = RenderedTileCache.getInstance().getPNG(map, z, x, y);
 
-        return Response.ok(img).build();
+        return Response.ok(png, "image/png").build();
     }
 }
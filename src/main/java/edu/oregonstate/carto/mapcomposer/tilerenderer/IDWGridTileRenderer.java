@@ -4,6 +4,8 @@ import edu.oregonstate.carto.tilemanager.GridTile;
 import edu.oregonstate.carto.tilemanager.Tile;
 import edu.oregonstate.carto.tilemanager.TileRenderer;
 import edu.oregonstate.carto.tilemanager.util.Grid;
+import edu.oregonstate.carto.tilemanager.util.MosaicGrid;
+import edu.oregonstate.carto.utils.BufferPool;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 import java.io.IOException;
@@ -94,6 +96,39 @@ public class IDWGridTileRenderer implements TileRenderer {
         }
     }
 
+    /**
+     * Renders an image from two views of blocks of tiles. The values are read
+     * from the tiles without copying them to a grid.
+     *
+     * @param img The image to render to.
+     * @param attribute1Grid The first attribute.
+     * @param attribute2Grid The second attribute. Must have the same tile
+     * layout as the first attribute.
+     */
+    public void renderImage(BufferedImage img, MosaicGrid attribute1Grid, MosaicGrid attribute2Grid) {
+        int cols = img.getWidth();
+        int rows = img.getHeight();
+        int[] imageBuffer = ((DataBufferInt) (img.getRaster().getDataBuffer())).getData();
+
+        for (int row = 0; row < rows; row++) {
+            int length;
+            for (int col = 0; col < cols; col += length) {
+                // rows of tiles, null for missing tiles
+                float[] attr1Row = attribute1Grid.rowSegment(col, row);
+                float[] attr2Row = attribute2Grid.rowSegment(col, row);
+                int start = attribute1Grid.segmentStart(col);
+                length = attribute1Grid.segmentLength(col);
+                for (int i = 0; i < length; i++) {
+                    double attr1AtPixel = attr1Row == null ? 0 : attr1Row[start + i];
+                    double attr2AtPixel = attr2Row == null ? 0 : attr2Row[start + i];
+                    int lutCol = (int) Math.round(attr1AtPixel * (LUT_SIZE - 1));
+                    int lutRow = (int) Math.round(attr2AtPixel * (LUT_SIZE - 1));
+                    imageBuffer[row * cols + col + i] = lut[lutRow][lutCol];
+                }
+            }
+        }
+    }
+
     private double gaussianWeight(double d) {
         double K = exponentP / 10000 /*0.0002*/ * 255 * 255 / 3;
         return Math.exp(-K * d * d);
@@ -213,11 +248,23 @@ public class IDWGridTileRenderer implements TileRenderer {
     }
 
     public BufferedImage render(Tile tile1, Tile tile2) {
-        BufferedImage img = new BufferedImage(Tile.TILE_SIZE * 3,
-                Tile.TILE_SIZE * 3, BufferedImage.TYPE_INT_ARGB);
+        return render(tile1, tile2, 1);
+    }
+
+    /**
+     * Renders a block of tiles with a border of one tile.
+     *
+     * @param tile1 Top-left tile of the block with the first attribute.
+     * @param tile2 Top-left tile of the block with the second attribute.
+     * @param tilesPerSide The number of tiles along each side of the block.
+     * @return An image of (tilesPerSide + 2) * Tile.TILE_SIZE pixels.
+     */
+    public BufferedImage render(Tile tile1, Tile tile2, int tilesPerSide) {
+        int megaTileSize = Tile.TILE_SIZE * (tilesPerSide + 2);
+        BufferedImage img = BufferPool.acquireImage(megaTileSize, megaTileSize);
         try {
-            Grid attribute1Grid = ((GridTile) tile1).createMegaTile();
-            Grid attribute2Grid = ((GridTile) tile2).createMegaTile();
+            MosaicGrid attribute1Grid = ((GridTile) tile1).createMosaic(tilesPerSide);
+            MosaicGrid attribute2Grid = ((GridTile) tile2).createMosaic(tilesPerSide);
             renderImage(img, attribute1Grid, attribute2Grid);
         } catch (IOException ex) {
         }
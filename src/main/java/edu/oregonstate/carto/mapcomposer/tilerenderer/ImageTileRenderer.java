@@ -1,86 +1,91 @@
 package edu.oregonstate.carto.mapcomposer.tilerenderer;
 
+import edu.oregonstate.carto.tilemanager.DecodedTileCache;
+import edu.oregonstate.carto.tilemanager.ImageTile;
 import edu.oregonstate.carto.tilemanager.Tile;
-import edu.oregonstate.carto.tilemanager.TileRenderer;
+import edu.oregonstate.carto.tilemanager.MetaTileRenderer;
+import edu.oregonstate.carto.utils.BufferPool;
 import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
+ * Renders a mega tile of 3 x 3 image tiles. The tiles are stitched from the
+ * pixels in the DecodedTileCache. Missing tiles are yellow.
  *
  * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
  * University
  */
-public class ImageTileRenderer implements TileRenderer{
+public class ImageTileRenderer implements MetaTileRenderer {
+    
+    private static final int BACKGROUND_COLOR = Color.YELLOW.getRGB();
+    
     @Override
     public BufferedImage render(Tile tile) {
-        Color BACKGROUND_COLOR = Color.YELLOW;
-        int megaTileSize = Tile.TILE_SIZE * 3;
-
-        BufferedImage megaTile = new BufferedImage(megaTileSize, megaTileSize, BufferedImage.TYPE_INT_ARGB);
-
-        Graphics2D g2d = megaTile.createGraphics();
-        g2d.setColor(BACKGROUND_COLOR);
-        g2d.fillRect(0, 0, megaTile.getWidth(), megaTile.getHeight());
-        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-
-        try {
-            BufferedImage topLeftTile = (BufferedImage) tile.getTopLeftTile().fetch();
-            g2d.drawImage(topLeftTile, 0, 0, null);
-        } catch (IOException ex) {
-        }
-
-        try {
-            BufferedImage topTile = (BufferedImage) tile.getTopTile().fetch();
-            g2d.drawImage(topTile, Tile.TILE_SIZE, 0, null);
-        } catch (IOException ex) {
-        }
-
-        try {
-            BufferedImage topRightTile = (BufferedImage) tile.getTopRightTile().fetch();
-            g2d.drawImage(topRightTile, Tile.TILE_SIZE * 2, 0, null);
-        } catch (IOException ex) {
-        }
-
-        try {
-            BufferedImage leftTile = (BufferedImage) tile.getLeftTile().fetch();
-            g2d.drawImage(leftTile, 0, Tile.TILE_SIZE, null);
-        } catch (IOException ex) {
-        }
+        return render(tile, 1);
+    }
 
-        try {
-            // tile at the center
-            g2d.drawImage((BufferedImage) tile.fetch(), Tile.TILE_SIZE, Tile.TILE_SIZE, null);
-        } catch (IOException ex) {
-        }
+    @Override
+    public BufferedImage render(Tile tile, int tilesPerSide) {
+        int tiles = tilesPerSide + 2;
+        int megaTileSize = Tile.TILE_SIZE * tiles;
 
-        try {
-            BufferedImage rightTile = (BufferedImage) tile.getRightTile().fetch();
-            g2d.drawImage(rightTile, Tile.TILE_SIZE * 2, Tile.TILE_SIZE, null);
-        } catch (IOException ex) {
-        }
+        BufferedImage megaTile = BufferPool.acquireImage(megaTileSize, megaTileSize);
+        int[] megaPixels = ((DataBufferInt) megaTile.getRaster().getDataBuffer()).getData();
+        Arrays.fill(megaPixels, BACKGROUND_COLOR);
 
-        try {
-            BufferedImage bottomLeftTile = (BufferedImage) tile.getBottomLeftTile().fetch();
-            g2d.drawImage(bottomLeftTile, 0, Tile.TILE_SIZE * 2, null);
-        } catch (IOException ex) {
+        DecodedTileCache decodedTiles = DecodedTileCache.getInstance();
+        for (int tileRow = 0; tileRow < tiles; tileRow++) {
+            for (int tileCol = 0; tileCol < tiles; tileCol++) {
+                try {
+                    Tile t = tile.getNeighbor(tileCol - 1, tileRow - 1);
+                    int[] pixels = decodedTiles.getPixels((ImageTile) t);
+                    drawTile(pixels, megaPixels, megaTileSize,
+                            tileCol * Tile.TILE_SIZE, tileRow * Tile.TILE_SIZE);
+                } catch (IOException ex) {
+                }
+            }
         }
+        return megaTile;
+    }
 
-        try {
-            BufferedImage bottomTile = (BufferedImage) tile.getBottomTile().fetch();
-            g2d.drawImage(bottomTile, Tile.TILE_SIZE, Tile.TILE_SIZE * 2, null);
-        } catch (IOException ex) {
+    /**
+     * Draws the pixels of a tile over the opaque background of the mega tile.
+     * Equivalent to Graphics2D.drawImage with the default composite.
+     */
+    private static void drawTile(int[] src, int[] dst, int dstWidth, int dstX, int dstY) {
+        final int size = Tile.TILE_SIZE;
+        for (int r = 0; r < size; r++) {
+            int srcRowStart = r * size;
+            int dstRowStart = (dstY + r) * dstWidth + dstX;
+            System.arraycopy(src, srcRowStart, dst, dstRowStart, size);
         }
-
-        try {
-            BufferedImage bottomRightTile = (BufferedImage) tile.getBottomRightTile().fetch();
-            g2d.drawImage(bottomRightTile, Tile.TILE_SIZE * 2, Tile.TILE_SIZE * 2, null);
-        } catch (IOException ex) {
+        // blend pixels that are not opaque with the background
+        for (int r = 0; r < size; r++) {
+            int srcRowStart = r * size;
+            int dstRowStart = (dstY + r) * dstWidth + dstX;
+            for (int c = 0; c < size; c++) {
+                int s = src[srcRowStart + c];
+                int a = s >>> 24;
+                if (a != 255) {
+                    int ac = 255 - a;
+                    int red = mix255((s >> 16) & 0xff, (BACKGROUND_COLOR >> 16) & 0xff, a, ac);
+                    int green = mix255((s >> 8) & 0xff, (BACKGROUND_COLOR >> 8) & 0xff, a, ac);
+                    int blue = mix255(s & 0xff, BACKGROUND_COLOR & 0xff, a, ac);
+                    dst[dstRowStart + c] = 0xFF000000 | (red << 16) | (green << 8) | blue;
+                }
+            }
         }
-        return megaTile;
     }
 
+    /**
+     * Weighted sum of two values between 0 and 255 with weights wa and wb
+     * that add up to 255.
+     */
+    private static int mix255(int a, int b, int wa, int wb) {
+        int t = a * wa + b * wb + 0x80;
+        return ((t >> 8) + t) >> 8;
+    }
 }
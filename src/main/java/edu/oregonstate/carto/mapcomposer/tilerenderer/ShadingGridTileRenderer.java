@@ -2,13 +2,16 @@ package edu.oregonstate.carto.mapcomposer.tilerenderer;
 
 import edu.oregonstate.carto.grid.operators.ColorizerOperator;
 import edu.oregonstate.carto.grid.operators.GridOperator;
+import edu.oregonstate.carto.grid.operators.GridOperatorChain;
 import edu.oregonstate.carto.grid.operators.GridSlopeOperator;
 import edu.oregonstate.carto.grid.operators.IlluminatedContoursOperator;
 import edu.oregonstate.carto.grid.operators.ShaderOperator;
 import edu.oregonstate.carto.tilemanager.GridTile;
 import edu.oregonstate.carto.tilemanager.Tile;
-import edu.oregonstate.carto.tilemanager.TileRenderer;
+import edu.oregonstate.carto.tilemanager.MetaTileRenderer;
 import edu.oregonstate.carto.tilemanager.util.Grid;
+import edu.oregonstate.carto.tilemanager.util.MosaicGrid;
+import edu.oregonstate.carto.utils.BufferPool;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 
@@ -17,25 +20,61 @@ import java.io.IOException;
  * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
  * University
  */
-public class ShadingGridTileRenderer implements TileRenderer {
+public class ShadingGridTileRenderer implements MetaTileRenderer {
+
+    /**
+     * Width of the band of neighboring cells around the block of tiles that is
+     * shaded. Cells along the border of the shaded area are treated as flat,
+     * so the border must be at least 1 for seamless shading of the block.
+     * Pixels of the mega tile outside of the border are transparent.
+     */
+    private final int border;
+
+    /**
+     * Creates a renderer that shades the entire mega tile.
+     */
+    public ShadingGridTileRenderer() {
+        this(Tile.TILE_SIZE);
+    }
+
+    /**
+     * Creates a renderer that shades a block of tiles with a band of
+     * neighboring cells.
+     *
+     * @param border Width of the band in cells. Between 1 and
+     * Tile.TILE_SIZE.
+     */
+    public ShadingGridTileRenderer(int border) {
+        if (border < 1 || border > Tile.TILE_SIZE) {
+            throw new IllegalArgumentException("invalid border");
+        }
+        this.border = border;
+    }
 
     @Override
     public BufferedImage render(Tile tile) {
-        BufferedImage img = new BufferedImage(Tile.TILE_SIZE * 3,
-                Tile.TILE_SIZE * 3, BufferedImage.TYPE_INT_ARGB);
+        return render(tile, 1);
+    }
+
+    @Override
+    public BufferedImage render(Tile tile, int tilesPerSide) {
+        int megaTileSize = Tile.TILE_SIZE * (tilesPerSide + 2);
+        BufferedImage img = BufferPool.acquireImage(megaTileSize, megaTileSize);
         try {
-            Grid mergedGrid = ((GridTile) tile).createMegaTile();
-            
+            MosaicGrid mosaic = ((GridTile) tile).createMosaic(tilesPerSide, border);
             ShaderOperator shader = new ShaderOperator();
-            // FIXME factor 10 for compensating wrong cell size
-            shader.setVerticalExaggeration(10);
-            Grid shading = shader.operate(mergedGrid);
             
+            // shade and colorize in a single pass without a shading grid,
+            // reading elevations directly from the tiles. The block of tiles
+            // and the border are written to the center of the mega tile.
+            int offset = Tile.TILE_SIZE - border;
+            BufferedImage dst = img.getSubimage(offset, offset, mosaic.getCols(), mosaic.getRows());
             ColorizerOperator op = new ColorizerOperator(ColorizerOperator.ColorVisualization.GRAY_SHADING);
-            op.operate(shading, mergedGrid, img, 0, 0);
+            op.operate(new GridOperatorChain(shader), mosaic, dst, 0, 0);
             
             /*
             // uncomment for experimental illuminated contours
+            Grid mergedGrid = mosaic.toGrid();
             Grid slopeGrid = new GridSlopeOperator().operate(mergedGrid);
             IlluminatedContoursOperator op = new IlluminatedContoursOperator(true, 1, 1, 0.2, true, 315, 500, 0, 255, 2., 90);
             op.renderToImage(img, mergedGrid, slopeGrid, null);
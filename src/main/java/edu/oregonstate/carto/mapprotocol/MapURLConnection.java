@@ -1,17 +1,15 @@
 package edu.oregonstate.carto.mapprotocol;
 
 import edu.oregonstate.carto.mapcomposer.Map;
-import java.awt.image.BufferedImage;
+import edu.oregonstate.carto.mapcomposer.RenderedTileCache;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.UnknownServiceException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import javax.imageio.ImageIO;
 
 /**
  * URLConnection for the map protocol, which is used to render map tiles on the 
@@ -55,13 +53,11 @@ public class MapURLConnection extends java.net.URLConnection {
                 y = Integer.parseInt(m.group());
             }
 
-            // render tile
-            BufferedImage image = Map.getMap().generateTile(z, x, y);
+            // render tile or get it from the cache
+            byte[] png = RenderedTileCache.getInstance().getPNG(Map.getMap(), z, x, y);
 
             // wrap tile image in InputStream
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            ImageIO.write(image, "png", os);
-            InputStream is = new ByteArrayInputStream(os.toByteArray());
+            InputStream is = new ByteArrayInputStream(png);
             if (getUseCaches()) {
                 is = new BufferedInputStream(is);
             }
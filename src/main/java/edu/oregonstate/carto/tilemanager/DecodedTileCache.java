@@ -0,0 +1,284 @@
+package edu.oregonstate.carto.tilemanager;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import edu.oregonstate.carto.tilemanager.util.Grid;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A cache for decoded source tiles that is shared by all tile sets. Mega tiles
+ * of adjacent tiles overlap, and multiple layers often use the same tiles, so
+ * the same source tile is used many times when rendering a map. The cache
+ * stores image tiles as arrays of ARGB pixels and grid tiles as Grid objects,
+ * from which mega tiles can be stitched without decoding tiles again.
+ *
+ * Tiles are identified by their URL. Tiles stored in local files are also
+ * identified by the time of the last modification and the size of the file,
+ * such that a tile is decoded again after its file has been changed, added or
+ * removed. The least recently used tiles are removed when the total size of
+ * the cached tiles exceeds a maximum. Tiles of tile sets that do not use
+ * decoded tile caching (see TileSet.isDecodedTileCaching) are decoded every
+ * time they are requested. Cached pixels and grids are shared and must not be
+ * modified.
+ */
+public class DecodedTileCache {
+
+    /**
+     * Maximum total size of the cached tiles in bytes.
+     */
+    private static final int MAX_BYTES = 128 * 1024 * 1024;
+
+    /**
+     * Marker for tiles that do not exist, such that missing tiles along the
+     * border of a tile set are not requested repeatedly.
+     */
+    private static final Object MISSING_TILE = new Object();
+
+    private static final DecodedTileCache singleton = new DecodedTileCache();
+
+    private final Cache<String, Object> cache = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_BYTES)
+            .weigher(new Weigher<String, Object>() {
+                @Override
+                public int weigh(String url, Object tileData) {
+                    if (tileData instanceof int[]) {
+                        return ((int[]) tileData).length * 4;
+                    }
+                    if (tileData instanceof Grid) {
+                        Grid grid = (Grid) tileData;
+                        return grid.getCols() * grid.getRows() * 4;
+                    }
+                    return 1;
+                }
+            })
+            .recordStats()
+            .build();
+
+    private DecodedTileCache() {
+    }
+
+    /**
+     * Returns the cache singleton.
+     *
+     * @return the singleton instance
+     */
+    public static DecodedTileCache getInstance() {
+        return singleton;
+    }
+
+    /**
+     * Returns the pixels of an image tile. The tile is fetched and decoded if
+     * it is not in the cache.
+     *
+     * @param tile The tile.
+     * @return Tile.TILE_SIZE x Tile.TILE_SIZE ARGB pixels, which must not be
+     * modified.
+     * @throws IOException If the tile cannot be fetched or decoded.
+     */
+    public int[] getPixels(final ImageTile tile) throws IOException {
+        return (int[]) get(tile, new Callable<Object>() {
+            @Override
+            public Object call() throws IOException {
+                BufferedImage img = tile.fetch();
+                if (img == null) {
+                    throw new IOException("Cannot decode " + tile.getURL());
+                }
+                // draw the tile instead of calling getRGB to convert pixels
+                // as Graphics2D would when drawing the tile
+                BufferedImage argb = new BufferedImage(Tile.TILE_SIZE,
+                        Tile.TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g2d = argb.createGraphics();
+                g2d.drawImage(img, 0, 0, null);
+                g2d.dispose();
+                return ((DataBufferInt) argb.getRaster().getDataBuffer()).getData();
+            }
+        });
+    }
+
+    /**
+     * Returns the grid of a grid tile. The tile is fetched and decoded if it
+     * is not in the cache.
+     *
+     * @param tile The tile.
+     * @return The grid, which must not be modified.
+     * @throws IOException If the tile cannot be fetched or decoded.
+     */
+    public Grid getGrid(final GridTile tile) throws IOException {
+        return (Grid) get(tile, new Callable<Object>() {
+            @Override
+            public Object call() throws IOException {
+                Grid grid = tile.fetch();
+                if (grid == null) {
+                    throw new IOException("Cannot decode " + tile.getURL());
+                }
+                return grid;
+            }
+        });
+    }
+
+    /**
+     * Fetches and decodes a tile and adds it to the cache if it is not in the
+     * cache. Errors are ignored, as they will be reported when the tile is
+     * used.
+     *
+     * @param tile An ImageTile or a GridTile.
+     */
+    public void prefetch(Tile tile) {
+        try {
+            if (tile instanceof ImageTile) {
+                getPixels((ImageTile) tile);
+            } else if (tile instanceof GridTile) {
+                getGrid((GridTile) tile);
+            }
+        } catch (IOException ex) {
+        }
+    }
+
+    private Object get(Tile tile, Callable<Object> loader) throws IOException {
+        URL url = tile.getURL();
+        if (url == null) {
+            throw new IOException("Invalid tile URL");
+        }
+        Object tileData;
+        try {
+            MissingTileLoader missingTileLoader = new MissingTileLoader(loader);
+            if (tile.getTileSet().isDecodedTileCaching()) {
+                tileData = cache.get(key(url), missingTileLoader);
+            } else {
+                tileData = missingTileLoader.call();
+            }
+        } catch (IOException ex) {
+            throw ex;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } catch (UncheckedExecutionException ex) {
+            throw new IOException(ex.getCause());
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+        if (tileData == MISSING_TILE) {
+            throw new FileNotFoundException(url.toString());
+        }
+        return tileData;
+    }
+
+    /**
+     * Returns the key of a tile in the cache. The key of a tile stored in a
+     * local file includes the time of the last modification and the size of
+     * the file.
+     *
+     * @param url The URL of the tile.
+     * @return The key.
+     */
+    static String key(URL url) {
+        String key = url.toString();
+        if (!"file".equals(url.getProtocol())) {
+            return key;
+        }
+        File file;
+        try {
+            file = new File(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException ex) {
+            file = new File(url.getPath());
+        }
+        // 0 for both if the file does not exist
+        return key + " " + file.lastModified() + " " + file.length();
+    }
+
+    /**
+     * Returns MISSING_TILE instead of throwing an exception if a tile does not
+     * exist. Other errors, which may be temporary, are not cached.
+     */
+    private static class MissingTileLoader implements Callable<Object> {
+
+        private final Callable<Object> loader;
+
+        MissingTileLoader(Callable<Object> loader) {
+            this.loader = loader;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            try {
+                return loader.call();
+            } catch (IOException ex) {
+                for (Throwable t = ex; t != null; t = t.getCause()) {
+                    if (t instanceof FileNotFoundException) {
+                        return MISSING_TILE;
+                    }
+                }
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Removes all tiles from the cache. Changed tiles that are not stored in
+     * local files are only decoded again after calling this method.
+     */
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Returns the number of times a tile was found in the cache.
+     *
+     * @return Number of cache hits.
+     */
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    /**
+     * Returns the number of times a tile had to be fetched and decoded or was
+     * found to be missing.
+     *
+     * @return Number of cache misses.
+     */
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    /**
+     * Returns the ratio of cache hits to the total number of requests.
+     *
+     * @return Hit rate between 0 and 1. 1 if there have been no requests.
+     */
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+
+    /**
+     * Returns the number of tiles in the cache.
+     *
+     * @return Number of cached tiles.
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = cache.stats();
+        return String.format("%d tiles, %d hits, %d misses, hit rate %.1f%%",
+                cache.size(), stats.hitCount(), stats.missCount(),
+                stats.hitRate() * 100);
+    }
+}
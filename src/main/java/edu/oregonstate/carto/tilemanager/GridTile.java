@@ -2,8 +2,10 @@ package edu.oregonstate.carto.tilemanager;
 
 import edu.oregonstate.carto.importer.BinaryGridReader;
 import edu.oregonstate.carto.tilemanager.util.Grid;
+import edu.oregonstate.carto.tilemanager.util.MosaicGrid;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URL;
 
@@ -54,7 +56,9 @@ public class GridTile extends Tile<Grid> {
         super(tileSet, inStream.readInt(), inStream.readInt(), inStream.readInt());
         int cols = inStream.readInt();
         int rows = inStream.readInt();
-        double cellSize = inStream.readDouble();
+        // the stored cell size is replaced by the ground cell size of the tile
+        inStream.readDouble();
+        double cellSize = TileSet.groundPixelSize(getZ(), getY());
         double west = inStream.readDouble();
         double north = inStream.readDouble();
         float[][] g = new float[rows][cols];
@@ -82,9 +86,8 @@ public class GridTile extends Tile<Grid> {
             URL url = tileSet.urlForTile(this);
             grid = BinaryGridReader.read(url);
 
-            // cell size at equator for given zoom level
-            double cellSize = (2 * Math.PI * 6378137) / (TILE_SIZE * Math.pow(2, getZ()));
-            grid.setCellSize(cellSize);
+            // cell size on the ground at the latitude of this row of tiles
+            grid.setCellSize(TileSet.groundPixelSize(getZ(), getY()));
 
             tileSet.tileChanged(this);
         }
@@ -117,88 +120,108 @@ public class GridTile extends Tile<Grid> {
         out.flush();
     }
 
+    /**
+     * Creates a grid with 3 x 3 tiles, with this tile in the center. Cells of
+     * missing neighbors are 0. The array of the returned grid is taken from
+     * the BufferPool and can be released when it is no longer needed.
+     *
+     * @return A new grid.
+     * @throws IOException
+     */
     public Grid createMegaTile() throws IOException {
+        return createMegaTile(1);
+    }
 
-        int tileRows = TILE_SIZE;
-        int tileCols = TILE_SIZE;
-        int megaTileSize = TILE_SIZE * 3;
-        float[][] mergedArray = new float[megaTileSize][megaTileSize];
-        try {
-            Grid topLeftGrid = ((GridTile) getTopLeftTile()).fetch();
-            for (int r = 0; r < tileRows; r++) {
-                System.arraycopy(topLeftGrid.getGrid()[r], 0, mergedArray[r], 0, tileCols);
-            }
-        } catch (IOException ex) {
-        }
-
-        try {
-            Grid topGrid = ((GridTile) getTopTile()).fetch();
-            for (int r = 0; r < tileRows; r++) {
-                System.arraycopy(topGrid.getGrid()[r], 0, mergedArray[r], tileCols, tileCols);
-            }
-        } catch (IOException ex) {
-        }
+    /**
+     * Creates a grid with a block of tiles and a border of one tile around
+     * the block. Cells of missing tiles are 0. The array of the returned grid
+     * is taken from the BufferPool and can be released when it is no longer
+     * needed.
+     *
+     * @param tilesPerSide The number of tiles along each side of the block.
+     * This tile is at the top-left corner of the block.
+     * @return A new grid of (tilesPerSide + 2) * TILE_SIZE cells.
+     * @throws IOException
+     */
+    public Grid createMegaTile(int tilesPerSide) throws IOException {
+        return createMosaic(tilesPerSide).toGrid();
+    }
 
-        try {
-            Grid topRightGrid = ((GridTile) getTopRightTile()).fetch();
-            for (int r = 0; r < tileRows; r++) {
-                System.arraycopy(topRightGrid.getGrid()[r], 0, mergedArray[r], tileCols * 2, tileCols);
-            }
-        } catch (IOException ex) {
-        }
+    /**
+     * Creates a view of a block of tiles with a border of one tile around the
+     * block. Unlike createMegaTile(), the values are not copied. Cells of
+     * missing tiles are 0.
+     *
+     * @param tilesPerSide The number of tiles along each side of the block.
+     * This tile is at the top-left corner of the block.
+     * @return A view of (tilesPerSide + 2) * TILE_SIZE cells.
+     * @throws IOException
+     */
+    public MosaicGrid createMosaic(int tilesPerSide) throws IOException {
+        return createMosaic(tilesPerSide, TILE_SIZE);
+    }
 
-        try {
-            Grid leftGrid = ((GridTile) getLeftTile()).fetch();
-            for (int r = 0; r < tileRows; r++) {
-                System.arraycopy(leftGrid.getGrid()[r], 0, mergedArray[r + tileRows], 0, tileCols);
-            }
-        } catch (IOException ex) {
+    /**
+     * Creates a view of a block of tiles with a border of neighboring cells.
+     * The values are not copied. Cells of missing tiles are 0.
+     *
+     * @param tilesPerSide The number of tiles along each side of the block.
+     * This tile is at the top-left corner of the block.
+     * @param border The width of the border in cells. Between 0 and
+     * TILE_SIZE.
+     * @return A view of tilesPerSide * TILE_SIZE + 2 * border cells.
+     * @throws IOException
+     */
+    public MosaicGrid createMosaic(int tilesPerSide, int border) throws IOException {
+        if (border < 0 || border > TILE_SIZE) {
+            throw new IllegalArgumentException("invalid border");
         }
-
-        try {
-            Grid centerGrid = fetch();
-            for (int r = 0; r < tileRows; r++) {
-                System.arraycopy(centerGrid.getGrid()[r], 0, mergedArray[r + tileRows], tileCols, tileCols);
+        int tiles = tilesPerSide + 2;
+        Grid[] grids = new Grid[tiles * tiles];
+        DecodedTileCache decodedTiles = DecodedTileCache.getInstance();
+        for (int tileRow = 0; tileRow < tiles; tileRow++) {
+            for (int tileCol = 0; tileCol < tiles; tileCol++) {
+                boolean inBlock = tileCol > 0 && tileCol <= tilesPerSide
+                        && tileRow > 0 && tileRow <= tilesPerSide;
+                if (border == 0 && !inBlock) {
+                    continue;
+                }
+                Tile tile = getNeighbor(tileCol - 1, tileRow - 1);
+                try {
+                    grids[tileRow * tiles + tileCol] = decodedTiles.getGrid((GridTile) tile);
+                } catch (IOException ex) {
+                }
             }
-        } catch (IOException ex) {
         }
 
-        try {
-            Grid rightGrid = ((GridTile) getRightTile()).fetch();
-            for (int r = 0; r < tileRows; r++) {
-                System.arraycopy(rightGrid.getGrid()[r], 0, mergedArray[r + tileRows], tileCols * 2, tileCols);
+        // the position of the mosaic is derived from this tile or from any
+        // other tile that exists, as tiles are missing along the border of the
+        // tile set
+        int presentTile = tiles + 1;
+        if (grids[presentTile] == null) {
+            presentTile = 0;
+            while (presentTile < grids.length && grids[presentTile] == null) {
+                presentTile++;
             }
-        } catch (IOException ex) {
         }
-
-        try {
-            Grid bottomLeftGrid = ((GridTile) getBottomLeftTile()).fetch();
-            for (int r = 0; r < tileRows; r++) {
-                System.arraycopy(bottomLeftGrid.getGrid()[r], 0, mergedArray[r + tileRows * 2], 0, tileCols);
-            }
-        } catch (IOException ex) {
+        if (presentTile == grids.length) {
+            throw new FileNotFoundException("No tiles for block at " + getURL());
         }
-
-        try {
-            Grid bottomGrid = ((GridTile) getBottomTile()).fetch();
-            for (int r = 0; r < tileRows; r++) {
-                System.arraycopy(bottomGrid.getGrid()[r], 0, mergedArray[r + tileRows * 2], tileCols, tileCols);
-            }
-        } catch (IOException ex) {
+        Grid presentGrid = grids[presentTile];
+        double cellSize = TileSet.groundPixelSize(getZ(), getY());
+        double west = presentGrid.getWest() - (presentTile % tiles - 1) * TILE_SIZE * cellSize;
+        double north = presentGrid.getNorth() + (presentTile / tiles - 1) * TILE_SIZE * cellSize;
+        // the ground cell size changes with the latitude of each row of tiles
+        double[] tileRowCellSizes = new double[tiles];
+        for (int tileRow = 0; tileRow < tiles; tileRow++) {
+            tileRowCellSizes[tileRow] = TileSet.groundPixelSize(getZ(), getY() + tileRow - 1);
         }
-
-        try {
-            Grid bottomRightGrid = ((GridTile) getBottomRightTile()).fetch();
-            for (int r = 0; r < tileRows; r++) {
-                System.arraycopy(bottomRightGrid.getGrid()[r], 0, mergedArray[r + tileRows * 2], tileCols * 2, tileCols);
-            }
-        } catch (IOException ex) {
+        MosaicGrid mosaic = new MosaicGrid(grids, tiles, TILE_SIZE, cellSize,
+                tileRowCellSizes, west, north);
+        if (border == TILE_SIZE) {
+            return mosaic;
         }
-        
-        Grid mergedGrid = new Grid(mergedArray, fetch().getCellSize());
-        mergedGrid.setWest(fetch().getWest());
-        mergedGrid.setNorth(fetch().getNorth());
-
-        return mergedGrid;
+        int size = tilesPerSide * TILE_SIZE + 2 * border;
+        return mosaic.crop(TILE_SIZE - border, TILE_SIZE - border, size, size);
     }
 }
@@ -0,0 +1,19 @@
+package edu.oregonstate.carto.tilemanager;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A renderer that renders a block of tiles from a single tile set in one
+ * pass.
+ */
+public interface MetaTileRenderer extends TileRenderer {
+
+    /**
+     * Renders a block of tiles with a border of one tile.
+     *
+     * @param tile The tile at the top-left corner of the block.
+     * @param tilesPerSide The number of tiles along each side of the block.
+     * @return An image of (tilesPerSide + 2) * Tile.TILE_SIZE pixels.
+     */
+    public BufferedImage render(Tile tile, int tilesPerSide);
+}
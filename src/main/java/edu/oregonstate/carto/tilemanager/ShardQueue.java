@@ -0,0 +1,199 @@
+package edu.oregonstate.carto.tilemanager;
+
+import edu.oregonstate.carto.utils.FileUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A queue of shards of a TileJob that is shared by multiple processes. Each
+ * shard is a file in one of four subdirectories: "pending", "running",
+ * "done" and "failed". A worker claims a shard by atomically moving its file
+ * from "pending" to "running"; only one worker can succeed. The name of a
+ * running shard ends with "@" and the ID of the worker, such that the shards
+ * of a crashed worker can be found and released. A shard file contains the
+ * number of failed attempts.
+ */
+class ShardQueue {
+
+    static final String PENDING = "pending";
+    static final String RUNNING = "running";
+    static final String DONE = "done";
+    static final String FAILED = "failed";
+
+    private final File directory;
+
+    /**
+     * Creates a queue in a directory.
+     *
+     * @param directory The directory of the queue.
+     */
+    ShardQueue(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the directory of a state and creates it if it does not exist.
+     */
+    private File stateDirectory(String state) throws IOException {
+        File dir = new File(directory, state);
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        return dir;
+    }
+
+    private File file(String state, String shard) throws IOException {
+        return new File(stateDirectory(state), shard);
+    }
+
+    private static String runningName(String shard, int worker) {
+        return shard + "@" + worker;
+    }
+
+    /**
+     * Removes all shards.
+     *
+     * @throws IOException
+     */
+    void clear() throws IOException {
+        for (String state : new String[]{PENDING, RUNNING, DONE, FAILED}) {
+            for (String name : list(state)) {
+                Files.deleteIfExists(file(state, name).toPath());
+            }
+        }
+    }
+
+    /**
+     * Adds a pending shard.
+     *
+     * @param shard The name of the shard. Must be a valid file name without
+     * "@".
+     * @throws IOException
+     */
+    void add(String shard) throws IOException {
+        writeAttempts(file(PENDING, shard), 0);
+    }
+
+    /**
+     * Claims a pending shard.
+     *
+     * @param worker The ID of the claiming worker.
+     * @return The name of the claimed shard, or null if no shard is pending.
+     * @throws IOException
+     */
+    String claim(int worker) throws IOException {
+        for (String shard : list(PENDING)) {
+            File running = file(RUNNING, runningName(shard, worker));
+            try {
+                Files.move(file(PENDING, shard).toPath(), running.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+                return shard;
+            } catch (NoSuchFileException ex) {
+                // claimed by another worker
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Marks a running shard as done.
+     *
+     * @param shard The name of the shard.
+     * @param worker The ID of the worker that has claimed the shard.
+     * @throws IOException
+     */
+    void complete(String shard, int worker) throws IOException {
+        Files.move(file(RUNNING, runningName(shard, worker)).toPath(),
+                file(DONE, shard).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Releases a running shard after a failed attempt. The shard is pending
+     * again, or failed if it has reached the maximum number of attempts.
+     *
+     * @param shard The name of the shard.
+     * @param worker The ID of the worker that has claimed the shard.
+     * @param maxAttempts The maximum number of attempts per shard.
+     * @return True if the shard will be retried, false if it has failed.
+     * @throws IOException
+     */
+    boolean release(String shard, int worker, int maxAttempts) throws IOException {
+        File running = file(RUNNING, runningName(shard, worker));
+        int attempts = readAttempts(running) + 1;
+        writeAttempts(running, attempts);
+        boolean retry = attempts < maxAttempts;
+        Files.move(running.toPath(), file(retry ? PENDING : FAILED, shard).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return retry;
+    }
+
+    /**
+     * Returns the names of the shards claimed by a worker.
+     *
+     * @param worker The ID of the worker.
+     * @return The names of the shards.
+     * @throws IOException
+     */
+    List<String> running(int worker) throws IOException {
+        String suffix = "@" + worker;
+        List<String> shards = new ArrayList<>();
+        for (String name : list(RUNNING)) {
+            if (name.endsWith(suffix)) {
+                shards.add(name.substring(0, name.length() - suffix.length()));
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * Returns the names of the files in a state directory.
+     *
+     * @param state One of PENDING, RUNNING, DONE or FAILED.
+     * @return The sorted file names.
+     * @throws IOException
+     */
+    List<String> list(String state) throws IOException {
+        File dir = stateDirectory(state);
+        String[] names = dir.list();
+        if (names == null) {
+            throw new IOException("Cannot read directory " + dir);
+        }
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    /**
+     * Returns the number of shards in a state.
+     *
+     * @param state One of PENDING, RUNNING, DONE or FAILED.
+     * @return The number of shards.
+     * @throws IOException
+     */
+    int count(String state) throws IOException {
+        return list(state).size();
+    }
+
+    private static int readAttempts(File file) throws IOException {
+        String s = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private void writeAttempts(File file, int attempts) throws IOException {
+        byte[] data = Integer.toString(attempts).getBytes(StandardCharsets.UTF_8);
+        // write outside of the state directories, such that a partially
+        // written shard cannot be claimed
+        FileUtils.writeAtomically(data, file, directory);
+    }
+}
@@ -72,6 +72,17 @@ public abstract class Tile<TileData> {
      */
     public abstract TileData fetch() throws IOException;
 
+    /**
+     * Returns a tile at a position relative to this tile.
+     *
+     * @param dx Horizontal offset in tiles. Positive values are to the right.
+     * @param dy Vertical offset in tiles. Positive values are below.
+     * @return The tile of the same tile set.
+     */
+    public Tile getNeighbor(int dx, int dy) {
+        return tileSet.getTile(z, x + dx, y + dy);
+    }
+
     /**
      * Returns the neighbor above and to the left of this tile.
      *
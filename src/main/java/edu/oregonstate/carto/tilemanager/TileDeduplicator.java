@@ -0,0 +1,292 @@
+package edu.oregonstate.carto.tilemanager;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import edu.oregonstate.carto.utils.FileUtils;
+import edu.oregonstate.carto.utils.HashUtils;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes tiles and replaces identical tiles with symbolic links to a single
+ * shared file. Large parts of a map often consist of identical tiles,
+ * for example, blank tiles or tiles filled with the color of a water or forest
+ * layer.
+ *
+ * Tiles with a single color are detected by comparing pixels, which is much
+ * faster than encoding the tile, and are always stored as links. A tile of
+ * each color is encoded only once. Other tiles are identified by a hash of
+ * their encoded data. The first occurrence is written as a regular file. When
+ * the second occurrence is written, the data is moved to a shared file, and
+ * both tiles are replaced by links. The hashes of recently written tiles are
+ * remembered, so only duplicates that are generated close to each other are
+ * detected. Tiles with identical data are written one after the other, such
+ * that the shared file is created once and every tile is counted once.
+ *
+ * Shared files are stored in the "shared" subdirectory of the tile directory
+ * and links are relative, such that the tile directory can be moved. If the
+ * file system does not support symbolic links, all tiles are written as
+ * regular files.
+ */
+class TileDeduplicator implements TileStatistics.LinkCounts {
+
+    /**
+     * Name of the subdirectory for shared tiles.
+     */
+    static final String SHARED_DIRECTORY_NAME = "shared";
+
+    /**
+     * Number of hashes of recently written tiles that are remembered.
+     */
+    private static final int MAX_HASHES = 100000;
+
+    private final File sharedDirectory;
+
+    private final TileEncoder encoder;
+
+    private final TileStatistics stats;
+
+    /**
+     * State of tiles with identical data. Tiles with the same entry are
+     * written while holding the lock of the entry.
+     */
+    private static final class Entry {
+
+        /**
+         * The encoded tile, or null if not encoded yet.
+         */
+        byte[] data;
+
+        /**
+         * The only tile written as a regular file, or null.
+         */
+        File firstFile;
+
+        /**
+         * True if the shared file has been written or was found.
+         */
+        boolean shared;
+    }
+
+    /**
+     * Tiles with a single color, keyed by ARGB color.
+     */
+    private final ConcurrentHashMap<Integer, Entry> uniformTiles = new ConcurrentHashMap<>();
+
+    /**
+     * Recently written tiles, keyed by the hash of their encoded data.
+     */
+    private final Cache<String, Entry> hashes = CacheBuilder.newBuilder()
+            .maximumSize(MAX_HASHES)
+            .build();
+
+    private volatile boolean linksSupported = true;
+
+    private final AtomicLong linkedTiles = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    /**
+     * Creates a deduplicator for tiles in a directory.
+     *
+     * @param directory The tile directory.
+     * @param encoder The encoder for tiles.
+     * @param stats Receives the time spent encoding and writing, and the
+     * number of written bytes.
+     */
+    TileDeduplicator(File directory, TileEncoder encoder, TileStatistics stats) {
+        sharedDirectory = new File(directory, SHARED_DIRECTORY_NAME);
+        this.encoder = encoder;
+        this.stats = stats;
+    }
+
+    /**
+     * Writes a tile as a file or as a link to an identical shared file.
+     * An existing file or link is replaced.
+     *
+     * @param image The tile image of type TYPE_INT_ARGB. Can be a sub-image.
+     * @param file The tile file.
+     * @throws IOException
+     */
+    void write(BufferedImage image, File file) throws IOException {
+        Integer color = uniformColor(image);
+        Entry entry;
+        String name;
+        if (color != null) {
+            entry = uniformTiles.get(color);
+            if (entry == null) {
+                Entry newEntry = new Entry();
+                entry = uniformTiles.putIfAbsent(color, newEntry);
+                if (entry == null) {
+                    entry = newEntry;
+                }
+            }
+            synchronized (entry) {
+                if (entry.data == null) {
+                    entry.data = encode(image);
+                }
+            }
+            name = String.format("%08x", color);
+        } else {
+            byte[] png = encode(image);
+            name = HashUtils.md5(png);
+            Entry newEntry = new Entry();
+            newEntry.data = png;
+            entry = hashes.asMap().putIfAbsent(name, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+                // the first occurrence of a tile is written as a regular file
+                // and replaced by a link when the second occurrence is written,
+                // unless another thread has written the second occurrence first
+                synchronized (entry) {
+                    if (!entry.shared) {
+                        writeData(png, file);
+                        if (linksSupported) {
+                            entry.firstFile = file;
+                        }
+                        return;
+                    }
+                }
+            }
+        }
+
+        synchronized (entry) {
+            byte[] png = entry.data;
+            if (!linksSupported) {
+                writeData(png, file);
+                return;
+            }
+            File sharedFile = new File(sharedDirectory, name + "."
+                    + encoder.getFileExtension());
+            if (!entry.shared) {
+                // the shared file may exist from an earlier run
+                if (!sharedFile.isFile()) {
+                    writeData(png, sharedFile);
+                    // the shared file is written in addition to the tiles
+                    savedBytes.addAndGet(-png.length);
+                }
+                entry.shared = true;
+            }
+            if (!link(file, sharedFile, png.length)) {
+                writeData(png, file);
+                return;
+            }
+
+            // replace the first occurrence of the tile with a link
+            File firstFile = entry.firstFile;
+            entry.firstFile = null;
+            if (firstFile != null
+                    && (firstFile.equals(file) || link(firstFile, sharedFile, png.length))) {
+                stats.bytesWritten.addAndGet(-png.length);
+            }
+        }
+    }
+
+    private byte[] encode(BufferedImage image) throws IOException {
+        long startNanos = System.nanoTime();
+        byte[] data = encoder.encode(image);
+        stats.addTime(TileStatistics.Stage.ENCODE, startNanos);
+        return data;
+    }
+
+    private void writeData(byte[] data, File file) throws IOException {
+        long startNanos = System.nanoTime();
+        FileUtils.writeAtomically(data, file);
+        stats.addTime(TileStatistics.Stage.WRITE, startNanos);
+        stats.bytesWritten.addAndGet(data.length);
+    }
+
+    /**
+     * Returns the color of a tile with a single color.
+     *
+     * @return The ARGB color or null if the tile has more than one color.
+     */
+    private static Integer uniformColor(BufferedImage image) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int[] row = new int[w];
+        Object pixels = image.getRaster().getDataElements(0, 0, 1, 1, null);
+        int color = ((int[]) pixels)[0];
+        for (int r = 0; r < h; r++) {
+            image.getRaster().getDataElements(0, r, w, 1, row);
+            for (int c = 0; c < w; c++) {
+                if (row[c] != color) {
+                    return null;
+                }
+            }
+        }
+        return color;
+    }
+
+    /**
+     * Replaces a file with a relative symbolic link to a shared file. The
+     * link is created next to the file and then moved, such that readers
+     * always find either the file or the link.
+     *
+     * @param file The file to replace.
+     * @param sharedFile The shared file.
+     * @param size The size of the shared file.
+     * @return False if symbolic links cannot be created. Links are not
+     * created for the remaining tiles in this case.
+     */
+    private boolean link(File file, File sharedFile, long size) throws IOException {
+        if (!linksSupported) {
+            return false;
+        }
+        long startNanos = System.nanoTime();
+        Path path = file.toPath().toAbsolutePath();
+        Path parent = path.getParent();
+        Files.createDirectories(parent);
+        Path relativeTarget = parent.relativize(sharedFile.toPath().toAbsolutePath());
+        Path tmp = parent.resolve(path.getFileName() + "."
+                + Thread.currentThread().getId() + ".link");
+        Files.deleteIfExists(tmp);
+        try {
+            Files.createSymbolicLink(tmp, relativeTarget);
+        } catch (UnsupportedOperationException | IOException ex) {
+            linksSupported = false;
+            Logger.getLogger(TileDeduplicator.class.getName()).log(Level.WARNING,
+                    "Cannot create links, writing duplicate tiles as files", ex);
+            return false;
+        }
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        linkedTiles.incrementAndGet();
+        savedBytes.addAndGet(size);
+        stats.addTime(TileStatistics.Stage.WRITE, startNanos);
+        return true;
+    }
+
+    /**
+     * Returns the number of tiles that were written as links to shared files.
+     *
+     * @return The number of links.
+     */
+    @Override
+    public long getLinkedTiles() {
+        return linkedTiles.get();
+    }
+
+    /**
+     * Returns the number of bytes saved by writing tiles as links, that is,
+     * the size of the tiles written as links minus the size of the shared
+     * files.
+     *
+     * @return The number of saved bytes.
+     */
+    @Override
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+}
@@ -0,0 +1,546 @@
+package edu.oregonstate.carto.tilemanager;
+
+import com.jhlabs.image.OctTreeQuantizer;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Encodes tiles as PNG or JPEG images. The PNG encoder is considerably faster
+ * than the PNG encoder of ImageIO and allows for choosing the compression
+ * level and the filter applied to rows before compressing them. Opaque images
+ * are stored without alpha channel.
+ *
+ * Images can also be stored as PNG images with a palette of up to 256 colors.
+ * Images with few colors are stored without loss; other images are reduced to
+ * 256 colors with an OctTreeQuantizer. Images with partially transparent
+ * pixels cannot be stored with a palette and are stored with an alpha
+ * channel.
+ *
+ * The settings of an encoder must not be changed while it is encoding. An
+ * encoder can be used by multiple threads.
+ */
+public class TileEncoder {
+
+    /**
+     * Image formats.
+     */
+    public enum Format {
+
+        /**
+         * PNG with 8 bits per channel.
+         */
+        PNG,
+        /**
+         * PNG with a palette of up to 256 colors.
+         */
+        PNG_PALETTE,
+        /**
+         * JPEG. Transparent pixels are white.
+         */
+        JPEG
+    }
+
+    /**
+     * PNG filters applied to each row of pixels before compression.
+     */
+    public enum Filter {
+
+        NONE, SUB, UP, AVERAGE, PAETH,
+        /**
+         * Selects a filter for each row, minimizing the sum of absolute
+         * differences.
+         */
+        ADAPTIVE
+    }
+
+    private static final byte[] PNG_SIGNATURE = {
+        (byte) 137, 80, 78, 71, 13, 10, 26, 10
+    };
+
+    private static final int COLOR_TYPE_PALETTE = 3;
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_RGBA = 6;
+
+    /**
+     * Deflater for each thread. Deflaters use native memory that is only
+     * released when they are garbage collected, so they are reused.
+     */
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater();
+        }
+    };
+
+    private Format format = Format.PNG;
+    private int compressionLevel = 4;
+    private Filter filter = Filter.ADAPTIVE;
+    private int paletteColors = 256;
+    private float jpegQuality = 0.85f;
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public void setFormat(Format format) {
+        if (format == null) {
+            throw new IllegalArgumentException("format cannot be null");
+        }
+        this.format = format;
+    }
+
+    /**
+     * Returns the deflate compression level for PNG images.
+     *
+     * @return The level between 0 (no compression) and 9 (best compression).
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Sets the deflate compression level for PNG images. Lower levels are
+     * faster but create larger files.
+     *
+     * @param compressionLevel The level between 0 (no compression) and 9
+     * (best compression).
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException("invalid compression level");
+        }
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Returns the filter for PNG images with 8 bits per channel. Images with
+     * a palette are not filtered.
+     *
+     * @return The filter.
+     */
+    public Filter getFilter() {
+        return filter;
+    }
+
+    public void setFilter(Filter filter) {
+        if (filter == null) {
+            throw new IllegalArgumentException("filter cannot be null");
+        }
+        this.filter = filter;
+    }
+
+    /**
+     * Returns the maximum number of colors of PNG images with a palette.
+     *
+     * @return The number of colors between 2 and 256.
+     */
+    public int getPaletteColors() {
+        return paletteColors;
+    }
+
+    public void setPaletteColors(int paletteColors) {
+        if (paletteColors < 2 || paletteColors > 256) {
+            throw new IllegalArgumentException("invalid number of colors");
+        }
+        this.paletteColors = paletteColors;
+    }
+
+    /**
+     * Returns the quality of JPEG images.
+     *
+     * @return The quality between 0 and 1.
+     */
+    public float getJPEGQuality() {
+        return jpegQuality;
+    }
+
+    public void setJPEGQuality(float jpegQuality) {
+        if (jpegQuality < 0 || jpegQuality > 1) {
+            throw new IllegalArgumentException("invalid JPEG quality");
+        }
+        this.jpegQuality = jpegQuality;
+    }
+
+    /**
+     * Returns the file extension for encoded images.
+     *
+     * @return "png" or "jpg"
+     */
+    public String getFileExtension() {
+        return format == Format.JPEG ? "jpg" : "png";
+    }
+
+    /**
+     * Returns the MIME type of encoded images.
+     *
+     * @return "image/png" or "image/jpeg"
+     */
+    public String getMIMEType() {
+        return format == Format.JPEG ? "image/jpeg" : "image/png";
+    }
+
+    /**
+     * Encodes an image.
+     *
+     * @param image The image to encode. Can be a sub-image.
+     * @return The encoded image.
+     * @throws IOException
+     */
+    public byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        encode(image, os);
+        return os.toByteArray();
+    }
+
+    /**
+     * Encodes an image and writes it to a stream. The stream is not closed.
+     *
+     * @param image The image to encode. Can be a sub-image.
+     * @param out The destination stream.
+     * @throws IOException
+     */
+    public void encode(BufferedImage image, OutputStream out) throws IOException {
+        if (format == Format.JPEG) {
+            encodeJPEG(image, out);
+            return;
+        }
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int[] pixels = getPixels(image);
+        if (format == Format.PNG_PALETTE && encodePalettePNG(pixels, w, h, out)) {
+            return;
+        }
+        encodePNG(pixels, w, h, out);
+    }
+
+    /**
+     * Returns the ARGB pixels of an image.
+     */
+    private static int[] getPixels(BufferedImage image) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int[] pixels = new int[w * h];
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB) {
+            // much faster than getRGB
+            image.getRaster().getDataElements(0, 0, w, h, pixels);
+        } else {
+            image.getRGB(0, 0, w, h, pixels, 0, w);
+        }
+        return pixels;
+    }
+
+    private void encodePNG(int[] pixels, int w, int h, OutputStream out) throws IOException {
+        boolean opaque = true;
+        for (int argb : pixels) {
+            if ((argb >>> 24) != 0xFF) {
+                opaque = false;
+                break;
+            }
+        }
+        int bytesPerPixel = opaque ? 3 : 4;
+        int rowLength = w * bytesPerPixel;
+
+        byte[] prevRow = new byte[rowLength];
+        byte[] row = new byte[rowLength];
+        byte[][] filtered = new byte[5][rowLength + 1];
+        Compressor compressor = new Compressor(compressionLevel);
+        for (int r = 0; r < h; r++) {
+            int i = 0;
+            for (int c = r * w, end = c + w; c < end; c++) {
+                int argb = pixels[c];
+                row[i++] = (byte) (argb >> 16);
+                row[i++] = (byte) (argb >> 8);
+                row[i++] = (byte) argb;
+                if (!opaque) {
+                    row[i++] = (byte) (argb >>> 24);
+                }
+            }
+            compressor.write(filterRow(row, prevRow, bytesPerPixel, filtered));
+            byte[] tmp = prevRow;
+            prevRow = row;
+            row = tmp;
+        }
+        writePNG(out, w, h, 8, opaque ? COLOR_TYPE_RGB : COLOR_TYPE_RGBA,
+                null, null, compressor.finish());
+    }
+
+    /**
+     * Applies the PNG filter to a row.
+     *
+     * @return The filtered row, starting with the filter type.
+     */
+    private byte[] filterRow(byte[] row, byte[] prevRow, int bpp, byte[][] filtered) {
+        if (filter != Filter.ADAPTIVE) {
+            int type = filter.ordinal();
+            applyFilter(type, row, prevRow, bpp, filtered[type]);
+            return filtered[type];
+        }
+        int bestType = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (int type = 0; type < 5; type++) {
+            byte[] dst = filtered[type];
+            applyFilter(type, row, prevRow, bpp, dst);
+            long sum = 0;
+            for (int i = 1; i < dst.length; i++) {
+                sum += Math.abs(dst[i]);
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                bestType = type;
+            }
+        }
+        return filtered[bestType];
+    }
+
+    private static void applyFilter(int type, byte[] row, byte[] prevRow,
+            int bpp, byte[] dst) {
+        dst[0] = (byte) type;
+        int n = row.length;
+        switch (type) {
+            case 0:
+                System.arraycopy(row, 0, dst, 1, n);
+                break;
+            case 1:
+                for (int i = 0; i < n; i++) {
+                    int left = i < bpp ? 0 : row[i - bpp] & 0xFF;
+                    dst[i + 1] = (byte) (row[i] - left);
+                }
+                break;
+            case 2:
+                for (int i = 0; i < n; i++) {
+                    dst[i + 1] = (byte) (row[i] - prevRow[i]);
+                }
+                break;
+            case 3:
+                for (int i = 0; i < n; i++) {
+                    int left = i < bpp ? 0 : row[i - bpp] & 0xFF;
+                    dst[i + 1] = (byte) (row[i] - ((left + (prevRow[i] & 0xFF)) >> 1));
+                }
+                break;
+            default:
+                for (int i = 0; i < n; i++) {
+                    int a = i < bpp ? 0 : row[i - bpp] & 0xFF;
+                    int b = prevRow[i] & 0xFF;
+                    int c = i < bpp ? 0 : prevRow[i - bpp] & 0xFF;
+                    int p = a + b - c;
+                    int pa = Math.abs(p - a);
+                    int pb = Math.abs(p - b);
+                    int pc = Math.abs(p - c);
+                    int predictor = (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+                    dst[i + 1] = (byte) (row[i] - predictor);
+                }
+        }
+    }
+
+    /**
+     * Encodes an image with a palette.
+     *
+     * @return False if the image has partially transparent pixels and cannot
+     * be stored with a palette.
+     */
+    private boolean encodePalettePNG(int[] pixels, int w, int h, OutputStream out)
+            throws IOException {
+        int transparentPixels = 0;
+        for (int argb : pixels) {
+            int alpha = argb >>> 24;
+            if (alpha == 0) {
+                transparentPixels++;
+            } else if (alpha != 0xFF) {
+                return false;
+            }
+        }
+        // index 0 is reserved for transparent pixels
+        int firstIndex = transparentPixels > 0 ? 1 : 0;
+        int maxColors = paletteColors - firstIndex;
+
+        // try to find a palette with all colors
+        HashMap<Integer, Integer> colorIndices = new HashMap<>();
+        for (int argb : pixels) {
+            if ((argb >>> 24) != 0 && !colorIndices.containsKey(argb)) {
+                if (colorIndices.size() == maxColors) {
+                    colorIndices = null;
+                    break;
+                }
+                colorIndices.put(argb, firstIndex + colorIndices.size());
+            }
+        }
+
+        byte[] indices = new byte[pixels.length];
+        int[] palette;
+        if (colorIndices != null) {
+            palette = new int[firstIndex + colorIndices.size()];
+            for (Map.Entry<Integer, Integer> entry : colorIndices.entrySet()) {
+                palette[entry.getValue()] = entry.getKey();
+            }
+            for (int i = 0; i < pixels.length; i++) {
+                int argb = pixels[i];
+                indices[i] = (argb >>> 24) == 0 ? 0 : colorIndices.get(argb).byteValue();
+            }
+        } else {
+            // reduce the colors
+            int[] opaquePixels = pixels;
+            if (transparentPixels > 0) {
+                opaquePixels = new int[pixels.length - transparentPixels];
+                int j = 0;
+                for (int argb : pixels) {
+                    if ((argb >>> 24) != 0) {
+                        opaquePixels[j++] = argb;
+                    }
+                }
+            }
+            OctTreeQuantizer quantizer = new OctTreeQuantizer();
+            quantizer.setup(maxColors);
+            quantizer.addPixels(opaquePixels, 0, opaquePixels.length);
+            int[] table = quantizer.buildColorTable();
+            int colors = 0;
+            for (int i = 0; i < pixels.length; i++) {
+                int argb = pixels[i];
+                if ((argb >>> 24) != 0) {
+                    int index = firstIndex + quantizer.getIndexForColor(argb);
+                    indices[i] = (byte) index;
+                    colors = Math.max(colors, index + 1);
+                }
+            }
+            palette = new int[Math.max(colors, firstIndex + 1)];
+            for (int i = firstIndex; i < palette.length; i++) {
+                palette[i] = table[i - firstIndex];
+            }
+        }
+
+        // use fewer bits per pixel for small palettes
+        int bitDepth = palette.length <= 2 ? 1 : palette.length <= 4 ? 2
+                : palette.length <= 16 ? 4 : 8;
+        int pixelsPerByte = 8 / bitDepth;
+        byte[] row = new byte[1 + (w + pixelsPerByte - 1) / pixelsPerByte];
+        Compressor compressor = new Compressor(compressionLevel);
+        for (int r = 0; r < h; r++) {
+            Arrays.fill(row, (byte) 0);
+            for (int c = 0; c < w; c++) {
+                int index = indices[r * w + c] & 0xFF;
+                int shift = 8 - bitDepth * (c % pixelsPerByte + 1);
+                row[1 + c / pixelsPerByte] |= index << shift;
+            }
+            compressor.write(row);
+        }
+
+        byte[] plte = new byte[palette.length * 3];
+        for (int i = 0; i < palette.length; i++) {
+            plte[i * 3] = (byte) (palette[i] >> 16);
+            plte[i * 3 + 1] = (byte) (palette[i] >> 8);
+            plte[i * 3 + 2] = (byte) palette[i];
+        }
+        byte[] trns = transparentPixels > 0 ? new byte[]{0} : null;
+        writePNG(out, w, h, bitDepth, COLOR_TYPE_PALETTE, plte, trns, compressor.finish());
+        return true;
+    }
+
+    private static void writePNG(OutputStream out, int w, int h, int bitDepth,
+            int colorType, byte[] plte, byte[] trns, byte[] idat) throws IOException {
+        ByteArrayOutputStream ihdr = new ByteArrayOutputStream(13);
+        DataOutputStream dos = new DataOutputStream(ihdr);
+        dos.writeInt(w);
+        dos.writeInt(h);
+        dos.writeByte(bitDepth);
+        dos.writeByte(colorType);
+        dos.writeByte(0); // deflate compression
+        dos.writeByte(0); // adaptive filtering
+        dos.writeByte(0); // no interlace
+
+        out.write(PNG_SIGNATURE);
+        writeChunk(out, "IHDR", ihdr.toByteArray());
+        if (plte != null) {
+            writeChunk(out, "PLTE", plte);
+        }
+        if (trns != null) {
+            writeChunk(out, "tRNS", trns);
+        }
+        writeChunk(out, "IDAT", idat);
+        writeChunk(out, "IEND", new byte[0]);
+    }
+
+    private static void writeChunk(OutputStream out, String type, byte[] data)
+            throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(data.length);
+        dos.write(typeBytes);
+        dos.write(data);
+        dos.writeInt((int) crc.getValue());
+        dos.flush();
+    }
+
+    /**
+     * Compresses rows with the Deflater of the current thread.
+     */
+    private static final class Compressor {
+
+        private final Deflater deflater = deflaters.get();
+        private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        private final byte[] buffer = new byte[8192];
+
+        Compressor(int level) {
+            deflater.reset();
+            deflater.setLevel(level);
+        }
+
+        void write(byte[] data) {
+            deflater.setInput(data);
+            while (!deflater.needsInput()) {
+                int n = deflater.deflate(buffer);
+                compressed.write(buffer, 0, n);
+            }
+        }
+
+        byte[] finish() {
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                compressed.write(buffer, 0, n);
+            }
+            return compressed.toByteArray();
+        }
+    }
+
+    private void encodeJPEG(BufferedImage image, OutputStream out) throws IOException {
+        // JPEG has no alpha channel
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(),
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = rgb.createGraphics();
+        g2d.drawImage(image, 0, 0, Color.WHITE, null);
+        g2d.dispose();
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new IOException("No JPEG encoder available");
+        }
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(rgb, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+}
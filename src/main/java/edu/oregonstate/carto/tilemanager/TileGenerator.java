@@ -1,13 +1,39 @@
 package edu.oregonstate.carto.tilemanager;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import edu.oregonstate.carto.mapcomposer.Layer;
 import edu.oregonstate.carto.mapcomposer.Map;
 import edu.oregonstate.carto.mapcomposer.gui.ProgressIndicator;
+import edu.oregonstate.carto.utils.BufferPool;
+import edu.oregonstate.carto.utils.FileUtils;
+import edu.oregonstate.carto.utils.HashUtils;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
 import javax.imageio.ImageIO;
+import javax.xml.bind.JAXBException;
 
 /**
  *
@@ -25,6 +51,73 @@ public class TileGenerator {
     private int minZoom = 0;
     private int maxZoom = 4;
 
+    /**
+     * Number of tiles along each side of a metatile. Rendering a block of
+     * tiles at once avoids rendering the overlapping borders of adjacent
+     * tiles, which multiple layer effects require.
+     */
+    private int metaTileSize = 1;
+
+    private int renderThreads = Runtime.getRuntime().availableProcessors();
+    private int writeThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    /**
+     * Interval for updating the progress message and checking for aborts.
+     */
+    private static final long PROGRESS_INTERVAL_MS = 250;
+
+    /**
+     * Interval for appending records to the statistics log.
+     */
+    private static final long STATISTICS_LOG_INTERVAL_MS = 5000;
+
+    /**
+     * Maximum number of checksums of source tiles that are kept during a run
+     * in incremental mode.
+     */
+    private static final int MAX_CHECKSUMS = 64 * 1024;
+
+    /**
+     * Name of the manifest file in the output directory.
+     */
+    public static final String MANIFEST_FILE_NAME = "tiles.manifest";
+
+    /**
+     * If true, only tiles whose inputs have changed since they were last
+     * written are generated.
+     */
+    private boolean incremental = false;
+
+    /**
+     * If true, only the maximum zoom level is rendered, and lower zoom levels
+     * are derived from higher zoom levels.
+     */
+    private boolean pyramid = false;
+
+    /**
+     * If true, identical tiles are written as links to a shared file.
+     */
+    private boolean deduplicate = false;
+
+    private TileEncoder encoder = new TileEncoder();
+
+    /**
+     * Log file with comma-separated statistics, or null.
+     */
+    private File statisticsLog;
+
+    /**
+     * Zoom level, column and row of a quadtree node. If not null, only tiles
+     * covered by this node are generated. Used by TileJob to generate a shard.
+     */
+    private int[] node;
+
+    /**
+     * The manifest file, or null for a file named MANIFEST_FILE_NAME in the
+     * output directory.
+     */
+    private File manifestFile;
+
     public TileGenerator(File directory) {
         this.directory = directory;
     }
@@ -41,28 +134,940 @@ public class TileGenerator {
         this.maxZoom = maxZoom;
     }
 
-    private static String formatTimeInterval(final long ms) {
-        final long hr = TimeUnit.MILLISECONDS.toHours(ms);
-        final long min = TimeUnit.MILLISECONDS.toMinutes(ms - TimeUnit.HOURS.toMillis(hr));
-        final long sec = TimeUnit.MILLISECONDS.toSeconds(ms - TimeUnit.HOURS.toMillis(hr) - TimeUnit.MINUTES.toMillis(min));
-        return String.format("%02d:%02d:%02d", hr, min, sec);
+    public int getMinZoom() {
+        return minZoom;
+    }
+
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    /**
+     * Returns the number of tiles along each side of a metatile.
+     *
+     * @return The number of tiles, 1 if tiles are rendered separately.
+     */
+    public int getMetaTileSize() {
+        return metaTileSize;
+    }
+
+    /**
+     * Sets the number of tiles along each side of a metatile. A block of n x n
+     * tiles is rendered as a single image, which is then cut into tiles.
+     * Larger metatiles are faster to render but require more memory.
+     *
+     * @param metaTileSize The number of tiles, 1 to render tiles separately.
+     */
+    public void setMetaTileSize(int metaTileSize) {
+        if (metaTileSize < 1) {
+            throw new IllegalArgumentException("invalid metatile size");
+        }
+        this.metaTileSize = metaTileSize;
+    }
+
+    /**
+     * Returns the number of threads rendering tiles.
+     *
+     * @return The number of threads.
+     */
+    public int getRenderThreads() {
+        return renderThreads;
+    }
+
+    /**
+     * Sets the number of threads rendering tiles. Each thread renders a
+     * metatile at a time, so memory consumption grows with the number of
+     * threads.
+     *
+     * @param renderThreads The number of threads.
+     */
+    public void setRenderThreads(int renderThreads) {
+        if (renderThreads < 1) {
+            throw new IllegalArgumentException("invalid number of threads");
+        }
+        this.renderThreads = renderThreads;
+    }
+
+    /**
+     * Returns the number of threads encoding and writing tiles.
+     *
+     * @return The number of threads.
+     */
+    public int getWriteThreads() {
+        return writeThreads;
+    }
+
+    /**
+     * Sets the number of threads encoding and writing tiles.
+     *
+     * @param writeThreads The number of threads.
+     */
+    public void setWriteThreads(int writeThreads) {
+        if (writeThreads < 1) {
+            throw new IllegalArgumentException("invalid number of threads");
+        }
+        this.writeThreads = writeThreads;
+    }
+
+    /**
+     * Returns whether only tiles with changed inputs are generated.
+     *
+     * @return True if tiles are generated incrementally.
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Sets whether only tiles with changed inputs are generated. In
+     * incremental mode, a manifest in the output directory records a
+     * fingerprint of the map style and the source tiles of each written tile.
+     * Tiles are skipped if their fingerprint has not changed and the tile file
+     * exists. The manifest is updated after each tile is written, so that
+     * an aborted or crashed run can be resumed.
+     *
+     * Source tiles with file URLs are identified by a checksum of their
+     * content. Other source tiles are identified by their URL only.
+     *
+     * @param incremental True to generate tiles incrementally.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Returns whether lower zoom levels are derived from higher zoom levels.
+     *
+     * @return True if lower zoom levels are derived from higher zoom levels.
+     */
+    public boolean isPyramid() {
+        return pyramid;
     }
 
+    /**
+     * Sets whether lower zoom levels are derived from higher zoom levels. If
+     * true, only tiles at the maximum zoom level are rendered. Each tile at a
+     * lower zoom level is built by reducing the four tiles at the next higher
+     * zoom level to half their size. The lower zoom levels are built bottom-up
+     * after the maximum zoom level has been written, and child tiles are read
+     * from the written files, so that only a few tiles are in memory at any
+     * time. Child tiles outside of the extent have not been written and are
+     * rendered, but not written.
+     *
+     * In incremental mode, only the maximum zoom level is incremental; lower
+     * zoom levels are always built.
+     *
+     * @param pyramid True to derive lower zoom levels from higher zoom levels.
+     */
+    public void setPyramid(boolean pyramid) {
+        this.pyramid = pyramid;
+    }
+
+    /**
+     * Returns whether identical tiles are written as links to a shared file.
+     *
+     * @return True if identical tiles are written as links.
+     */
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    /**
+     * Sets whether identical tiles are written as links to a shared file.
+     * Tiles with a single color, such as blank tiles, are detected without
+     * encoding them. Other duplicate tiles are detected by a hash of their PNG
+     * data. Shared files are stored in a subdirectory named "shared".
+     *
+     * @param deduplicate True to write identical tiles as links.
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * Returns the encoder for tiles.
+     *
+     * @return The encoder.
+     */
+    public TileEncoder getEncoder() {
+        return encoder;
+    }
+
+    /**
+     * Sets the encoder for tiles, which determines the image format of tiles.
+     *
+     * @param encoder The encoder.
+     */
+    public void setEncoder(TileEncoder encoder) {
+        if (encoder == null) {
+            throw new IllegalArgumentException("encoder cannot be null");
+        }
+        this.encoder = encoder;
+    }
+
+    /**
+     * Returns the log file for statistics.
+     *
+     * @return The log file, or null if no statistics are logged.
+     */
+    public File getStatisticsLog() {
+        return statisticsLog;
+    }
+
+    /**
+     * Sets a log file for statistics, which allows for monitoring runs
+     * without user interface. Every few seconds and at the end of a run, a
+     * line with comma-separated values is appended to the file. The values
+     * are the number of tiles, progress, throughput, estimated remaining time,
+     * bytes written and the time spent in each stage. The first line of the
+     * file names the values.
+     *
+     * @param statisticsLog The log file, or null to not log statistics.
+     */
+    public void setStatisticsLog(File statisticsLog) {
+        this.statisticsLog = statisticsLog;
+    }
+
+    /**
+     * Returns the number of tiles that are generated.
+     *
+     * @return The number of tiles in the extent and zoom range.
+     */
+    public long countTiles() {
+        long count = 0;
+        for (int z = minZoom; z <= maxZoom; z++) {
+            int[] range = tileRange(z);
+            int tilesPerZoom = 1 << z;
+            long columns = Math.min(range[1], tilesPerZoom - 1) - range[0] + 1;
+            long rows = Math.min(range[3], tilesPerZoom - 1) - range[2] + 1;
+            if (columns > 0 && rows > 0) {
+                count += columns * rows;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Restricts generated tiles to the tiles covered by a quadtree node.
+     *
+     * @param z Zoom level of the node.
+     * @param x Column of the node.
+     * @param y Row of the node.
+     */
+    void setNode(int z, int x, int y) {
+        node = new int[]{z, x, y};
+    }
+
+    /**
+     * Sets the manifest file for incremental generation.
+     *
+     * @param manifestFile The manifest file, or null for a file named
+     * MANIFEST_FILE_NAME in the output directory.
+     */
+    void setManifestFile(File manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * Stores the settings of this generator, such that a generator with
+     * identical settings can be created in another process.
+     *
+     * @param p Receives the settings.
+     */
+    void storeSettings(Properties p) {
+        p.setProperty("directory", directory.getAbsolutePath());
+        p.setProperty("west", Double.toString(west));
+        p.setProperty("east", Double.toString(east));
+        p.setProperty("south", Double.toString(south));
+        p.setProperty("north", Double.toString(north));
+        p.setProperty("minZoom", Integer.toString(minZoom));
+        p.setProperty("maxZoom", Integer.toString(maxZoom));
+        p.setProperty("metaTileSize", Integer.toString(metaTileSize));
+        p.setProperty("renderThreads", Integer.toString(renderThreads));
+        p.setProperty("writeThreads", Integer.toString(writeThreads));
+        p.setProperty("incremental", Boolean.toString(incremental));
+        p.setProperty("pyramid", Boolean.toString(pyramid));
+        p.setProperty("deduplicate", Boolean.toString(deduplicate));
+        p.setProperty("format", encoder.getFormat().name());
+        p.setProperty("compressionLevel", Integer.toString(encoder.getCompressionLevel()));
+        p.setProperty("filter", encoder.getFilter().name());
+        p.setProperty("paletteColors", Integer.toString(encoder.getPaletteColors()));
+        p.setProperty("jpegQuality", Float.toString(encoder.getJPEGQuality()));
+    }
+
+    /**
+     * Creates a generator with settings stored by storeSettings().
+     *
+     * @param p The settings.
+     * @return A new generator.
+     */
+    static TileGenerator loadSettings(Properties p) {
+        TileGenerator generator = new TileGenerator(new File(p.getProperty("directory")));
+        generator.setExtent(Double.parseDouble(p.getProperty("west")),
+                Double.parseDouble(p.getProperty("east")),
+                Double.parseDouble(p.getProperty("south")),
+                Double.parseDouble(p.getProperty("north")));
+        generator.setZoomRange(Integer.parseInt(p.getProperty("minZoom")),
+                Integer.parseInt(p.getProperty("maxZoom")));
+        generator.setMetaTileSize(Integer.parseInt(p.getProperty("metaTileSize")));
+        generator.setRenderThreads(Integer.parseInt(p.getProperty("renderThreads")));
+        generator.setWriteThreads(Integer.parseInt(p.getProperty("writeThreads")));
+        generator.setIncremental(Boolean.parseBoolean(p.getProperty("incremental")));
+        generator.setPyramid(Boolean.parseBoolean(p.getProperty("pyramid")));
+        generator.setDeduplicate(Boolean.parseBoolean(p.getProperty("deduplicate")));
+        TileEncoder tileEncoder = new TileEncoder();
+        tileEncoder.setFormat(TileEncoder.Format.valueOf(p.getProperty("format")));
+        tileEncoder.setCompressionLevel(Integer.parseInt(p.getProperty("compressionLevel")));
+        tileEncoder.setFilter(TileEncoder.Filter.valueOf(p.getProperty("filter")));
+        tileEncoder.setPaletteColors(Integer.parseInt(p.getProperty("paletteColors")));
+        tileEncoder.setJPEGQuality(Float.parseFloat(p.getProperty("jpegQuality")));
+        generator.setEncoder(tileEncoder);
+        return generator;
+    }
+
+    /**
+     * Returns the number of tiles along each side of the metatiles at a zoom
+     * level. Metatiles are not larger than the world or than the quadtree node
+     * of a shard, so that a shard does not render tiles of other shards.
+     *
+     * @param z The zoom level.
+     * @return The number of tiles.
+     */
+    private int metaTileSize(int z) {
+        int n = Math.min(metaTileSize, 1 << z);
+        if (node != null) {
+            n = Math.min(n, z >= node[0] ? 1 << (z - node[0]) : 1);
+        }
+        return n;
+    }
+
+    /**
+     * Returns the range of tiles covering the extent at a zoom level. If a
+     * quadtree node is set, the range is restricted to the tiles covered by
+     * the node.
+     *
+     * @param z The zoom level.
+     * @return The first column, last column, first row and last row.
+     */
+    int[] tileRange(int z) {
+        // y increases from north to south
+        int[] range = new int[]{
+            TileIterator.lonToTileX(west, z),
+            TileIterator.lonToTileX(east, z),
+            TileIterator.latToTileY(north, z),
+            TileIterator.latToTileY(south, z)
+        };
+        if (node != null) {
+            int nodeX = node[1], nodeY = node[2];
+            int tilesPerSide = 1;
+            if (z >= node[0]) {
+                nodeX <<= z - node[0];
+                nodeY <<= z - node[0];
+                tilesPerSide <<= z - node[0];
+            } else {
+                nodeX >>= node[0] - z;
+                nodeY >>= node[0] - z;
+            }
+            range[0] = Math.max(range[0], nodeX);
+            range[1] = Math.min(range[1], nodeX + tilesPerSide - 1);
+            range[2] = Math.max(range[2], nodeY);
+            range[3] = Math.min(range[3], nodeY + tilesPerSide - 1);
+        }
+        return range;
+    }
+
+    /**
+     * Renders tiles and writes them to PNG files. Tiles are generated by a
+     * pipeline of three stages connected by bounded queues: a single thread
+     * fetches source tiles of metatiles, a pool of threads renders metatiles,
+     * and another pool of threads cuts metatiles into tiles and encodes and
+     * writes them. This method blocks until all tiles are written, an error
+     * occurs or the progress indicator is aborted.
+     *
+     * @param map The map to render.
+     * @param progress Progress indicator that can abort tile generation.
+     * @throws IOException
+     * @throws URISyntaxException
+     */
     public void generateTiles(Map map, ProgressIndicator progress) throws IOException, URISyntaxException {
-        long startTimeMillis = System.currentTimeMillis();
-
-        TileSet outputTileSet = TileSet.createFileTileSet(directory);
-        TileIterator iterator = outputTileSet.createIterator(south, west, north, east, minZoom, maxZoom);
-        while (iterator.hasNext() && !progress.isAborted()) {
-            Tile tile = iterator.next();
-            long ms = System.currentTimeMillis() - startTimeMillis;
-            progress.setMessage("<html>Current tile: " + tile.toDescription()
-                    + "<br>Time spent: " + formatTimeInterval(ms) + "</html>");
-            BufferedImage img = map.generateTile(tile.getZ(), tile.getX(), tile.getY());
-            File file = new File(tile.getURL().toURI());
-            // make sure a directory for each zoom level exists
-            file.getParentFile().mkdirs();
-            ImageIO.write(img, "png", file);
+        TileEncoder tileEncoder = encoder;
+        TileStatistics stats = new TileStatistics(countTiles());
+        TileDeduplicator deduplicator = deduplicate
+                ? new TileDeduplicator(directory, tileEncoder, stats) : null;
+        stats.setLinkCounts(deduplicator);
+        if (statisticsLog != null) {
+            stats.openLog(statisticsLog);
+        }
+        try {
+            progress.progress(0);
+            generateTiles(map, progress, tileEncoder, deduplicator, stats);
+            stats.log();
+        } finally {
+            stats.closeLog();
+        }
+
+        Logger.getLogger(TileGenerator.class.getName()).log(Level.INFO,
+                "{0} tiles written, {1} tiles skipped, {2} tiles per second, {3} bytes written",
+                new Object[]{stats.tilesWritten.get(), stats.tilesSkipped.get(),
+                    String.format("%.1f", stats.tilesPerSecond()), stats.bytesWritten.get()});
+        Logger.getLogger(TileGenerator.class.getName()).log(Level.INFO,
+                "Time per stage: fetch {0} ms, render {1} ms, encode {2} ms, write {3} ms",
+                new Object[]{stats.getTimeMillis(TileStatistics.Stage.FETCH),
+                    stats.getTimeMillis(TileStatistics.Stage.RENDER),
+                    stats.getTimeMillis(TileStatistics.Stage.ENCODE),
+                    stats.getTimeMillis(TileStatistics.Stage.WRITE)});
+        if (deduplicator != null) {
+            Logger.getLogger(TileGenerator.class.getName()).log(Level.INFO,
+                    "{0} duplicate tiles written as links, {1} bytes saved",
+                    new Object[]{deduplicator.getLinkedTiles(),
+                        deduplicator.getSavedBytes()});
+        }
+    }
+
+    private void generateTiles(final Map map, ProgressIndicator progress,
+            final TileEncoder tileEncoder, final TileDeduplicator deduplicator,
+            final TileStatistics stats) throws IOException, URISyntaxException {
+
+        final TileSet outputTileSet = TileSet.createFileTileSet(directory,
+                tileEncoder.getFileExtension());
+        final int nRenderThreads = renderThreads;
+        final int nWriteThreads = writeThreads;
+        final BlockingQueue<MetaTile> renderQueue = new ArrayBlockingQueue<>(2 * nRenderThreads);
+        final BlockingQueue<MetaTile> writeQueue = new ArrayBlockingQueue<>(2 * nWriteThreads);
+        final AtomicInteger activeRenderThreads = new AtomicInteger(nRenderThreads);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final int firstZoom = pyramid ? maxZoom : minZoom;
+
+        final TileManifest manifest;
+        final String styleHash;
+        final List<TileSet> sourceTileSets = new ArrayList<>();
+        // checksums of source tiles, which are shared by neighboring metatiles
+        final Cache<String, String> checksums = CacheBuilder.newBuilder()
+                .maximumSize(MAX_CHECKSUMS).build();
+        if (incremental) {
+            manifest = new TileManifest(manifestFile != null ? manifestFile
+                    : new File(directory, MANIFEST_FILE_NAME));
+            try {
+                styleHash = map.getStyleHash();
+            } catch (JAXBException ex) {
+                throw new IOException("Cannot compute map hash", ex);
+            }
+            for (Layer layer : map.getLayers()) {
+                if (layer.isVisible()) {
+                    sourceTileSets.addAll(layer.getSourceTileSets());
+                }
+            }
+        } else {
+            manifest = null;
+            styleHash = null;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                1 + nRenderThreads + nWriteThreads, threadFactory());
+
+        // prefetch stage: enumerate metatiles and load their source tiles
+        executor.execute(new Stage(error) {
+            @Override
+            void process() throws Exception {
+                for (int z = firstZoom; z <= maxZoom; z++) {
+                    int[] range = tileRange(z);
+                    int n = metaTileSize(z);
+                    // metatiles are aligned to multiples of n, counted from
+                    // the first tile of the quadtree node of a shard
+                    int originX = 0, originY = 0;
+                    if (node != null && z >= node[0]) {
+                        originX = node[1] << (z - node[0]);
+                        originY = node[2] << (z - node[0]);
+                    }
+                    for (int x = originX + (range[0] - originX) / n * n; x <= range[1]; x += n) {
+                        for (int y = originY + (range[2] - originY) / n * n; y <= range[3]; y += n) {
+                            long startNanos = System.nanoTime();
+                            MetaTile metaTile = new MetaTile(z, x, y, n, range);
+                            if (metaTile.countTiles() == 0) {
+                                continue;
+                            }
+                            if (manifest != null) {
+                                metaTile.fingerprints = fingerprints(metaTile,
+                                        styleHash, sourceTileSets, checksums);
+                                int upToDate = countUpToDate(metaTile, manifest, outputTileSet);
+                                if (upToDate == metaTile.countTiles()) {
+                                    stats.tilesSkipped.addAndGet(upToDate);
+                                    stats.addTime(TileStatistics.Stage.FETCH, startNanos);
+                                    continue;
+                                }
+                            }
+                            map.prefetchMetaTile(z, x, y, n);
+                            stats.addTime(TileStatistics.Stage.FETCH, startNanos);
+                            renderQueue.put(metaTile);
+                        }
+                    }
+                }
+                for (int i = 0; i < nRenderThreads; i++) {
+                    renderQueue.put(MetaTile.END);
+                }
+            }
+        });
+
+        // render stage
+        for (int i = 0; i < nRenderThreads; i++) {
+            executor.execute(new Stage(error) {
+                @Override
+                void process() throws Exception {
+                    MetaTile metaTile;
+                    while ((metaTile = renderQueue.take()) != MetaTile.END) {
+                        long startNanos = System.nanoTime();
+                        metaTile.image = map.generateMetaTile(metaTile.z,
+                                metaTile.x, metaTile.y, metaTile.tilesPerSide);
+                        stats.addTime(TileStatistics.Stage.RENDER, startNanos);
+                        writeQueue.put(metaTile);
+                    }
+                    // the last render thread stops the write stage
+                    if (activeRenderThreads.decrementAndGet() == 0) {
+                        for (int i = 0; i < nWriteThreads; i++) {
+                            writeQueue.put(MetaTile.END);
+                        }
+                    }
+                }
+            });
+        }
+
+        // encode and write stage
+        for (int i = 0; i < nWriteThreads; i++) {
+            executor.execute(new Stage(error) {
+                @Override
+                void process() throws Exception {
+                    MetaTile metaTile;
+                    while ((metaTile = writeQueue.take()) != MetaTile.END) {
+                        stats.tilesWritten.addAndGet(write(metaTile, outputTileSet, manifest,
+                                tileEncoder, deduplicator, stats));
+                        BufferPool.release(metaTile.image);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+
+        try {
+            awaitTermination(executor, progress, error, stats);
+            if (manifest != null && !progress.isAborted()) {
+                manifest.compact();
+            }
+        } finally {
+            if (manifest != null) {
+                manifest.close();
+            }
+        }
+
+        // build lower zoom levels bottom-up
+        for (int z = firstZoom - 1; z >= minZoom && !progress.isAborted(); z--) {
+            long levelStartTimeMillis = System.currentTimeMillis();
+            long levelTiles = buildPyramidLevel(map, z, outputTileSet, tileEncoder,
+                    deduplicator, progress, stats);
+            Logger.getLogger(TileGenerator.class.getName()).log(Level.INFO,
+                    "Zoom level {0}: {1} tiles built in {2} ms",
+                    new Object[]{z, levelTiles,
+                        System.currentTimeMillis() - levelStartTimeMillis});
+        }
+    }
+
+    /**
+     * Builds all tiles of a zoom level from the tiles of the next higher zoom
+     * level.
+     *
+     * @return The number of written tiles.
+     */
+    private long buildPyramidLevel(final Map map, final int z,
+            final TileSet outputTileSet, final TileEncoder tileEncoder,
+            final TileDeduplicator deduplicator, ProgressIndicator progress,
+            final TileStatistics stats)
+            throws IOException, URISyntaxException {
+        final int[] range = tileRange(z);
+        final AtomicLong levelTiles = new AtomicLong();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        ExecutorService executor = Executors.newFixedThreadPool(renderThreads,
+                threadFactory());
+        // one task per column of tiles
+        for (int x = range[0]; x <= range[1]; x++) {
+            final int tileX = x;
+            executor.execute(new Stage(error) {
+                @Override
+                void process() throws Exception {
+                    for (int y = range[2]; y <= range[3]; y++) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            return;
+                        }
+                        buildPyramidTile(map, z, tileX, y, outputTileSet,
+                                tileEncoder, deduplicator, stats);
+                        stats.tilesWritten.incrementAndGet();
+                        levelTiles.incrementAndGet();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        awaitTermination(executor, progress, error, stats);
+        return levelTiles.get();
+    }
+
+    /**
+     * Builds a tile from the four tiles at the next higher zoom level and
+     * writes it.
+     */
+    private static void buildPyramidTile(Map map, int z, int x, int y,
+            TileSet outputTileSet, TileEncoder encoder, TileDeduplicator deduplicator,
+            TileStatistics stats) throws IOException, URISyntaxException {
+        final int size = Tile.TILE_SIZE;
+        int[] childPixels = new int[size * size];
+        BufferedImage img = BufferPool.acquireImage(size, size);
+        int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        for (int row = 0; row < 2; row++) {
+            for (int col = 0; col < 2; col++) {
+                int childX = x * 2 + col;
+                int childY = y * 2 + row;
+                File childFile = new File(outputTileSet.urlForZXY(z + 1, childX, childY).toURI());
+                BufferedImage child;
+                long startNanos = System.nanoTime();
+                if (childFile.isFile()) {
+                    child = ImageIO.read(childFile);
+                    if (child == null) {
+                        throw new IOException("Cannot read " + childFile);
+                    }
+                    stats.addTime(TileStatistics.Stage.FETCH, startNanos);
+                    startNanos = System.nanoTime();
+                } else {
+                    child = map.generateTile(z + 1, childX, childY);
+                }
+                child.getRGB(0, 0, size, size, childPixels, 0, size);
+                BufferPool.release(child);
+                downsample(childPixels, pixels, col * size / 2, row * size / 2);
+                stats.addTime(TileStatistics.Stage.RENDER, startNanos);
+            }
+        }
+        writeTile(img, new File(outputTileSet.urlForZXY(z, x, y).toURI()),
+                encoder, deduplicator, stats);
+        BufferPool.release(img);
+    }
+
+    /**
+     * Reduces a tile to half its size and copies it to a quadrant of another
+     * tile. Each pixel is the average of 2 x 2 pixels weighted by their alpha
+     * values.
+     *
+     * @param src The ARGB pixels of the tile to reduce.
+     * @param dst The ARGB pixels of the destination tile.
+     * @param dstX Column of the quadrant in the destination tile.
+     * @param dstY Row of the quadrant in the destination tile.
+     */
+    private static void downsample(int[] src, int[] dst, int dstX, int dstY) {
+        final int size = Tile.TILE_SIZE;
+        for (int r = 0; r < size / 2; r++) {
+            int srcRow = r * 2 * size;
+            int dstRow = (dstY + r) * size + dstX;
+            for (int c = 0; c < size / 2; c++) {
+                int i = srcRow + c * 2;
+                int a = 0, red = 0, green = 0, blue = 0;
+                for (int k = 0; k < 4; k++) {
+                    int argb = src[i + (k & 1) + (k >> 1) * size];
+                    int alpha = argb >>> 24;
+                    a += alpha;
+                    red += ((argb >> 16) & 0xFF) * alpha;
+                    green += ((argb >> 8) & 0xFF) * alpha;
+                    blue += (argb & 0xFF) * alpha;
+                }
+                if (a == 0) {
+                    dst[dstRow + c] = 0;
+                } else {
+                    // round to the nearest value
+                    int half = a / 2;
+                    dst[dstRow + c] = ((a + 2) / 4) << 24
+                            | ((red + half) / a) << 16
+                            | ((green + half) / a) << 8
+                            | ((blue + half) / a);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until all stages have terminated while updating the progress
+     * message and the statistics log. Stops all stages if the progress indicator is aborted or a
+     * stage fails, and rethrows the error of the failed stage.
+     */
+    private static void awaitTermination(ExecutorService executor,
+            ProgressIndicator progress, AtomicReference<Throwable> error,
+            TileStatistics stats) throws IOException, URISyntaxException {
+        try {
+            while (!executor.awaitTermination(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                if (progress.isAborted() || error.get() != null) {
+                    // interrupt all stages
+                    executor.shutdownNow();
+                } else {
+                    progress.setMessage(stats.progressMessage());
+                    progress.progress(stats.percent());
+                    stats.log(STATISTICS_LOG_INTERVAL_MS);
+                }
+            }
+        } catch (InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        Throwable t = error.get();
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        }
+        if (t instanceof URISyntaxException) {
+            throw (URISyntaxException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        if (t != null) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static ThreadFactory threadFactory() {
+        return new ThreadFactory() {
+            private int threadCounter = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Tile Generator " + threadCounter++);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Cuts a rendered metatile into tiles and writes the tiles that are inside
+     * the extent.
+     *
+     * @return The number of written tiles.
+     */
+    private static int write(MetaTile metaTile, TileSet outputTileSet,
+            TileManifest manifest, TileEncoder encoder, TileDeduplicator deduplicator,
+            TileStatistics stats) throws IOException, URISyntaxException {
+        int n = metaTile.tilesPerSide;
+        int count = 0;
+        for (int col = 0; col < n; col++) {
+            for (int row = 0; row < n; row++) {
+                if (!metaTile.isInside(col, row)) {
+                    continue;
+                }
+                int x = metaTile.x + col;
+                int y = metaTile.y + row;
+                BufferedImage tileImg = n == 1 ? metaTile.image
+                        : metaTile.image.getSubimage(col * Tile.TILE_SIZE,
+                                row * Tile.TILE_SIZE, Tile.TILE_SIZE, Tile.TILE_SIZE);
+                File file = new File(outputTileSet.urlForZXY(metaTile.z, x, y).toURI());
+                writeTile(tileImg, file, encoder, deduplicator, stats);
+                if (manifest != null) {
+                    manifest.put(metaTile.z, x, y, metaTile.fingerprints[row * n + col]);
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes a tile to a file, or as a link if a deduplicator is specified.
+     */
+    private static void writeTile(BufferedImage img, File file, TileEncoder encoder,
+            TileDeduplicator deduplicator, TileStatistics stats) throws IOException {
+        if (deduplicator != null) {
+            deduplicator.write(img, file);
+            return;
+        }
+        long startNanos = System.nanoTime();
+        byte[] data = encoder.encode(img);
+        stats.addTime(TileStatistics.Stage.ENCODE, startNanos);
+        startNanos = System.nanoTime();
+        // replaces a link to a shared tile instead of writing to the shared tile
+        FileUtils.writeAtomically(data, file);
+        stats.addTime(TileStatistics.Stage.WRITE, startNanos);
+        stats.bytesWritten.addAndGet(data.length);
+    }
+
+    /**
+     * Computes the fingerprints of the inputs of the tiles in a metatile. The
+     * fingerprint of a tile combines the map style with the URLs and checksums
+     * of the source tiles covering the tile and its eight neighbors.
+     *
+     * @param checksums Checksums of source tiles computed for previous
+     * metatiles, keyed by URL, time of last modification and file size.
+     * @return Hexadecimal MD5 hashes in row-major order.
+     */
+    private static String[] fingerprints(MetaTile metaTile, String styleHash,
+            List<TileSet> sourceTileSets, Cache<String, String> checksums)
+            throws IOException, URISyntaxException {
+        int n = metaTile.tilesPerSide;
+        String[] fingerprints = new String[n * n];
+        for (int col = 0; col < n; col++) {
+            for (int row = 0; row < n; row++) {
+                if (!metaTile.isInside(col, row)) {
+                    continue;
+                }
+                MessageDigest md5 = HashUtils.md5();
+                md5.update(styleHash.getBytes(StandardCharsets.UTF_8));
+                for (TileSet tileSet : sourceTileSets) {
+                    for (int dy = -1; dy <= 1; dy++) {
+                        for (int dx = -1; dx <= 1; dx++) {
+                            URL url = tileSet.urlForZXY(metaTile.z,
+                                    metaTile.x + col + dx, metaTile.y + row + dy);
+                            String checksum = "";
+                            if (url != null) {
+                                String key = DecodedTileCache.key(url);
+                                checksum = checksums.getIfPresent(key);
+                                if (checksum == null) {
+                                    checksum = sourceChecksum(url);
+                                    checksums.put(key, checksum);
+                                }
+                            }
+                            md5.update((url + " " + checksum + "\n").getBytes(StandardCharsets.UTF_8));
+                        }
+                    }
+                }
+                fingerprints[row * n + col] = HashUtils.toHex(md5.digest());
+            }
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Returns a checksum of a source tile. Only tiles stored in local files
+     * are read; other tiles are identified by their URL.
+     */
+    private static String sourceChecksum(URL url) throws IOException, URISyntaxException {
+        if (url == null || !"file".equals(url.getProtocol())) {
+            return "";
+        }
+        File file = new File(url.toURI());
+        if (!file.isFile()) {
+            return "missing";
+        }
+        CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(file.toPath()));
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * Returns the number of tiles in a metatile that have been written with
+     * their current fingerprint.
+     */
+    private static int countUpToDate(MetaTile metaTile, TileManifest manifest,
+            TileSet outputTileSet) throws URISyntaxException {
+        int n = metaTile.tilesPerSide;
+        int count = 0;
+        for (int col = 0; col < n; col++) {
+            for (int row = 0; row < n; row++) {
+                if (!metaTile.isInside(col, row)) {
+                    continue;
+                }
+                int x = metaTile.x + col;
+                int y = metaTile.y + row;
+                if (manifest.isUpToDate(metaTile.z, x, y, metaTile.fingerprints[row * n + col])
+                        && new File(outputTileSet.urlForZXY(metaTile.z, x, y).toURI()).isFile()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * A block of tiles passed between the stages of the pipeline.
+     */
+    private static final class MetaTile {
+
+        /**
+         * Marks the end of a queue.
+         */
+        static final MetaTile END = new MetaTile(0, 0, 0, 0, null);
+
+        final int z, x, y, tilesPerSide;
+
+        /**
+         * The range of tiles to write at zoom level z.
+         */
+        final int[] range;
+
+        /**
+         * The rendered image, null before the render stage.
+         */
+        BufferedImage image;
+
+        /**
+         * Fingerprints of the inputs of the tiles in row-major order, or null
+         * if tiles are not generated incrementally.
+         */
+        String[] fingerprints;
+
+        MetaTile(int z, int x, int y, int tilesPerSide, int[] range) {
+            this.z = z;
+            this.x = x;
+            this.y = y;
+            this.tilesPerSide = tilesPerSide;
+            this.range = range;
+        }
+
+        /**
+         * Returns whether a tile of this metatile is inside the range of tiles
+         * to write and inside the world.
+         */
+        boolean isInside(int col, int row) {
+            int tileX = x + col;
+            int tileY = y + row;
+            int tilesPerZoom = 1 << z;
+            return tileX >= range[0] && tileX <= range[1]
+                    && tileY >= range[2] && tileY <= range[3]
+                    && tileX < tilesPerZoom && tileY < tilesPerZoom;
+        }
+
+        /**
+         * Returns the number of tiles of this metatile that are written.
+         */
+        int countTiles() {
+            int count = 0;
+            for (int col = 0; col < tilesPerSide; col++) {
+                for (int row = 0; row < tilesPerSide; row++) {
+                    if (isInside(col, row)) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * A stage of the pipeline. The first error of any stage is stored, which
+     * stops the pipeline.
+     */
+    private static abstract class Stage implements Runnable {
+
+        private final AtomicReference<Throwable> error;
+
+        Stage(AtomicReference<Throwable> error) {
+            this.error = error;
+        }
+
+        abstract void process() throws Exception;
+
+        @Override
+        public final void run() {
+            try {
+                process();
+            } catch (InterruptedException ex) {
+                // the pipeline has been stopped
+            } catch (Throwable t) {
+                error.compareAndSet(null, t);
+            }
         }
     }
 
@@ -183,22 +183,32 @@ public class TileIterator implements Iterator {
          // Convert TMS y coord to Google y coord, should be done in math above...
          yTile = (int) ((Math.pow(2, zoom) - 1) - (double) yTile);
          */
+        return tileSet.getTile(zoom, lonToTileX(lon, zoom), latToTileY(lat, zoom));
+    }
+
+    /**
+     * Returns the column of the tile containing a longitude.
+     *
+     * @param lon longitude in degrees
+     * @param zoom zoom level
+     * @return column between 0 and 2^zoom - 1
+     */
+    static int lonToTileX(double lon, int zoom) {
         int xtile = (int) Math.floor((lon + 180) / 360 * (1 << zoom));
-        int ytile = (int) Math.floor((1 - Math.log(Math.tan(Math.toRadians(lat)) + 1 / Math.cos(Math.toRadians(lat))) / Math.PI) / 2 * (1 << zoom));
-        if (xtile < 0) {
-            xtile = 0;
-        }
-        if (xtile >= (1 << zoom)) {
-            xtile = ((1 << zoom) - 1);
-        }
-        if (ytile < 0) {
-            ytile = 0;
-        }
-        if (ytile >= (1 << zoom)) {
-            ytile = ((1 << zoom) - 1);
-        }
+        return Math.max(0, Math.min(xtile, (1 << zoom) - 1));
+    }
 
-        return tileSet.getTile(zoom, xtile, ytile);
+    /**
+     * Returns the row of the tile containing a latitude. Rows increase from
+     * north to south.
+     *
+     * @param lat latitude in degrees
+     * @param zoom zoom level
+     * @return row between 0 and 2^zoom - 1
+     */
+    static int latToTileY(double lat, int zoom) {
+        int ytile = (int) Math.floor((1 - Math.log(Math.tan(Math.toRadians(lat)) + 1 / Math.cos(Math.toRadians(lat))) / Math.PI) / 2 * (1 << zoom));
+        return Math.max(0, Math.min(ytile, (1 << zoom) - 1));
     }
 
     @Override
@@ -0,0 +1,417 @@
+package edu.oregonstate.carto.tilemanager;
+
+import edu.oregonstate.carto.mapcomposer.Map;
+import edu.oregonstate.carto.mapcomposer.gui.ProgressIndicator;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.bind.JAXBException;
+
+/**
+ * Generates tiles with multiple worker processes. The extent and zoom range of
+ * a TileGenerator are partitioned into shards. Most shards are quadtree nodes
+ * at a shard zoom level, and contain the tiles covered by the node at the
+ * shard zoom level and all higher zoom levels. One additional shard contains
+ * all tiles at zoom levels below the shard zoom level.
+ *
+ * Workers are separate Java processes running TileWorker, which claim shards
+ * from a ShardQueue in the job directory until no shard is left. All workers
+ * write tiles to the output directory of the generator. A shard that fails is
+ * retried by another worker, also if the worker process crashes, until the
+ * maximum number of attempts is reached. Crashed workers are replaced.
+ *
+ * The job directory contains the map, the settings of the generator, the
+ * queue, the log files of the workers and, for incremental generation, a
+ * manifest for each shard. When all shards are done, the manifests of the
+ * shards are merged into the manifest of the output directory. Incremental
+ * runs of a job must use the same job directory.
+ *
+ * The render and write threads of the generator are the threads of each
+ * worker, so the number of workers times the number of render threads should
+ * not exceed the number of processors by much.
+ *
+ * Generators in pyramid mode are not supported. The overview shard would have
+ * to wait for all other shards and build its tiles from theirs.
+ */
+public class TileJob {
+
+    static final String MAP_FILE_NAME = "map.xml";
+    static final String SETTINGS_FILE_NAME = "job.properties";
+    static final String QUEUE_DIRECTORY_NAME = "queue";
+    static final String MANIFEST_DIRECTORY_NAME = "manifests";
+    static final String LOG_DIRECTORY_NAME = "logs";
+
+    /**
+     * Workers stop when this file exists in the job directory.
+     */
+    static final String STOP_FILE_NAME = "stop";
+
+    /**
+     * Name of the shard with the zoom levels below the shard zoom level.
+     */
+    static final String OVERVIEW_SHARD = "overview";
+
+    /**
+     * Interval for checking workers and updating the progress message.
+     */
+    private static final long PROGRESS_INTERVAL_MS = 500;
+
+    private final File directory;
+
+    private final TileGenerator generator;
+
+    private int workers = 2;
+
+    /**
+     * Zoom level of the quadtree nodes of shards, or -1 to select the zoom
+     * level automatically.
+     */
+    private int shardZoom = -1;
+
+    private int maxAttempts = 3;
+
+    private List<String> javaOptions = Collections.emptyList();
+
+    /**
+     * Creates a job.
+     *
+     * @param directory The job directory.
+     * @param generator The generator defining the tiles and their output
+     * directory. Settings of the generator that are changed after generating
+     * tiles has started are ignored.
+     */
+    public TileJob(File directory, TileGenerator generator) {
+        this.directory = directory;
+        this.generator = generator;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Sets the number of worker processes.
+     *
+     * @param workers The number of processes.
+     */
+    public void setWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("invalid number of workers");
+        }
+        this.workers = workers;
+    }
+
+    /**
+     * Returns the zoom level of the quadtree nodes of shards.
+     *
+     * @return The zoom level, or -1 if the zoom level is selected
+     * automatically.
+     */
+    public int getShardZoom() {
+        return shardZoom;
+    }
+
+    /**
+     * Sets the zoom level of the quadtree nodes of shards. Each tile at this
+     * zoom level is a shard. If the zoom level is selected automatically, the
+     * lowest zoom level with at least four shards per worker is used.
+     *
+     * @param shardZoom The zoom level, or -1 to select the zoom level
+     * automatically.
+     */
+    public void setShardZoom(int shardZoom) {
+        if (shardZoom < -1) {
+            throw new IllegalArgumentException("invalid shard zoom level");
+        }
+        this.shardZoom = shardZoom;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Sets the number of attempts to generate a shard before the shard is
+     * considered failed.
+     *
+     * @param maxAttempts The number of attempts.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("invalid number of attempts");
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    public List<String> getJavaOptions() {
+        return javaOptions;
+    }
+
+    /**
+     * Sets options for the Java virtual machines of workers, for example
+     * "-Xmx2g".
+     *
+     * @param javaOptions The options.
+     */
+    public void setJavaOptions(List<String> javaOptions) {
+        this.javaOptions = new ArrayList<>(javaOptions);
+    }
+
+    /**
+     * Returns the quadtree nodes at a zoom level that intersect the extent.
+     *
+     * @return Shard names of the nodes.
+     */
+    private List<String> nodes(int z) {
+        int[] range = generator.tileRange(z);
+        int tilesPerZoom = 1 << z;
+        List<String> nodes = new ArrayList<>();
+        for (int x = range[0]; x <= Math.min(range[1], tilesPerZoom - 1); x++) {
+            for (int y = range[2]; y <= Math.min(range[3], tilesPerZoom - 1); y++) {
+                nodes.add(z + "-" + x + "-" + y);
+            }
+        }
+        return nodes;
+    }
+
+    private int selectShardZoom() {
+        int minZoom = generator.getMinZoom();
+        int maxZoom = generator.getMaxZoom();
+        if (shardZoom >= 0) {
+            return Math.max(minZoom, Math.min(maxZoom, shardZoom));
+        }
+        for (int z = minZoom; z < maxZoom; z++) {
+            if (nodes(z).size() >= 4 * workers) {
+                return z;
+            }
+        }
+        return maxZoom;
+    }
+
+    /**
+     * Configures a generator for a shard.
+     *
+     * @param generator The generator with the settings of the job.
+     * @param shard The name of the shard.
+     * @param shardZoom The shard zoom level.
+     */
+    static void configureShard(TileGenerator generator, String shard, int shardZoom) {
+        if (OVERVIEW_SHARD.equals(shard)) {
+            generator.setZoomRange(generator.getMinZoom(), shardZoom - 1);
+        } else {
+            String[] tokens = shard.split("-");
+            int z = Integer.parseInt(tokens[0]);
+            generator.setZoomRange(z, generator.getMaxZoom());
+            generator.setNode(z, Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]));
+        }
+    }
+
+    /**
+     * Generates tiles with worker processes. This method blocks until all
+     * shards have been processed or the progress indicator is aborted.
+     *
+     * @param map The map to render.
+     * @param progress Progress indicator that can abort the job.
+     * @throws IOException If a shard failed or workers cannot be started.
+     * @throws JAXBException If the map cannot be stored.
+     * @throws IllegalStateException If the generator is in pyramid mode.
+     */
+    public void generateTiles(Map map, ProgressIndicator progress)
+            throws IOException, JAXBException {
+        if (generator.isPyramid()) {
+            throw new IllegalStateException("tile jobs do not support pyramid mode");
+        }
+        long startTimeMillis = System.currentTimeMillis();
+        File logDirectory = new File(directory, LOG_DIRECTORY_NAME);
+        if (!logDirectory.isDirectory() && !logDirectory.mkdirs()) {
+            throw new IOException("Cannot create directory " + logDirectory);
+        }
+        File stopFile = new File(directory, STOP_FILE_NAME);
+        stopFile.delete();
+
+        try (OutputStream os = new FileOutputStream(new File(directory, MAP_FILE_NAME))) {
+            map.marshal(os);
+        }
+        int z0 = selectShardZoom();
+        Properties settings = new Properties();
+        generator.storeSettings(settings);
+        settings.setProperty("shardZoom", Integer.toString(z0));
+        settings.setProperty("maxAttempts", Integer.toString(maxAttempts));
+        try (OutputStream os = new FileOutputStream(new File(directory, SETTINGS_FILE_NAME))) {
+            settings.store(os, "Tile job");
+        }
+
+        ShardQueue queue = new ShardQueue(new File(directory, QUEUE_DIRECTORY_NAME));
+        queue.clear();
+        if (generator.getMinZoom() < z0) {
+            queue.add(OVERVIEW_SHARD);
+        }
+        for (String node : nodes(z0)) {
+            queue.add(node);
+        }
+        int shards = queue.count(ShardQueue.PENDING);
+
+        // workers get unique IDs, such that the shards of a crashed worker
+        // are not confused with the shards of its replacement
+        int nextWorkerID = 0;
+        int crashes = 0;
+        Process[] processes = new Process[Math.min(workers, shards)];
+        int[] workerIDs = new int[processes.length];
+        try {
+            for (int i = 0; i < processes.length; i++) {
+                workerIDs[i] = nextWorkerID++;
+                processes[i] = startWorker(workerIDs[i], logDirectory);
+            }
+            boolean running = processes.length > 0;
+            while (running) {
+                Thread.sleep(PROGRESS_INTERVAL_MS);
+                if (progress.isAborted()) {
+                    stopFile.createNewFile();
+                    for (Process process : processes) {
+                        if (process != null) {
+                            process.waitFor();
+                        }
+                    }
+                    return;
+                }
+                running = false;
+                for (int i = 0; i < processes.length; i++) {
+                    if (processes[i] == null) {
+                        continue;
+                    }
+                    Integer exitValue = exitValue(processes[i]);
+                    if (exitValue == null) {
+                        running = true;
+                        continue;
+                    }
+                    processes[i] = null;
+                    for (String shard : queue.running(workerIDs[i])) {
+                        queue.release(shard, workerIDs[i], maxAttempts);
+                    }
+                    if (exitValue != 0) {
+                        crashes++;
+                        Logger.getLogger(TileJob.class.getName()).log(Level.WARNING,
+                                "Worker {0} exited with status {1}",
+                                new Object[]{workerIDs[i], exitValue});
+                    }
+                    if (queue.count(ShardQueue.PENDING) > 0) {
+                        if (crashes > workers * maxAttempts) {
+                            throw new IOException("Workers crashed repeatedly, see log files in "
+                                    + logDirectory);
+                        }
+                        workerIDs[i] = nextWorkerID++;
+                        processes[i] = startWorker(workerIDs[i], logDirectory);
+                        running = true;
+                    }
+                }
+                int done = queue.count(ShardQueue.DONE);
+                progress.setMessage("<html>Shards done: " + done + " of " + shards
+                        + "<br>Failed shards: " + queue.count(ShardQueue.FAILED) + "</html>");
+                progress.progress(done * 100 / shards);
+            }
+        } catch (InterruptedException ex) {
+            stopFile.createNewFile();
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            for (Process process : processes) {
+                if (process != null) {
+                    process.destroy();
+                }
+            }
+        }
+
+        List<String> failed = queue.list(ShardQueue.FAILED);
+        if (!failed.isEmpty()) {
+            throw new IOException(failed.size() + " shards failed: " + failed
+                    + ", see log files in " + logDirectory);
+        }
+        if (generator.isIncremental()) {
+            mergeManifests(queue.list(ShardQueue.DONE));
+        }
+        Logger.getLogger(TileJob.class.getName()).log(Level.INFO,
+                "{0} shards generated by {1} workers in {2} ms",
+                new Object[]{shards, nextWorkerID,
+                    System.currentTimeMillis() - startTimeMillis});
+    }
+
+    /**
+     * Returns the manifest file of a shard.
+     *
+     * @param directory The job directory.
+     * @param shard The name of the shard.
+     * @return The manifest file.
+     */
+    static File manifestFile(File directory, String shard) {
+        return new File(new File(directory, MANIFEST_DIRECTORY_NAME), shard + ".manifest");
+    }
+
+    /**
+     * Merges the manifests of shards into the manifest of the output
+     * directory.
+     */
+    private void mergeManifests(List<String> shards) throws IOException {
+        TileManifest manifest = new TileManifest(new File(generator.getDirectory(),
+                TileGenerator.MANIFEST_FILE_NAME));
+        for (String shard : shards) {
+            manifest.putAll(new TileManifest(manifestFile(directory, shard)));
+        }
+        manifest.compact();
+    }
+
+    private Process startWorker(int workerID, File logDirectory) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(javaOptions);
+        command.add("-Djava.awt.headless=true");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(TileWorker.class.getName());
+        command.add(directory.getAbsolutePath());
+        command.add(Integer.toString(workerID));
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.redirectErrorStream(true);
+        processBuilder.redirectOutput(ProcessBuilder.Redirect.appendTo(
+                new File(logDirectory, "worker-" + workerID + ".log")));
+        return processBuilder.start();
+    }
+
+    /**
+     * Returns the exit value of a process, or null if the process is running.
+     */
+    private static Integer exitValue(Process process) {
+        try {
+            return process.exitValue();
+        } catch (IllegalThreadStateException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the settings of a job.
+     *
+     * @param directory The job directory.
+     * @return The settings.
+     * @throws IOException
+     */
+    static Properties readSettings(File directory) throws IOException {
+        Properties settings = new Properties();
+        try (InputStream is = new FileInputStream(new File(directory, SETTINGS_FILE_NAME))) {
+            settings.load(is);
+        }
+        return settings;
+    }
+}
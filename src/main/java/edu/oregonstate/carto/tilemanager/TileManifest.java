@@ -0,0 +1,147 @@
+package edu.oregonstate.carto.tilemanager;
+
+import edu.oregonstate.carto.utils.FileUtils;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A record of the tiles written by the TileGenerator. For each tile, the
+ * manifest stores a fingerprint of the inputs of the tile, which consists of
+ * the hash of the map style and checksums of the source tiles. A tile only
+ * needs to be generated again if its fingerprint has changed.
+ *
+ * The manifest is a text file with one line per tile: "z x y fingerprint".
+ * Lines are appended and flushed when a tile has been written, such that tile
+ * generation can resume after a crash or an abort. Later lines replace earlier
+ * lines for the same tile. compact() removes replaced lines.
+ */
+public class TileManifest {
+
+    private final File file;
+
+    private final HashMap<String, String> fingerprints = new HashMap<>();
+
+    private Writer writer;
+
+    /**
+     * Reads a manifest. The file is created when the first tile is added.
+     *
+     * @param file The manifest file.
+     * @throws IOException
+     */
+    public TileManifest(File file) throws IOException {
+        this.file = file;
+        if (!file.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(),
+                StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.split(" ");
+                // ignore a line that was partially written before a crash
+                if (tokens.length == 4) {
+                    fingerprints.put(key(tokens[0], tokens[1], tokens[2]), tokens[3]);
+                }
+            }
+        }
+    }
+
+    private static String key(Object z, Object x, Object y) {
+        return z + " " + x + " " + y;
+    }
+
+    /**
+     * Returns whether a tile has been written with the passed fingerprint.
+     *
+     * @param z Zoom level of the tile.
+     * @param x X coordinate of the tile.
+     * @param y Y coordinate of the tile.
+     * @param fingerprint The current fingerprint of the tile's inputs.
+     * @return True if the fingerprint in the manifest is identical.
+     */
+    public synchronized boolean isUpToDate(int z, int x, int y, String fingerprint) {
+        return fingerprint.equals(fingerprints.get(key(z, x, y)));
+    }
+
+    /**
+     * Records that a tile has been written.
+     *
+     * @param z Zoom level of the tile.
+     * @param x X coordinate of the tile.
+     * @param y Y coordinate of the tile.
+     * @param fingerprint The fingerprint of the tile's inputs. Must not
+     * contain white space.
+     * @throws IOException
+     */
+    public synchronized void put(int z, int x, int y, String fingerprint) throws IOException {
+        String key = key(z, x, y);
+        fingerprints.put(key, fingerprint);
+        if (writer == null) {
+            writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        writer.write(key + " " + fingerprint + "\n");
+        writer.flush();
+    }
+
+    /**
+     * Adds the tiles of another manifest, replacing tiles that are in both
+     * manifests. The added tiles are only written to the file by compact().
+     *
+     * @param manifest The manifest to add.
+     */
+    public synchronized void putAll(TileManifest manifest) {
+        synchronized (manifest) {
+            fingerprints.putAll(manifest.fingerprints);
+        }
+    }
+
+    /**
+     * Rewrites the manifest file with one line per tile and closes it.
+     *
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        close();
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory()) {
+            throw new FileNotFoundException(parent.toString());
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+            sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        FileUtils.writeAtomically(sb.toString().getBytes(StandardCharsets.UTF_8), file);
+    }
+
+    /**
+     * Closes the manifest file. Tiles can still be added, which reopens the
+     * file.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    /**
+     * Returns the number of tiles in the manifest.
+     *
+     * @return The number of tiles.
+     */
+    public synchronized int size() {
+        return fingerprints.size();
+    }
+}
@@ -49,6 +49,13 @@ public class TileSet {
      */
     private boolean tmsSchema;
 
+    /**
+     * If true, decoded tiles of this tile set are kept in the
+     * DecodedTileCache, which is shared by all tile sets.
+     */
+    @XmlTransient
+    private boolean decodedTileCaching = true;
+
     /**
      * Creates a local file based TileSet
      *
@@ -56,6 +63,17 @@ public class TileSet {
      * @return
      */
     public static TileSet createFileTileSet(File directory) {
+        return createFileTileSet(directory, "png");
+    }
+
+    /**
+     * Creates a local file based TileSet
+     *
+     * @param directory
+     * @param extension The file extension of tiles without a leading dot.
+     * @return
+     */
+    public static TileSet createFileTileSet(File directory, String extension) {
         StringBuilder sb = new StringBuilder();
         sb.append("file:///");
         // triple slash is OK.
@@ -73,7 +91,7 @@ public class TileSet {
         sb.append(File.separator);
         sb.append("{x}");
         sb.append(File.separator);
-        sb.append("{y}.png");
+        sb.append("{y}.").append(extension);
         return new TileSet(sb.toString());
     }
 
@@ -95,6 +113,23 @@ public class TileSet {
         return initialResolution / Math.pow(2, zoom);
     }
 
+    /**
+     * Size of a pixel on the ground for a row of tiles. The Mercator
+     * projection enlarges distances by 1 / cos(latitude), so pixels are
+     * smaller on the ground than at the Equator. The size is measured at the
+     * latitude of the center of the row of tiles.
+     *
+     * @param zoom zoom level
+     * @param y Vertical tile coordinate, counted from the top (OpenStreetMap
+     * schema).
+     * @return Size of a pixel on the ground in meters.
+     */
+    public static double groundPixelSize(int zoom, int y) {
+        // cos(atan(sinh(t))) = 1 / cosh(t)
+        double t = Math.PI * (1 - 2 * (y + 0.5) / Math.pow(2, zoom));
+        return pixelSize(zoom) / Math.cosh(t);
+    }
+
     /**
      * Converts given lat/lon in WGS84 Datum to XY in Spherical Mercator
      * EPSG:900913
@@ -202,7 +237,7 @@ public class TileSet {
      * @param urlTemplate Examples:
      * http://tile.openstreetmap.org/{z}/{x}/{y}.png
      * file:///C:/Users/nick/Documents/TMS_tiles_MountHood/buildingMask/{z}/{x}/{y}.png
-     * @param cache
+     * @param cache The cache for tiles.
      * @param tmsSchema
      */
     public TileSet(String urlTemplate, Cache cache, boolean tmsSchema) {
@@ -211,6 +246,12 @@ public class TileSet {
         this.tmsSchema = tmsSchema;
     }
 
+    /**
+     * Creates a tile set that does not cache tiles, but keeps decoded tiles in
+     * the DecodedTileCache.
+     *
+     * @param urlTemplate
+     */
     public TileSet(String urlTemplate) {
         this(urlTemplate, new DumbCache(), false);
     }
@@ -422,6 +463,27 @@ public class TileSet {
         return cache;
     }
 
+    /**
+     * Returns whether decoded tiles of this tile set are kept in the
+     * DecodedTileCache.
+     *
+     * @return True if decoded tiles are cached.
+     */
+    public boolean isDecodedTileCaching() {
+        return decodedTileCaching;
+    }
+
+    /**
+     * Sets whether decoded tiles of this tile set are kept in the
+     * DecodedTileCache. Decoded tiles are cached by default. Tile sets that
+     * are read only once may turn caching off to not displace other tiles.
+     *
+     * @param decodedTileCaching True if decoded tiles are to be cached.
+     */
+    public void setDecodedTileCaching(boolean decodedTileCaching) {
+        this.decodedTileCaching = decodedTileCaching;
+    }
+
     /**
      * @return the urlTemplate
      */
@@ -0,0 +1,260 @@
+package edu.oregonstate.carto.tilemanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and timings of a tile generation run, which are updated by all
+ * threads of the TileGenerator. The time spent in each stage is summed over
+ * all threads of the stage.
+ *
+ * The statistics can be appended to a log file with comma-separated values for
+ * monitoring runs without user interface. The file has a header line and one
+ * line per record.
+ */
+final class TileStatistics {
+
+    /**
+     * Stages of tile generation.
+     */
+    enum Stage {
+
+        /**
+         * Loading source tiles, computing fingerprints and reading tiles of
+         * higher zoom levels for building pyramids.
+         */
+        FETCH,
+        /**
+         * Rendering and downsampling.
+         */
+        RENDER,
+        /**
+         * Encoding images.
+         */
+        ENCODE,
+        /**
+         * Writing files and links.
+         */
+        WRITE
+    }
+
+    /**
+     * Read-only access to the counts of tiles written as links.
+     */
+    interface LinkCounts {
+
+        /**
+         * @return The number of tiles written as links.
+         */
+        long getLinkedTiles();
+
+        /**
+         * @return The number of bytes saved by writing links.
+         */
+        long getSavedBytes();
+    }
+
+    private static final String LOG_HEADER = "elapsed_ms,tiles_total,tiles_done,"
+            + "tiles_written,tiles_skipped,tiles_linked,percent,tiles_per_second,"
+            + "eta_ms,bytes_written,fetch_ms,render_ms,encode_ms,write_ms";
+
+    final long startTimeMillis = System.currentTimeMillis();
+
+    /**
+     * The number of tiles to generate.
+     */
+    final long totalTiles;
+
+    final AtomicLong tilesWritten = new AtomicLong();
+    final AtomicLong tilesSkipped = new AtomicLong();
+    final AtomicLong bytesWritten = new AtomicLong();
+
+    private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+
+    /**
+     * Counts of tiles written as links, or null.
+     */
+    private volatile LinkCounts linkCounts;
+
+    private Writer log;
+
+    private long lastLogMillis = startTimeMillis;
+
+    /**
+     * Creates statistics for a run.
+     *
+     * @param totalTiles The number of tiles to generate.
+     */
+    TileStatistics(long totalTiles) {
+        this.totalTiles = totalTiles;
+    }
+
+    /**
+     * Sets the counts of tiles written as links, which are included in the
+     * progress message and the log.
+     *
+     * @param linkCounts The counts, or null if tiles are not deduplicated.
+     */
+    void setLinkCounts(LinkCounts linkCounts) {
+        this.linkCounts = linkCounts;
+    }
+
+    /**
+     * Adds the time spent in a stage.
+     *
+     * @param stage The stage.
+     * @param startNanos The value of System.nanoTime() when the stage started.
+     */
+    void addTime(Stage stage, long startNanos) {
+        stageNanos.addAndGet(stage.ordinal(), System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns the time spent in a stage.
+     *
+     * @param stage The stage.
+     * @return The time in milliseconds summed over all threads.
+     */
+    long getTimeMillis(Stage stage) {
+        return TimeUnit.NANOSECONDS.toMillis(stageNanos.get(stage.ordinal()));
+    }
+
+    /**
+     * Returns the number of written and skipped tiles.
+     */
+    long tilesDone() {
+        return tilesWritten.get() + tilesSkipped.get();
+    }
+
+    /**
+     * Returns the percentage of done tiles between 0 and 100.
+     */
+    int percent() {
+        return totalTiles > 0 ? (int) Math.min(100, tilesDone() * 100 / totalTiles) : 100;
+    }
+
+    double tilesPerSecond() {
+        long ms = System.currentTimeMillis() - startTimeMillis;
+        return ms > 0 ? tilesWritten.get() * 1000d / ms : 0;
+    }
+
+    /**
+     * Returns the estimated remaining time, extrapolated from the time spent
+     * for the done tiles.
+     *
+     * @return The time in milliseconds, or -1 if no tile is done.
+     */
+    long etaMillis() {
+        long done = tilesDone();
+        if (done == 0) {
+            return -1;
+        }
+        long ms = System.currentTimeMillis() - startTimeMillis;
+        return Math.max(0, ms * (totalTiles - done) / done);
+    }
+
+    private static String formatTimeInterval(final long ms) {
+        final long hr = TimeUnit.MILLISECONDS.toHours(ms);
+        final long min = TimeUnit.MILLISECONDS.toMinutes(ms - TimeUnit.HOURS.toMillis(hr));
+        final long sec = TimeUnit.MILLISECONDS.toSeconds(ms - TimeUnit.HOURS.toMillis(hr) - TimeUnit.MINUTES.toMillis(min));
+        return String.format("%02d:%02d:%02d", hr, min, sec);
+    }
+
+    String progressMessage() {
+        long ms = System.currentTimeMillis() - startTimeMillis;
+        long skippedTiles = tilesSkipped.get();
+        StringBuilder sb = new StringBuilder("<html>Tiles: ");
+        sb.append(tilesDone()).append(" of ").append(totalTiles);
+        sb.append(" (").append(percent()).append("%)");
+        sb.append("<br>Tiles written: ").append(tilesWritten.get());
+        if (skippedTiles > 0) {
+            sb.append("<br>Unchanged tiles skipped: ").append(skippedTiles);
+        }
+        LinkCounts links = linkCounts;
+        if (links != null) {
+            sb.append("<br>Duplicate tiles linked: ").append(links.getLinkedTiles());
+            sb.append(String.format(" (%.1f MB saved)",
+                    links.getSavedBytes() / 1024d / 1024d));
+        }
+        sb.append(String.format("<br>Data written: %.1f MB", bytesWritten.get() / 1024d / 1024d));
+        sb.append(String.format("<br>Tiles per second: %.1f", tilesPerSecond()));
+        sb.append("<br>Time spent: ").append(formatTimeInterval(ms));
+        long eta = etaMillis();
+        sb.append("<br>Time remaining: ").append(eta < 0 ? "unknown" : formatTimeInterval(eta));
+        sb.append(String.format("<br>Stages: fetch %.1f s, render %.1f s, encode %.1f s, write %.1f s",
+                getTimeMillis(Stage.FETCH) / 1000d, getTimeMillis(Stage.RENDER) / 1000d,
+                getTimeMillis(Stage.ENCODE) / 1000d, getTimeMillis(Stage.WRITE) / 1000d));
+        return sb.append("</html>").toString();
+    }
+
+    /**
+     * Opens a log file. Records are appended to an existing file.
+     *
+     * @param file The log file.
+     * @throws IOException
+     */
+    void openLog(File file) throws IOException {
+        boolean writeHeader = file.length() == 0;
+        log = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (writeHeader) {
+            log.write(LOG_HEADER + "\n");
+            log.flush();
+        }
+    }
+
+    /**
+     * Appends a record to the log file, if a log file is open.
+     *
+     * @throws IOException
+     */
+    synchronized void log() throws IOException {
+        if (log == null) {
+            return;
+        }
+        LinkCounts links = linkCounts;
+        long linkedTiles = links != null ? links.getLinkedTiles() : 0;
+        log.write(String.format(Locale.US, "%d,%d,%d,%d,%d,%d,%d,%.2f,%d,%d,%d,%d,%d,%d\n",
+                System.currentTimeMillis() - startTimeMillis, totalTiles, tilesDone(),
+                tilesWritten.get(), tilesSkipped.get(), linkedTiles, percent(),
+                tilesPerSecond(), etaMillis(), bytesWritten.get(),
+                getTimeMillis(Stage.FETCH), getTimeMillis(Stage.RENDER),
+                getTimeMillis(Stage.ENCODE), getTimeMillis(Stage.WRITE)));
+        log.flush();
+    }
+
+    /**
+     * Appends a record to the log file, if a log file is open and the last
+     * record is older than an interval.
+     *
+     * @param intervalMillis The minimum interval between records.
+     * @throws IOException
+     */
+    synchronized void log(long intervalMillis) throws IOException {
+        long now = System.currentTimeMillis();
+        if (now - lastLogMillis >= intervalMillis) {
+            lastLogMillis = now;
+            log();
+        }
+    }
+
+    /**
+     * Closes the log file, if a log file is open.
+     *
+     * @throws IOException
+     */
+    synchronized void closeLog() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package edu.oregonstate.carto.tilemanager;
+
+import edu.oregonstate.carto.mapcomposer.Map;
+import edu.oregonstate.carto.mapcomposer.gui.ProgressIndicator;
+import edu.oregonstate.carto.mapprotocol.MapURLStreamHandlerFactory;
+import java.io.File;
+import java.net.URL;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A worker process of a TileJob. Claims shards from the queue of the job and
+ * generates their tiles until no shard is left or the job is stopped.
+ *
+ * Usage: TileWorker jobDirectory workerID
+ */
+public class TileWorker {
+
+    private final File directory;
+    private final int workerID;
+
+    private TileWorker(File directory, int workerID) {
+        this.directory = directory;
+        this.workerID = workerID;
+    }
+
+    /**
+     * Generates shards until the queue is empty.
+     */
+    private void run() throws Exception {
+        Properties settings = TileJob.readSettings(directory);
+        int shardZoom = Integer.parseInt(settings.getProperty("shardZoom"));
+        int maxAttempts = Integer.parseInt(settings.getProperty("maxAttempts"));
+        Map map = Map.unmarshal(new File(directory, TileJob.MAP_FILE_NAME).getPath());
+        ShardQueue queue = new ShardQueue(new File(directory, TileJob.QUEUE_DIRECTORY_NAME));
+        StopIndicator progress = new StopIndicator(new File(directory, TileJob.STOP_FILE_NAME));
+        Logger logger = Logger.getLogger(TileWorker.class.getName());
+
+        String shard;
+        while (!progress.isAborted() && (shard = queue.claim(workerID)) != null) {
+            logger.log(Level.INFO, "Worker {0}: generating shard {1}",
+                    new Object[]{workerID, shard});
+            TileGenerator generator = TileGenerator.loadSettings(settings);
+            TileJob.configureShard(generator, shard, shardZoom);
+            File manifestFile = TileJob.manifestFile(directory, shard);
+            manifestFile.getParentFile().mkdirs();
+            generator.setManifestFile(manifestFile);
+            generator.setStatisticsLog(new File(new File(directory, TileJob.LOG_DIRECTORY_NAME),
+                    "shard-" + shard + ".csv"));
+            try {
+                generator.generateTiles(map, progress);
+            } catch (Exception ex) {
+                boolean retry = queue.release(shard, workerID, maxAttempts);
+                logger.log(Level.SEVERE, "Worker " + workerID + ": shard " + shard
+                        + (retry ? " failed, will be retried" : " failed"), ex);
+                continue;
+            }
+            if (progress.isAborted()) {
+                break;
+            }
+            queue.complete(shard, workerID);
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: TileWorker jobDirectory workerID");
+            System.exit(2);
+        }
+        // install map protocol for rendering map tiles on the fly.
+        URL.setURLStreamHandlerFactory(new MapURLStreamHandlerFactory());
+        try {
+            new TileWorker(new File(args[0]), Integer.parseInt(args[1])).run();
+        } catch (Throwable t) {
+            Logger.getLogger(TileWorker.class.getName()).log(Level.SEVERE,
+                    "Worker " + args[1] + " failed", t);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * A progress indicator without user interface that is aborted when a file
+     * exists.
+     */
+    private static final class StopIndicator implements ProgressIndicator {
+
+        private final File stopFile;
+
+        StopIndicator(File stopFile) {
+            this.stopFile = stopFile;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public void completeProgress() {
+        }
+
+        @Override
+        public boolean progress(int percentage) {
+            return !isAborted();
+        }
+
+        @Override
+        public boolean isAborted() {
+            return stopFile.exists();
+        }
+
+        @Override
+        public void disableCancel() {
+        }
+
+        @Override
+        public void enableCancel() {
+        }
+
+        @Override
+        public void setMessage(String msg) {
+        }
+
+        @Override
+        public void setTotalTasksCount(int tasksCount) {
+        }
+
+        @Override
+        public int getTotalTasksCount() {
+            return 1;
+        }
+
+        @Override
+        public void nextTask() {
+        }
+
+        @Override
+        public void nextTask(String message) {
+        }
+
+        @Override
+        public int currentTask() {
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package edu.oregonstate.carto.tilemanager.util;
+
+/**
+ * A georeferenced raster grid stored in a single float array in row-major
+ * order. Unlike Grid, which stores each row in a separate array, the values of
+ * neighboring rows are adjacent in memory, and operators can address cells
+ * with a single array index.
+ *
+ * The value of a cell is stored at index offset + row * stride + col. The
+ * stride is at least the number of columns. A larger stride and an offset
+ * allow for a grid to be a window into a larger array, such as a section of
+ * another grid.
+ */
+public class FlatGrid implements GridGeometry {
+
+    /**
+     * The values of the grid.
+     */
+    private final float[] data;
+
+    /**
+     * Index of the first cell in the data array.
+     */
+    private final int offset;
+
+    /**
+     * Distance between the first cells of two consecutive rows in the data
+     * array.
+     */
+    private final int stride;
+
+    private final int cols;
+    private final int rows;
+
+    /**
+     * Size of a pixel.
+     */
+    private double cellSize;
+
+    /**
+     * Horizontal coordinate of top left corner of this grid.
+     */
+    private double west;
+
+    /**
+     * Vertical coordinate of top left corner of this grid.
+     */
+    private double north;
+
+    /**
+     * Creates a new grid with values of 0.
+     *
+     * @param cols Number of columns.
+     * @param rows Number of rows.
+     * @param cellSize Size of a cell.
+     */
+    public FlatGrid(int cols, int rows, double cellSize) {
+        this(new float[cols * rows], 0, cols, cols, rows, cellSize);
+    }
+
+    /**
+     * Creates a grid for an array of values. The values are not copied.
+     *
+     * @param data The values.
+     * @param offset Index of the first cell in the data array.
+     * @param stride Distance between the first cells of two consecutive rows.
+     * @param cols Number of columns.
+     * @param rows Number of rows.
+     * @param cellSize Size of a cell.
+     */
+    public FlatGrid(float[] data, int offset, int stride, int cols, int rows, double cellSize) {
+        if (data == null || offset < 0 || cols < 0 || rows < 0 || stride < cols
+                || cellSize < 0
+                || (rows > 0 && offset + (long) (rows - 1) * stride + cols > data.length)) {
+            throw new IllegalArgumentException();
+        }
+        this.data = data;
+        this.offset = offset;
+        this.stride = stride;
+        this.cols = cols;
+        this.rows = rows;
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * Creates a copy of a grid.
+     *
+     * @param grid The grid to copy.
+     */
+    public FlatGrid(Grid grid) {
+        this(grid.getCols(), grid.getRows(), grid.getCellSize());
+        float[][] g = grid.getGrid();
+        for (int row = 0; row < rows; row++) {
+            System.arraycopy(g[row], 0, data, row * stride, cols);
+        }
+        west = grid.getWest();
+        north = grid.getNorth();
+    }
+
+    /**
+     * Creates a Grid with a copy of the values of this grid.
+     *
+     * @return The new grid.
+     */
+    public Grid toGrid() {
+        Grid grid = new Grid(cols, rows, cellSize);
+        float[][] g = grid.getGrid();
+        for (int row = 0; row < rows; row++) {
+            System.arraycopy(data, index(0, row), g[row], 0, cols);
+        }
+        grid.setWest(west);
+        grid.setNorth(north);
+        return grid;
+    }
+
+    /**
+     * Returns a section of this grid. The section shares the values with this
+     * grid.
+     *
+     * @param firstCol First column of the section.
+     * @param firstRow First row of the section.
+     * @param newCols Number of columns of the section.
+     * @param newRows Number of rows of the section.
+     * @return The section.
+     */
+    public FlatGrid window(int firstCol, int firstRow, int newCols, int newRows) {
+        if (firstCol < 0 || firstRow < 0 || newCols < 0 || newRows < 0
+                || firstCol + newCols > cols || firstRow + newRows > rows) {
+            throw new IllegalArgumentException();
+        }
+        FlatGrid window = new FlatGrid(data, index(firstCol, firstRow), stride,
+                newCols, newRows, cellSize);
+        window.west = west + firstCol * cellSize;
+        window.north = north - firstRow * cellSize;
+        return window;
+    }
+
+    /**
+     * Returns true if the grid has non-zero dimensions and position.
+     *
+     * @return
+     */
+    public boolean isWellFormed() {
+        return cols > 0
+                && rows > 0
+                && cellSize > 0
+                && !Double.isNaN(west)
+                && !Double.isNaN(north);
+    }
+
+    /**
+     * Returns the index of a cell in the data array.
+     *
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     * @return The index.
+     */
+    public final int index(int col, int row) {
+        return offset + row * stride + col;
+    }
+
+    public final float getValue(int col, int row) {
+        return data[offset + row * stride + col];
+    }
+
+    public final void setValue(float value, int col, int row) {
+        data[offset + row * stride + col] = value;
+    }
+
+    /**
+     * Returns the array with the values of this grid. The array may contain
+     * values that do not belong to this grid; use index() to address cells.
+     *
+     * @return The values.
+     */
+    public float[] getData() {
+        return data;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    @Override
+    public double getCellSize(int row) {
+        return cellSize;
+    }
+
+    public void setCellSize(double cellSize) {
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * Returns vertical coordinate of top left corner.
+     */
+    public double getNorth() {
+        return north;
+    }
+
+    /**
+     * Set vertical coordinate of top left corner.
+     */
+    public void setNorth(double north) {
+        this.north = north;
+    }
+
+    /**
+     * Returns horizontal coordinate of top left corner.
+     */
+    public double getWest() {
+        return west;
+    }
+
+    /**
+     * Set horizontal coordinate of top left corner.
+     */
+    public void setWest(double west) {
+        this.west = west;
+    }
+}
@@ -8,7 +8,7 @@ import java.text.DecimalFormat;
  *
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
  */
-public class Grid {
+public class Grid implements GridGeometry {
     /**
      * Size of a pixel.
      */
@@ -26,29 +26,62 @@ public class Grid {
      */
     private float[][] grid;
 
-    public class GeoGridStatistics {
+    /**
+     * Statistics of the values of a grid are computed when they are first
+     * requested and are kept until the values change. Null if not computed.
+     */
+    private volatile GeoGridStatistics statistics;
+
+    /**
+     * Minimum, maximum and mean of grid values. Infinite and NaN values are
+     * void and are not included in minimum and maximum. Statistics of parts
+     * of a grid can be combined with merge(). Statistics are immutable, so
+     * they can be shared.
+     */
+    public static final class GeoGridStatistics {
+
+        public final float min;
+        public final float max;
+        public final float mean;
+        public final int voidCount;
 
-        public float min;
-        public float max;
-        public float mean;
-        public int voidCount;
+        /**
+         * Sum of the values that are not void.
+         */
+        private final double sum;
+
+        /**
+         * Number of cells, including void cells.
+         */
+        private final long cellCount;
 
         public GeoGridStatistics(Grid geoGrid) {
-            float[][] grid = geoGrid.getGrid();
-            min = Float.MAX_VALUE;
-            max = -Float.MAX_VALUE;
-            double tot = 0;
-            int rows = grid.length;
-            int cols = getCols();
-            voidCount = 0;
-            for (int r = 0; r < rows; ++r) {
+            this(geoGrid.getGrid(), 0, geoGrid.getRows(), 0, geoGrid.getCols());
+        }
+
+        /**
+         * Computes the statistics of a rectangular section of a grid.
+         *
+         * @param grid The values of the grid.
+         * @param firstRow The first row of the section.
+         * @param endRow The first row after the section.
+         * @param firstCol The first column of the section.
+         * @param endCol The first column after the section.
+         */
+        public GeoGridStatistics(float[][] grid, int firstRow, int endRow,
+                int firstCol, int endCol) {
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+            double sum = 0;
+            int voidCount = 0;
+            for (int r = firstRow; r < endRow; ++r) {
                 float row[] = grid[r];
-                for (int c = 0; c < cols; ++c) {
+                for (int c = firstCol; c < endCol; ++c) {
                     float v = row[c];
                     if (Float.isInfinite(v) || Float.isNaN(v)) {
                         ++voidCount;
                     } else {
-                        tot += v;
+                        sum += v;
                         if (v < min) {
                             min = v;
                         }
@@ -58,12 +91,78 @@ public class Grid {
                     }
                 }
             }
-            mean = (float) (tot / (cols * rows));
+            long cellCount = (long) (endRow - firstRow) * (endCol - firstCol);
+            this.sum = sum;
+            this.voidCount = voidCount;
+            this.cellCount = cellCount;
+            // all values are NaN if there are only void cells
+            boolean allVoid = cellCount == voidCount;
+            this.min = allVoid ? Float.NaN : min;
+            this.max = allVoid ? Float.NaN : max;
+            this.mean = allVoid ? Float.NaN : (float) (sum / cellCount);
+        }
+
+        /**
+         * Creates statistics for a number of cells with the same value, such
+         * as the cells of a missing tile or a grid filled with a constant.
+         *
+         * @param value The value of the cells. Must not be void.
+         * @param cellCount The number of cells.
+         */
+        public GeoGridStatistics(float value, long cellCount) {
+            this(value, value, value * (double) cellCount, 0, cellCount);
+        }
+
+        private GeoGridStatistics(float min, float max, double sum,
+                int voidCount, long cellCount) {
+            boolean allVoid = cellCount == voidCount;
+            this.min = allVoid ? Float.NaN : min;
+            this.max = allVoid ? Float.NaN : max;
+            this.mean = allVoid ? Float.NaN : (float) (sum / cellCount);
+            this.sum = sum;
+            this.voidCount = voidCount;
+            this.cellCount = cellCount;
+        }
 
-            // test for grid with only void values
-            if (cols * rows == voidCount) {
-                min = max = mean = Float.NaN;
+        /**
+         * Combines these statistics with the statistics of another part of a
+         * grid.
+         *
+         * @param stats The statistics to add.
+         * @return New statistics of both parts.
+         */
+        public GeoGridStatistics merge(GeoGridStatistics stats) {
+            float newMin = min;
+            float newMax = max;
+            if (stats.voidCount < stats.cellCount) {
+                if (voidCount == cellCount) {
+                    newMin = stats.min;
+                    newMax = stats.max;
+                } else {
+                    newMin = Math.min(min, stats.min);
+                    newMax = Math.max(max, stats.max);
+                }
             }
+            return new GeoGridStatistics(newMin, newMax, sum + stats.sum,
+                    voidCount + stats.voidCount, cellCount + stats.cellCount);
+        }
+
+        /**
+         * Returns the statistics of the values (v - fromValue) * scale +
+         * toValue, without parsing the transformed values. Void values remain
+         * void.
+         *
+         * @param fromValue The value that is subtracted.
+         * @param scale The scale factor. Must not be negative.
+         * @param toValue The value that is added.
+         * @return New statistics of the transformed values.
+         */
+        public GeoGridStatistics rescale(float fromValue, float scale, float toValue) {
+            long validCount = cellCount - voidCount;
+            double newSum = (sum - (double) fromValue * validCount) * scale
+                    + (double) toValue * validCount;
+            return new GeoGridStatistics((min - fromValue) * scale + toValue,
+                    (max - fromValue) * scale + toValue, newSum, voidCount, cellCount);
         }
 
         @Override
@@ -92,9 +191,7 @@ public class Grid {
                 sb.append(new DecimalFormat("#,###").format(voidCount));
                 if (voidCount > 0) {
                     sb.append(" (");
-                    int rows = grid.length;
-                    int cols = getCols();
-                    sb.append(new DecimalFormat("0.#").format(voidCount * 100 / (cols * rows)));
+                    sb.append(new DecimalFormat("0.#").format(voidCount * 100 / cellCount));
                     sb.append("%)");
                 }
             }
@@ -157,6 +254,11 @@ public class Grid {
         return cellSize;
     }
 
+    @Override
+    public double getCellSize(int row) {
+        return cellSize;
+    }
+
     public void setCellSize(double cellSize) {
         if (cellSize <= 0) {
             throw new IllegalArgumentException();
@@ -470,34 +572,61 @@ public class Grid {
      */
     public void setValue(float value, int col, int row) {
         grid[row][col] = value;
+        if (statistics != null) {
+            statistics = null;
+        }
     }
 
     /**
-     * Returns the minimum and maximum value of the grid. This can potentially
-     * be expensive as the whole grid is parsed.
+     * Returns the minimum and maximum value of the grid. Infinite and NaN
+     * values are ignored. The whole grid is parsed only if the statistics
+     * are not cached.
+     *
+     * @return The minimum and the maximum. Float.MAX_VALUE and
+     * -Float.MAX_VALUE if all values are void.
      */
     public float[] getMinMax() {
-        final int rows = grid.length;
-        final int cols = getCols();
-        float min = Float.MAX_VALUE;
-        float max = -Float.MAX_VALUE;
-        for (int r = 0; r < rows; ++r) {
-            float[] row = grid[r];
-            for (int c = 0; c < cols; ++c) {
-                final float v = row[c];
-                if (v < min) {
-                    min = v;
-                }
-                if (v > max) {
-                    max = v;
-                }
-            }
+        GeoGridStatistics stats = getStatistics();
+        if (Float.isNaN(stats.min)) {
+            return new float[]{Float.MAX_VALUE, -Float.MAX_VALUE};
         }
-        return new float[]{min, max};
+        return new float[]{stats.min, stats.max};
     }
 
+    /**
+     * Returns the statistics of the grid values. The statistics are computed
+     * when first requested and cached until setValue(), cut() or
+     * invalidateStatistics() is called.
+     *
+     * @return The statistics, which are shared by all callers.
+     */
     public GeoGridStatistics getStatistics() {
-        return new GeoGridStatistics(this);
+        GeoGridStatistics stats = statistics;
+        if (stats == null) {
+            stats = new GeoGridStatistics(this);
+            statistics = stats;
+        }
+        return stats;
+    }
+
+    /**
+     * Discards the cached statistics. Must be called after values have been
+     * changed in the array returned by getGrid().
+     */
+    public void invalidateStatistics() {
+        statistics = null;
+    }
+
+    /**
+     * Sets the statistics of the grid values, for example, when they are
+     * known from the operation that computed the values. The statistics are
+     * cached like computed statistics.
+     *
+     * @param statistics The statistics of all values of this grid, or null to
+     * compute them when they are requested.
+     */
+    public void setStatistics(GeoGridStatistics statistics) {
+        this.statistics = statistics;
     }
 
     public void cut(Rectangle2D extension) {
@@ -526,6 +655,7 @@ public class Grid {
         this.west += firstCol * this.cellSize;
         this.north -= firstRow * this.cellSize;
         this.grid = newGrid;
+        this.statistics = null;
     }
 
     public int getCols() {
@@ -544,6 +674,12 @@ public class Grid {
         return this.west + (getCols() - 1) * this.cellSize;
     }
 
+    /**
+     * Returns the values of the grid. invalidateStatistics() must be called
+     * after changing values in the returned array.
+     *
+     * @return The rows of the grid.
+     */
     public float[][] getGrid() {
         return grid;
     }
@@ -0,0 +1,33 @@
+package edu.oregonstate.carto.tilemanager.util;
+
+/**
+ * The size, cell size and position of a grid, independent of how the values
+ * of the grid are stored.
+ */
+public interface GridGeometry {
+
+    public int getCols();
+
+    public int getRows();
+
+    public double getCellSize();
+
+    /**
+     * Returns the size of the cells in a row. The cell size varies between
+     * rows of tiles in a block of Mercator tiles with ground cell sizes.
+     *
+     * @param row The row.
+     * @return The size of a cell.
+     */
+    public double getCellSize(int row);
+
+    /**
+     * Returns horizontal coordinate of top left corner.
+     */
+    public double getWest();
+
+    /**
+     * Returns vertical coordinate of top left corner.
+     */
+    public double getNorth();
+}
@@ -0,0 +1,288 @@
+package edu.oregonstate.carto.tilemanager.util;
+
+import edu.oregonstate.carto.utils.BufferPool;
+import java.util.Arrays;
+
+/**
+ * A read-only view of a block of square tile grids that behaves like a single
+ * grid. The values remain in the grids of the tiles and are not copied. Cells
+ * of missing tiles are 0. The view can be cropped to a window of the block,
+ * for example, to a block of tiles with a narrow border of neighboring cells.
+ *
+ * Values are accessed with getValue(), copied row by row with copyRow(), or
+ * read in place tile by tile with rowSegment(), segmentStart() and
+ * segmentLength():
+ * <pre>
+ * for (int col = 0; col &lt; mosaic.getCols(); ) {
+ *     float[] segment = mosaic.rowSegment(col, row); // null for missing tiles
+ *     int start = mosaic.segmentStart(col);
+ *     int length = mosaic.segmentLength(col);
+ *     ...
+ *     col += length;
+ * }
+ * </pre>
+ */
+public class MosaicGrid implements GridGeometry {
+
+    /**
+     * The grids of the tiles in row-major order. Missing tiles are null.
+     */
+    private final Grid[] tiles;
+
+    /**
+     * Number of tiles in a row of tiles.
+     */
+    private final int tilesPerRow;
+
+    /**
+     * Number of cells along each side of a tile.
+     */
+    private final int tileSize;
+
+    /**
+     * Position of the first cell of this view in the block of tiles.
+     */
+    private final int firstCol, firstRow;
+
+    private final int cols, rows;
+
+    private final double cellSize;
+    private final double west, north;
+
+    /**
+     * Size of the cells in each row of tiles, or null if all cells have the
+     * same size.
+     */
+    private final double[] tileRowCellSizes;
+
+    /**
+     * Creates a view of a block of tiles.
+     *
+     * @param tiles The grids of the tiles in row-major order. Missing tiles
+     * are null. Grids must have at least tileSize columns and rows.
+     * @param tilesPerRow Number of tiles in a row of tiles.
+     * @param tileSize Number of cells along each side of a tile.
+     * @param cellSize Size of a cell.
+     * @param west Horizontal coordinate of top left corner.
+     * @param north Vertical coordinate of top left corner.
+     */
+    public MosaicGrid(Grid[] tiles, int tilesPerRow, int tileSize,
+            double cellSize, double west, double north) {
+        this(tiles, tilesPerRow, tileSize, cellSize, null, west, north);
+    }
+
+    /**
+     * Creates a view of a block of tiles with a different cell size for each
+     * row of tiles, such as Mercator tiles with ground cell sizes.
+     *
+     * @param tiles The grids of the tiles in row-major order. Missing tiles
+     * are null. Grids must have at least tileSize columns and rows.
+     * @param tilesPerRow Number of tiles in a row of tiles.
+     * @param tileSize Number of cells along each side of a tile.
+     * @param cellSize Size of a cell returned by getCellSize().
+     * @param tileRowCellSizes Size of the cells in each row of tiles, or null
+     * if all cells have the size cellSize.
+     * @param west Horizontal coordinate of top left corner.
+     * @param north Vertical coordinate of top left corner.
+     */
+    public MosaicGrid(Grid[] tiles, int tilesPerRow, int tileSize,
+            double cellSize, double[] tileRowCellSizes, double west, double north) {
+        this(tiles, tilesPerRow, tileSize, 0, 0, tilesPerRow * tileSize,
+                tiles.length / tilesPerRow * tileSize, cellSize,
+                tileRowCellSizes, west, north);
+        for (Grid tile : tiles) {
+            if (tile != null && (tile.getCols() < tileSize || tile.getRows() < tileSize)) {
+                throw new IllegalArgumentException("invalid tile size");
+            }
+        }
+        if (tileRowCellSizes != null && tileRowCellSizes.length != tiles.length / tilesPerRow) {
+            throw new IllegalArgumentException("invalid number of cell sizes");
+        }
+    }
+
+    private MosaicGrid(Grid[] tiles, int tilesPerRow, int tileSize,
+            int firstCol, int firstRow, int cols, int rows,
+            double cellSize, double[] tileRowCellSizes, double west, double north) {
+        if (tilesPerRow < 1 || tileSize < 1 || tiles.length % tilesPerRow != 0) {
+            throw new IllegalArgumentException();
+        }
+        this.tiles = tiles;
+        this.tilesPerRow = tilesPerRow;
+        this.tileSize = tileSize;
+        this.firstCol = firstCol;
+        this.firstRow = firstRow;
+        this.cols = cols;
+        this.rows = rows;
+        this.cellSize = cellSize;
+        this.tileRowCellSizes = tileRowCellSizes;
+        this.west = west;
+        this.north = north;
+    }
+
+    /**
+     * Returns a window of this view. The window shares the tiles with this
+     * view.
+     *
+     * @param col First column of the window.
+     * @param row First row of the window.
+     * @param newCols Number of columns of the window.
+     * @param newRows Number of rows of the window.
+     * @return The window.
+     */
+    public MosaicGrid crop(int col, int row, int newCols, int newRows) {
+        if (col < 0 || row < 0 || newCols < 0 || newRows < 0
+                || col + newCols > cols || row + newRows > rows) {
+            throw new IllegalArgumentException();
+        }
+        return new MosaicGrid(tiles, tilesPerRow, tileSize,
+                firstCol + col, firstRow + row, newCols, newRows,
+                cellSize, tileRowCellSizes, west + col * cellSize, north - row * cellSize);
+    }
+
+    /**
+     * Returns the row of the tile containing a cell.
+     *
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     * @return The row of the tile, or null if the tile is missing.
+     */
+    public final float[] rowSegment(int col, int row) {
+        int c = firstCol + col;
+        int r = firstRow + row;
+        Grid tile = tiles[r / tileSize * tilesPerRow + c / tileSize];
+        return tile == null ? null : tile.getGrid()[r % tileSize];
+    }
+
+    /**
+     * Returns the index of a cell in the array returned by rowSegment().
+     *
+     * @param col The column of the cell.
+     * @return The index in the row of the tile.
+     */
+    public final int segmentStart(int col) {
+        return (firstCol + col) % tileSize;
+    }
+
+    /**
+     * Returns the number of cells from a cell to the end of its tile or to the
+     * end of this view, whichever comes first.
+     *
+     * @param col The column of the cell.
+     * @return The number of cells that can be read from the array returned by
+     * rowSegment(), starting at segmentStart().
+     */
+    public final int segmentLength(int col) {
+        return Math.min(tileSize - segmentStart(col), cols - col);
+    }
+
+    public final float getValue(int col, int row) {
+        float[] segment = rowSegment(col, row);
+        return segment == null ? 0 : segment[segmentStart(col)];
+    }
+
+    /**
+     * Copies a row to an array.
+     *
+     * @param row The row to copy.
+     * @param dst The destination array.
+     * @param dstStart Index in dst for the first column.
+     */
+    public void copyRow(int row, float[] dst, int dstStart) {
+        int length;
+        for (int col = 0; col < cols; col += length) {
+            float[] segment = rowSegment(col, row);
+            length = segmentLength(col);
+            if (segment == null) {
+                Arrays.fill(dst, dstStart + col, dstStart + col + length, 0);
+            } else {
+                System.arraycopy(segment, segmentStart(col), dst, dstStart + col, length);
+            }
+        }
+    }
+
+    /**
+     * Copies the values to a grid. The array of the returned grid is taken
+     * from the BufferPool and can be released when it is no longer needed.
+     *
+     * @return A new grid.
+     */
+    public Grid toGrid() {
+        float[][] g = BufferPool.acquireGrid(cols, rows);
+        for (int row = 0; row < rows; row++) {
+            copyRow(row, g[row], 0);
+        }
+        Grid grid = new Grid(g, cellSize);
+        grid.setWest(west);
+        grid.setNorth(north);
+        return grid;
+    }
+
+    /**
+     * Returns the statistics of the values of this view. The statistics of
+     * tiles that are entirely inside this view are cached by the grids of the
+     * tiles, which are kept with the decoded tiles, and are merged. Only the
+     * cells of partially covered tiles are parsed.
+     *
+     * @return New statistics.
+     */
+    public Grid.GeoGridStatistics getStatistics() {
+        // empty statistics that the statistics of the tiles are merged with
+        Grid.GeoGridStatistics stats = new Grid.GeoGridStatistics(new float[0][], 0, 0, 0, 0);
+        for (int r = firstRow; r < firstRow + rows; r = (r / tileSize + 1) * tileSize) {
+            int tileFirstRow = r % tileSize;
+            int tileEndRow = Math.min(tileSize, firstRow + rows - r + tileFirstRow);
+            for (int c = firstCol; c < firstCol + cols; c = (c / tileSize + 1) * tileSize) {
+                int tileFirstCol = c % tileSize;
+                int tileEndCol = Math.min(tileSize, firstCol + cols - c + tileFirstCol);
+                Grid tile = tiles[r / tileSize * tilesPerRow + c / tileSize];
+                Grid.GeoGridStatistics tileStats;
+                if (tile == null) {
+                    long cellCount = (long) (tileEndRow - tileFirstRow) * (tileEndCol - tileFirstCol);
+                    tileStats = new Grid.GeoGridStatistics(0, cellCount);
+                } else if (tileFirstRow == 0 && tileFirstCol == 0
+                        && tileEndRow == tileSize && tileEndCol == tileSize
+                        && tile.getRows() == tileSize && tile.getCols() == tileSize) {
+                    tileStats = tile.getStatistics();
+                } else {
+                    tileStats = new Grid.GeoGridStatistics(tile.getGrid(),
+                            tileFirstRow, tileEndRow, tileFirstCol, tileEndCol);
+                }
+                stats = stats.merge(tileStats);
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public int getCols() {
+        return cols;
+    }
+
+    @Override
+    public int getRows() {
+        return rows;
+    }
+
+    @Override
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    @Override
+    public double getCellSize(int row) {
+        if (tileRowCellSizes == null) {
+            return cellSize;
+        }
+        return tileRowCellSizes[(firstRow + row) / tileSize];
+    }
+
+    @Override
+    public double getWest() {
+        return west;
+    }
+
+    @Override
+    public double getNorth() {
+        return north;
+    }
+}
@@ -0,0 +1,220 @@
+package edu.oregonstate.carto.utils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A bounded pool of TYPE_INT_ARGB images and float grids. Rendering a tile
+ * requires several temporary images and grids of 768 x 768 pixels per layer.
+ * Reusing these buffers considerably reduces the load on the garbage
+ * collector when many tiles are rendered.
+ *
+ * Buffers are obtained with acquireImage and acquireGrid, and are returned to
+ * the pool with release when they are no longer used. Buffers that are not
+ * released are simply garbage collected. A released buffer must not be used
+ * anymore. Acquired buffers are cleared, so they can replace newly allocated
+ * buffers. All methods are thread-safe.
+ */
+public final class BufferPool {
+
+    /**
+     * Maximum total size of the pooled buffers in bytes.
+     */
+    private static final long MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Pooling can be disabled with the mapcomposer.bufferPool system property.
+     */
+    private static volatile boolean enabled = !"false".equalsIgnoreCase(
+            System.getProperty("mapcomposer.bufferPool"));
+
+    private static final HashMap<Long, ArrayDeque<BufferedImage>> images = new HashMap<>();
+    private static final HashMap<Long, ArrayDeque<float[][]>> grids = new HashMap<>();
+    private static long pooledBytes = 0;
+
+    // statistics
+    private static long allocatedBytes = 0;
+    private static long reusedBytes = 0;
+
+    private BufferPool() {
+    }
+
+    private static Long sizeKey(int width, int height) {
+        return ((long) width << 32) | height;
+    }
+
+    /**
+     * Returns a transparent image of type TYPE_INT_ARGB.
+     *
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @return An image with all pixels set to 0.
+     */
+    public static BufferedImage acquireImage(int width, int height) {
+        long bytes = 4L * width * height;
+        BufferedImage image = null;
+        if (enabled) {
+            synchronized (BufferPool.class) {
+                ArrayDeque<BufferedImage> queue = images.get(sizeKey(width, height));
+                if (queue != null) {
+                    image = queue.poll();
+                }
+                if (image != null) {
+                    pooledBytes -= bytes;
+                    reusedBytes += bytes;
+                } else {
+                    allocatedBytes += bytes;
+                }
+            }
+        }
+        if (image == null) {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        Arrays.fill(pixels, 0);
+        return image;
+    }
+
+    /**
+     * Returns an image to the pool. Images that are not of type TYPE_INT_ARGB
+     * and sub-images are ignored.
+     *
+     * @param image The image to release. Can be null.
+     */
+    public static void release(BufferedImage image) {
+        if (!enabled || image == null
+                || image.getType() != BufferedImage.TYPE_INT_ARGB
+                || image.getRaster().getParent() != null) {
+            return;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        long bytes = 4L * width * height;
+        synchronized (BufferPool.class) {
+            if (pooledBytes + bytes > MAX_POOLED_BYTES) {
+                return;
+            }
+            Long key = sizeKey(width, height);
+            ArrayDeque<BufferedImage> queue = images.get(key);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                images.put(key, queue);
+            }
+            queue.push(image);
+            pooledBytes += bytes;
+        }
+    }
+
+    /**
+     * Returns a float array with rows x cols cells.
+     *
+     * @param cols The number of columns.
+     * @param rows The number of rows.
+     * @return An array with all cells set to 0.
+     */
+    public static float[][] acquireGrid(int cols, int rows) {
+        long bytes = 4L * cols * rows;
+        float[][] grid = null;
+        if (enabled) {
+            synchronized (BufferPool.class) {
+                ArrayDeque<float[][]> queue = grids.get(sizeKey(cols, rows));
+                if (queue != null) {
+                    grid = queue.poll();
+                }
+                if (grid != null) {
+                    pooledBytes -= bytes;
+                    reusedBytes += bytes;
+                } else {
+                    allocatedBytes += bytes;
+                }
+            }
+        }
+        if (grid == null) {
+            return new float[rows][cols];
+        }
+        for (float[] row : grid) {
+            Arrays.fill(row, 0f);
+        }
+        return grid;
+    }
+
+    /**
+     * Returns a float array to the pool. All rows must have the same length.
+     *
+     * @param grid The array to release. Can be null.
+     */
+    public static void release(float[][] grid) {
+        if (!enabled || grid == null || grid.length == 0 || grid[0] == null) {
+            return;
+        }
+        int rows = grid.length;
+        int cols = grid[0].length;
+        long bytes = 4L * cols * rows;
+        synchronized (BufferPool.class) {
+            if (pooledBytes + bytes > MAX_POOLED_BYTES) {
+                return;
+            }
+            Long key = sizeKey(cols, rows);
+            ArrayDeque<float[][]> queue = grids.get(key);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                grids.put(key, queue);
+            }
+            queue.push(grid);
+            pooledBytes += bytes;
+        }
+    }
+
+    /**
+     * Returns whether buffers are pooled.
+     *
+     * @return True if buffers are pooled.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables pooling. Disabling pooling releases all pooled
+     * buffers.
+     *
+     * @param enabled True if buffers are to be pooled.
+     */
+    public static void setEnabled(boolean enabled) {
+        BufferPool.enabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    /**
+     * Removes all buffers from the pool.
+     */
+    public static synchronized void clear() {
+        images.clear();
+        grids.clear();
+        pooledBytes = 0;
+    }
+
+    /**
+     * Returns the number of bytes allocated for buffers that could not be
+     * taken from the pool.
+     *
+     * @return Allocated bytes.
+     */
+    public static synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Returns the number of bytes of buffers that were taken from the pool.
+     *
+     * @return Reused bytes.
+     */
+    public static synchronized long getReusedBytes() {
+        return reusedBytes;
+    }
+}
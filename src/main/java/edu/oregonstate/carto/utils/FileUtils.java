@@ -10,6 +10,8 @@ import java.awt.*;
 import java.nio.*;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 
@@ -548,4 +550,45 @@ public class FileUtils {
         
         return (temp);
     }
-}
\ No newline at end of file
+
+    /**
+     * Writes data to a file. The data is written to a temporary file first,
+     * which then replaces the file in a single atomic move. Concurrent
+     * readers therefore never see a partially written file, and an existing
+     * symbolic link is replaced instead of overwriting the file it points to.
+     * Missing parent directories are created.
+     *
+     * @param data The data to write.
+     * @param file The file to write.
+     * @throws IOException
+     */
+    public static void writeAtomically(byte[] data, File file) throws IOException {
+        writeAtomically(data, file, file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Writes data to a file with a temporary file in a specified directory.
+     * See writeAtomically(byte[], File).
+     *
+     * @param data The data to write.
+     * @param file The file to write.
+     * @param tmpDirectory The directory for the temporary file. Must be on
+     * the same file system as the file.
+     * @throws IOException
+     */
+    public static void writeAtomically(byte[] data, File file, File tmpDirectory)
+            throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Cannot create directory " + parent);
+        }
+        File tmp = File.createTempFile("tmp", ".tmp", tmpDirectory);
+        try {
+            Files.write(tmp.toPath(), data);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package edu.oregonstate.carto.utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashes for identifying map styles and tiles.
+ */
+public final class HashUtils {
+
+    private HashUtils() {
+    }
+
+    /**
+     * Creates an MD5 digest.
+     *
+     * @return A new digest.
+     */
+    public static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            // every Java platform is required to support MD5
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Computes the MD5 hash of a byte array.
+     *
+     * @param data The bytes to hash.
+     * @return A hexadecimal string with 32 characters.
+     */
+    public static String md5(byte[] data) {
+        return toHex(md5().digest(data));
+    }
+
+    /**
+     * Converts a hash to a string.
+     *
+     * @param hash The hash.
+     * @return A string with two lowercase hexadecimal characters per byte.
+     */
+    public static String toHex(byte[] hash) {
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
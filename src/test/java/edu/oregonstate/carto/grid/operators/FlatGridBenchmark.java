@@ -0,0 +1,66 @@
+package edu.oregonstate.carto.grid.operators;
+
+import edu.oregonstate.carto.tilemanager.Tile;
+import edu.oregonstate.carto.tilemanager.util.FlatGrid;
+import edu.oregonstate.carto.tilemanager.util.Grid;
+import edu.oregonstate.carto.utils.Benchmark;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Compares the time of operators on grids with separate row arrays and on
+ * flat grids. Run with main().
+ */
+public class FlatGridBenchmark {
+
+    private static void benchmark(final ThreadedGridOperator op,
+            final Grid grid, final Grid gridDst,
+            final FlatGrid flat, final FlatGrid flatDst) {
+        Benchmark.run(op.getName() + ", Grid", new Runnable() {
+            @Override
+            public void run() {
+                op.operate(grid, gridDst);
+            }
+        });
+        Benchmark.run(op.getName() + ", FlatGrid", new Runnable() {
+            @Override
+            public void run() {
+                op.operate(flat, flatDst);
+            }
+        });
+    }
+
+    public static void main(String[] args) {
+        // mega tile with one tile and a border of one tile
+        final int size = Tile.TILE_SIZE * 3;
+        final Grid grid = new Grid(size, size, 30);
+        Random random = new Random(0);
+        for (int row = 0; row < size; row++) {
+            for (int col = 0; col < size; col++) {
+                grid.setValue(random.nextInt(20), col, row);
+            }
+        }
+        final FlatGrid flat = new FlatGrid(grid);
+        final Grid gridDst = new Grid(size, size, 30);
+        final FlatGrid flatDst = new FlatGrid(size, size, 30);
+
+        benchmark(new GridBinarizeOperator(new float[]{3, 7}), grid, gridDst, flat, flatDst);
+        benchmark(new GridSlopeOperator(), grid, gridDst, flat, flatDst);
+        benchmark(new ShaderOperator(), grid, gridDst, flat, flatDst);
+
+        final ColorizerOperator colorizer = new ColorizerOperator(ColorizerOperator.ColorVisualization.GRAY_SHADING);
+        final BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Benchmark.run(colorizer.getName() + ", Grid", new Runnable() {
+            @Override
+            public void run() {
+                colorizer.operate(gridDst, grid, img, 0, 0);
+            }
+        });
+        Benchmark.run(colorizer.getName() + ", FlatGrid", new Runnable() {
+            @Override
+            public void run() {
+                colorizer.operate(flatDst, flat, img, 0, 0);
+            }
+        });
+    }
+}
@@ -0,0 +1,69 @@
+package edu.oregonstate.carto.grid.operators;
+
+import edu.oregonstate.carto.tilemanager.Tile;
+import edu.oregonstate.carto.tilemanager.util.Grid;
+import edu.oregonstate.carto.utils.Benchmark;
+import java.util.Random;
+
+/**
+ * Compares the exact Gaussian filter with the box filter approximation for
+ * a range of standard deviations. Reports the duration of both filters and
+ * the largest and mean absolute differences between them for a grid with
+ * random values between 0 and 100, and for a smooth surface created by
+ * filtering the random values. Run with main().
+ */
+public class GridGaussLowPassBenchmark {
+
+    private static void printDifference(String name, Grid grid1, Grid grid2) {
+        double max = 0;
+        double sum = 0;
+        for (int row = 0; row < grid1.getRows(); row++) {
+            for (int col = 0; col < grid1.getCols(); col++) {
+                double d = Math.abs(grid1.getValue(col, row) - grid2.getValue(col, row));
+                max = Math.max(max, d);
+                sum += d;
+            }
+        }
+        int n = grid1.getCols() * grid1.getRows();
+        System.out.println(String.format("%-50s %10.4f / %.4f", name, max, sum / n));
+    }
+
+    public static void main(String[] args) {
+        final int size = Tile.TILE_SIZE * 3;
+        final Grid grid = new Grid(size, size, 30);
+        Random random = new Random(0);
+        for (int row = 0; row < size; row++) {
+            for (int col = 0; col < size; col++) {
+                grid.setValue(random.nextFloat() * 100, col, row);
+            }
+        }
+        Grid smooth = new GridGaussLowPassOperator(4).operate(grid);
+        final Grid exactDst = new Grid(size, size, 30);
+        final Grid boxDst = new Grid(size, size, 30);
+
+        for (double std : new double[]{1, 2, 4, 8, 16, 32}) {
+            final GridGaussLowPassOperator exact = new GridGaussLowPassOperator(std);
+            exact.setBoxApproximationThreshold(Double.POSITIVE_INFINITY);
+            final GridGaussLowPassOperator box = new GridGaussLowPassOperator(std);
+            box.setBoxApproximationThreshold(0);
+
+            Benchmark.run("Gauss std " + std + ", exact", new Runnable() {
+                @Override
+                public void run() {
+                    exact.operate(grid, exactDst);
+                }
+            });
+            Benchmark.run("Gauss std " + std + ", box approximation", new Runnable() {
+                @Override
+                public void run() {
+                    box.operate(grid, boxDst);
+                }
+            });
+
+            printDifference("  noise, max / mean difference", exactDst, boxDst);
+            exact.operate(smooth, exactDst);
+            box.operate(smooth, boxDst);
+            printDifference("  smooth surface, max / mean difference", exactDst, boxDst);
+        }
+    }
+}
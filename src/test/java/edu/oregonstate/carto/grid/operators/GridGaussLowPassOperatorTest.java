@@ -0,0 +1,59 @@
+package edu.oregonstate.carto.grid.operators;
+
+import edu.oregonstate.carto.tilemanager.util.Grid;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GridGaussLowPassOperatorTest {
+
+    private static Grid smoothGrid(int cols, int rows) {
+        Grid grid = new Grid(cols, rows, 30);
+        Random random = new Random(0);
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                grid.setValue(random.nextFloat() * 100, col, row);
+            }
+        }
+        return new GridGaussLowPassOperator(3).operate(grid);
+    }
+
+    @Test
+    public void testBoxApproximation() {
+        Grid grid = smoothGrid(200, 150);
+        GridGaussLowPassOperator exact = new GridGaussLowPassOperator(10);
+        exact.setBoxApproximationThreshold(Double.POSITIVE_INFINITY);
+        GridGaussLowPassOperator box = new GridGaussLowPassOperator(10);
+        assertTrue(box.getBoxApproximationThreshold() <= 10);
+        Grid expected = exact.operate(grid);
+        Grid actual = box.operate(grid);
+        for (int row = 0; row < grid.getRows(); row++) {
+            for (int col = 0; col < grid.getCols(); col++) {
+                assertEquals(expected.getValue(col, row), actual.getValue(col, row), 1);
+            }
+        }
+    }
+
+    @Test
+    public void testConstantAndVoid() {
+        Grid grid = new Grid(100, 80, 30);
+        for (int row = 0; row < grid.getRows(); row++) {
+            for (int col = 0; col < grid.getCols(); col++) {
+                grid.setValue(7, col, row);
+            }
+        }
+        grid.setValue(Float.NaN, 10, 10);
+        GridGaussLowPassOperator box = new GridGaussLowPassOperator(5);
+        box.setBoxApproximationThreshold(0);
+        Grid dst = box.operate(grid);
+        assertTrue(Float.isNaN(dst.getValue(10, 10)));
+        for (int row = 0; row < grid.getRows(); row++) {
+            for (int col = 0; col < grid.getCols(); col++) {
+                // the box filters have a combined radius of less than 30 cells
+                if (Math.abs(col - 10) > 30 || Math.abs(row - 10) > 30) {
+                    assertEquals(7, dst.getValue(col, row), 1e-4);
+                }
+            }
+        }
+    }
+}
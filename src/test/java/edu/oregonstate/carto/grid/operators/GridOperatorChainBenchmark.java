@@ -0,0 +1,56 @@
+package edu.oregonstate.carto.grid.operators;
+
+import edu.oregonstate.carto.tilemanager.Tile;
+import edu.oregonstate.carto.tilemanager.util.Grid;
+import edu.oregonstate.carto.utils.Benchmark;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Compares the time for masking and shading a mega tile with separate passes
+ * and intermediate grids, and with a GridOperatorChain. Run with main().
+ */
+public class GridOperatorChainBenchmark {
+
+    public static void main(String[] args) {
+        // mega tile with one tile and a border of one tile
+        final int size = Tile.TILE_SIZE * 3;
+        final Grid grid = new Grid(size, size, 30);
+        Random random = new Random(0);
+        for (int row = 0; row < size; row++) {
+            for (int col = 0; col < size; col++) {
+                grid.setValue(random.nextInt(20), col, row);
+            }
+        }
+        final GridBinarizeOperator binarize = new GridBinarizeOperator(new float[]{3, 7});
+        final GridToImageOperator toImage = new GridToImageOperator();
+        final ShaderOperator shader = new ShaderOperator();
+        final ColorizerOperator colorizer = new ColorizerOperator(ColorizerOperator.ColorVisualization.GRAY_SHADING);
+        final BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+
+        Benchmark.run("Mask, separate passes", new Runnable() {
+            @Override
+            public void run() {
+                toImage.operate(binarize.operate(grid), 0, 1);
+            }
+        });
+        Benchmark.run("Mask, chain", new Runnable() {
+            @Override
+            public void run() {
+                toImage.operate(new GridOperatorChain(binarize), grid, 0, 1);
+            }
+        });
+        Benchmark.run("Shading, separate passes", new Runnable() {
+            @Override
+            public void run() {
+                colorizer.operate(shader.operate(grid), grid, img, 0, 0);
+            }
+        });
+        Benchmark.run("Shading, chain", new Runnable() {
+            @Override
+            public void run() {
+                colorizer.operate(new GridOperatorChain(shader), grid, img, 0, 0);
+            }
+        });
+    }
+}
@@ -0,0 +1,79 @@
+package edu.oregonstate.carto.grid.operators;
+
+import edu.oregonstate.carto.tilemanager.util.Grid;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GridOperatorChainTest {
+
+    /**
+     * Creates a grid with random values. The grid is large enough to be split
+     * into several blocks of rows.
+     */
+    private static Grid randomGrid(int cols, int rows) {
+        Random random = new Random(0);
+        Grid grid = new Grid(cols, rows, 30);
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                grid.setValue(random.nextInt(20), col, row);
+            }
+        }
+        return grid;
+    }
+
+    private static void assertGridEquals(Grid expected, Grid actual) {
+        for (int row = 0; row < expected.getRows(); row++) {
+            assertArrayEquals(expected.getGrid()[row], actual.getGrid()[row], 0f);
+        }
+    }
+
+    @Test
+    public void testPointOperators() {
+        Grid grid = randomGrid(400, 300);
+        GridBinarizeOperator binarize = new GridBinarizeOperator(new float[]{3, 7});
+        GridScaleOperator scale = new GridScaleOperator(5);
+        Grid expected = scale.operate(binarize.operate(grid));
+        GridOperatorChain chain = new GridOperatorChain(binarize, scale);
+        assertTrue(chain.isOverwritingSupported());
+        assertGridEquals(expected, chain.operate(grid));
+    }
+
+    @Test
+    public void testNeighborhoodOperators() {
+        Grid grid = randomGrid(400, 300);
+        GridScaleOperator scale = new GridScaleOperator(3);
+        ShaderOperator shader = new ShaderOperator();
+        GridSlopeOperator slope = new GridSlopeOperator();
+        Grid expected = slope.operate(shader.operate(scale.operate(grid)));
+        GridOperatorChain chain = new GridOperatorChain(scale, shader).append(slope);
+        assertFalse(chain.isOverwritingSupported());
+        assertGridEquals(expected, chain.operate(grid));
+
+        chain.setMaxThreads(1);
+        assertGridEquals(expected, chain.operate(grid));
+    }
+
+    @Test
+    public void testImages() {
+        Grid grid = randomGrid(300, 200);
+        GridBinarizeOperator binarize = new GridBinarizeOperator(new float[]{4});
+        GridToImageOperator toImage = new GridToImageOperator();
+        BufferedImage expectedMask = toImage.operate(binarize.operate(grid), 0, 1);
+        BufferedImage mask = toImage.operate(new GridOperatorChain(binarize), grid, 0, 1);
+        assertArrayEquals(((DataBufferByte) expectedMask.getRaster().getDataBuffer()).getData(),
+                ((DataBufferByte) mask.getRaster().getDataBuffer()).getData());
+
+        ShaderOperator shader = new ShaderOperator();
+        ColorizerOperator colorizer = new ColorizerOperator(ColorizerOperator.ColorVisualization.GRAY_SHADING);
+        BufferedImage expectedShading = new BufferedImage(300, 200, BufferedImage.TYPE_INT_ARGB);
+        colorizer.operate(shader.operate(grid), grid, expectedShading, 0, 0);
+        BufferedImage shading = new BufferedImage(300, 200, BufferedImage.TYPE_INT_ARGB);
+        colorizer.operate(new GridOperatorChain(shader), grid, shading, 0, 0);
+        assertArrayEquals(((DataBufferInt) expectedShading.getRaster().getDataBuffer()).getData(),
+                ((DataBufferInt) shading.getRaster().getDataBuffer()).getData());
+    }
+}
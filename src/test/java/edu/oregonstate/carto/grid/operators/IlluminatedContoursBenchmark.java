@@ -0,0 +1,39 @@
+package edu.oregonstate.carto.grid.operators;
+
+import edu.oregonstate.carto.tilemanager.Tile;
+import edu.oregonstate.carto.tilemanager.util.Grid;
+import edu.oregonstate.carto.utils.Benchmark;
+import java.awt.image.BufferedImage;
+
+/**
+ * Compares scaled illuminated contours computed by interpolating grids for
+ * each pixel with contours computed by interpolating values between cell
+ * corners. Run with main().
+ */
+public class IlluminatedContoursBenchmark {
+
+    public static void main(String[] args) {
+        final Grid grid = IlluminatedContoursOperatorTest.terrain(Tile.TILE_SIZE);
+        final Grid slopeGrid = new GridSlopeOperator().operate(grid);
+        for (final int scale : new int[]{2, 4, 8}) {
+            int size = grid.getCols() * scale;
+            final BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+            final IlluminatedContoursOperator op = new IlluminatedContoursOperator(
+                    true, 1, 1, 0.2, true, 315, 20, 10, 255, 2., 90);
+            op.setInterpolateCellValues(false);
+            Benchmark.run("Scale " + scale + ", grid interpolation per pixel", new Runnable() {
+                @Override
+                public void run() {
+                    op.renderToImage(img, grid, slopeGrid, null);
+                }
+            });
+            op.setInterpolateCellValues(true);
+            Benchmark.run("Scale " + scale + ", cell value interpolation", new Runnable() {
+                @Override
+                public void run() {
+                    op.renderToImage(img, grid, slopeGrid, null);
+                }
+            });
+        }
+    }
+}
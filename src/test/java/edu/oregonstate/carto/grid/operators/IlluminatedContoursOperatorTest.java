@@ -0,0 +1,60 @@
+package edu.oregonstate.carto.grid.operators;
+
+import edu.oregonstate.carto.tilemanager.util.Grid;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class IlluminatedContoursOperatorTest {
+
+    /**
+     * Creates a smooth terrain model.
+     */
+    static Grid terrain(int size) {
+        Grid grid = new Grid(size, size, 30);
+        Random random = new Random(0);
+        for (int row = 0; row < size; row++) {
+            for (int col = 0; col < size; col++) {
+                grid.setValue(random.nextFloat() * 2000, col, row);
+            }
+        }
+        grid = new GridGaussLowPassOperator(4).operate(grid);
+        grid.setWest(1000);
+        grid.setNorth(5000);
+        return grid;
+    }
+
+    @Test
+    public void testInterpolateCellValues() {
+        Grid grid = terrain(100);
+        Grid slopeGrid = new GridSlopeOperator().operate(grid);
+        int scale = 4;
+        int size = grid.getCols() * scale;
+
+        IlluminatedContoursOperator op = new IlluminatedContoursOperator(
+                true, 1, 1, 0.2, true, 315, 20, 10, 255, 2., 90);
+        op.setInterpolateCellValues(false);
+        BufferedImage expected = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        op.renderToImage(expected, grid, slopeGrid, null);
+        op.setInterpolateCellValues(true);
+        BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        op.renderToImage(img, grid, slopeGrid, null);
+
+        // pixels along the edges of contour lines may differ
+        int lines = 0;
+        int differences = 0;
+        for (int row = scale; row < size - 2 * scale; row++) {
+            for (int col = scale; col < size - scale; col++) {
+                if (expected.getRGB(col, row) != 0) {
+                    lines++;
+                }
+                if (expected.getRGB(col, row) != img.getRGB(col, row)) {
+                    differences++;
+                }
+            }
+        }
+        assertTrue(lines > size * size / 20);
+        assertTrue(differences < lines / 20);
+    }
+}
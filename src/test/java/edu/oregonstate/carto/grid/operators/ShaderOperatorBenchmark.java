@@ -0,0 +1,78 @@
+package edu.oregonstate.carto.grid.operators;
+
+import edu.oregonstate.carto.tilemanager.Tile;
+import edu.oregonstate.carto.tilemanager.util.FlatGrid;
+import edu.oregonstate.carto.tilemanager.util.Grid;
+import edu.oregonstate.carto.utils.Benchmark;
+import java.util.Random;
+
+/**
+ * Measures the shading of grids of different sizes, from a single tile to a
+ * large grid, and compares multi-directional shading with and without lookup
+ * table. Run with main().
+ */
+public class ShaderOperatorBenchmark {
+
+    public static void main(String[] args) {
+        final ShaderOperator shader = new ShaderOperator();
+        int[] sizes = new int[]{Tile.TILE_SIZE, Tile.TILE_SIZE * 3, 2048};
+        for (int size : sizes) {
+            final Grid grid = new Grid(size, size, 30);
+            Random random = new Random(0);
+            for (int row = 0; row < size; row++) {
+                for (int col = 0; col < size; col++) {
+                    grid.setValue(random.nextInt(20), col, row);
+                }
+            }
+            final Grid gridDst = new Grid(size, size, 30);
+            final FlatGrid flat = new FlatGrid(grid);
+            final FlatGrid flatDst = new FlatGrid(size, size, 30);
+
+            double t = Benchmark.run("Shading " + size + "x" + size + ", Grid", new Runnable() {
+                @Override
+                public void run() {
+                    shader.operate(grid, gridDst);
+                }
+            });
+            System.out.println(String.format("%-50s %10.1f", "  million cells per second", size * size / t / 1000));
+            Benchmark.run("Shading " + size + "x" + size + ", FlatGrid", new Runnable() {
+                @Override
+                public void run() {
+                    shader.operate(flat, flatDst);
+                }
+            });
+        }
+
+        final int size = Tile.TILE_SIZE * 3;
+        final Grid grid = new Grid(size, size, 30);
+        Random random = new Random(0);
+        for (int row = 0; row < size; row++) {
+            for (int col = 0; col < size; col++) {
+                grid.setValue(random.nextInt(20), col, row);
+            }
+        }
+        final Grid dst = new Grid(size, size, 30);
+        final ShaderOperator multi = new ShaderOperator();
+        multi.setMultidirectionalIllumination();
+        Benchmark.run("Multi-directional " + size + "x" + size, new Runnable() {
+            @Override
+            public void run() {
+                multi.operate(grid, dst);
+            }
+        });
+        multi.setLookupTableEnabled(true);
+        Benchmark.run("Multi-directional " + size + "x" + size + ", lookup table", new Runnable() {
+            @Override
+            public void run() {
+                multi.operate(grid, dst);
+            }
+        });
+        shader.setLookupTableEnabled(true);
+        Benchmark.run("Single light " + size + "x" + size + ", lookup table", new Runnable() {
+            @Override
+            public void run() {
+                shader.operate(grid, dst);
+            }
+        });
+    }
+}
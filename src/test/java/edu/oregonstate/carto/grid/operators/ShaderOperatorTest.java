@@ -0,0 +1,119 @@
+package edu.oregonstate.carto.grid.operators;
+
+import edu.oregonstate.carto.app.Vector3D;
+import edu.oregonstate.carto.tilemanager.util.Grid;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ShaderOperatorTest {
+
+    /**
+     * Shading of an inner cell computed in double precision with the sum of
+     * the four vector products of the neighbors.
+     */
+    private static double referenceShading(Grid grid, int col, int row,
+            double ve, double azimuth, double zenith) {
+        double cs = grid.getCellSize();
+        double c = grid.getValue(col, row);
+        double s = (grid.getValue(col, row + 1) - c) * ve;
+        double e = (grid.getValue(col + 1, row) - c) * ve;
+        double n = (grid.getValue(col, row - 1) - c) * ve;
+        double w = (grid.getValue(col - 1, row) - c) * ve;
+        Vector3D normal = new Vector3D(
+                -cs * e - e * cs + cs * w + w * cs,
+                s * cs - cs * n - n * cs + cs * s,
+                4 * cs * cs);
+        normal.normalize();
+        double dotProduct = normal.dotProduct(new Vector3D(azimuth, zenith));
+        return (dotProduct + 1) / 2 * 255;
+    }
+
+    @Test
+    public void testShading() {
+        Grid grid = new Grid(50, 40, 30);
+        Random random = new Random(0);
+        for (int row = 0; row < grid.getRows(); row++) {
+            for (int col = 0; col < grid.getCols(); col++) {
+                grid.setValue(random.nextFloat() * 500, col, row);
+            }
+        }
+        grid.setValue(Float.NaN, 20, 20);
+
+        ShaderOperator shader = new ShaderOperator();
+        shader.setIlluminationAzimuth(290);
+        shader.setIlluminationZenith(50);
+        shader.setVerticalExaggeration(2);
+        Grid shading = shader.operate(grid);
+
+        Vector3D light = new Vector3D(290, 50);
+        float level = (float) ((light.z + 1) / 2 * 255);
+        for (int row = 0; row < grid.getRows(); row++) {
+            for (int col = 0; col < grid.getCols(); col++) {
+                float v = shading.getValue(col, row);
+                if (col == 20 && row == 20) {
+                    assertTrue(Float.isNaN(v));
+                } else if (Math.abs(col - 20) + Math.abs(row - 20) == 1) {
+                    // a neighbor of the void cell
+                    assertTrue(Float.isNaN(v));
+                } else if (row == 0 || col == 0 || row == grid.getRows() - 1
+                        || col == grid.getCols() - 1) {
+                    assertEquals(level, v, 1e-3);
+                } else {
+                    assertEquals(referenceShading(grid, col, row, 2, 290, 50), v, 1e-3);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMultidirectional() {
+        Grid grid = new Grid(60, 60, 30);
+        Random random = new Random(1);
+        for (int row = 0; row < grid.getRows(); row++) {
+            for (int col = 0; col < grid.getCols(); col++) {
+                grid.setValue(random.nextFloat() * 100, col, row);
+            }
+        }
+        ShaderOperator shader = new ShaderOperator();
+        shader.setMultidirectionalIllumination(new int[]{270, 315}, new float[]{1, 3});
+        Grid shading = shader.operate(grid);
+
+        double cs = grid.getCellSize();
+        Vector3D light1 = new Vector3D(270, 45);
+        Vector3D light2 = new Vector3D(315, 45);
+        for (int row = 1; row < grid.getRows() - 1; row++) {
+            for (int col = 1; col < grid.getCols() - 1; col++) {
+                Vector3D n = new Vector3D(
+                        grid.getValue(col - 1, row) - grid.getValue(col + 1, row),
+                        grid.getValue(col, row + 1) - grid.getValue(col, row - 1),
+                        2 * cs);
+                n.normalize();
+                double expected = 255 * (0.25 * Math.max(0, n.dotProduct(light1))
+                        + 0.75 * Math.max(0, n.dotProduct(light2)));
+                assertEquals(expected, shading.getValue(col, row), 1e-3);
+            }
+        }
+
+        // the lookup table approximates the computed shading
+        shader.setLookupTableEnabled(true);
+        Grid lutShading = shader.operate(grid);
+        for (int row = 0; row < grid.getRows(); row++) {
+            for (int col = 0; col < grid.getCols(); col++) {
+                assertEquals(shading.getValue(col, row), lutShading.getValue(col, row), 1);
+            }
+        }
+
+        // the table is recomputed when the illumination changes
+        shader.setMultidirectionalIllumination(null, null);
+        shader.setLookupTableEnabled(false);
+        Grid singleShading = shader.operate(grid);
+        shader.setLookupTableEnabled(true);
+        Grid singleLutShading = shader.operate(grid);
+        for (int row = 0; row < grid.getRows(); row++) {
+            for (int col = 0; col < grid.getCols(); col++) {
+                assertEquals(singleShading.getValue(col, row), singleLutShading.getValue(col, row), 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package edu.oregonstate.carto.grid.operators;
+
+import edu.oregonstate.carto.tilemanager.util.Grid;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ThreadedGridOperatorTest {
+
+    /**
+     * Creates a grid that is large enough to be split into blocks of rows,
+     * with some void cells.
+     */
+    private static Grid randomGrid() {
+        Grid grid = new Grid(512, 300, 30);
+        Random random = new Random(0);
+        for (int row = 0; row < grid.getRows(); row++) {
+            for (int col = 0; col < grid.getCols(); col++) {
+                float v = random.nextInt(50) == 0 ? Float.NaN : random.nextFloat() * 100 - 20;
+                grid.setValue(v, col, row);
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Compares the statistics recorded by an operator with the statistics
+     * computed from the values of the grid.
+     */
+    private static void assertStatistics(Grid grid) {
+        Grid.GeoGridStatistics stats = grid.getStatistics();
+        Grid.GeoGridStatistics expected = new Grid.GeoGridStatistics(grid);
+        assertEquals(expected.min, stats.min, 0f);
+        assertEquals(expected.max, stats.max, 0f);
+        assertEquals(expected.mean, stats.mean, 1e-4f);
+        assertEquals(expected.voidCount, stats.voidCount);
+    }
+
+    @Test
+    public void testBlockStatistics() {
+        Grid grid = randomGrid();
+        assertStatistics(new GridScaleOperator(2).operate(grid));
+
+        // statistics of an overwritten grid are replaced
+        grid.getStatistics();
+        new GridScaleOperator(-3).operate(grid, grid);
+        assertStatistics(grid);
+    }
+
+    @Test
+    public void testScaleToRangeStatistics() {
+        Grid dst = new GridScaleToRangeOperator(10, 20).operate(randomGrid());
+        assertEquals(10, dst.getStatistics().min, 0f);
+        assertStatistics(dst);
+
+        Grid constant = new GridScaleToRangeOperator(5, 5).operate(randomGrid());
+        assertEquals(5, constant.getStatistics().max, 0f);
+        assertStatistics(constant);
+    }
+
+    @Test
+    public void testTransposedStatistics() {
+        Grid grid = randomGrid();
+        Grid dst = new GridGaussLowPassOperator(2).operate(grid);
+        dst.getStatistics();
+        new GridGaussLowPassOperator(4).operate(grid, dst);
+        assertStatistics(dst);
+    }
+}
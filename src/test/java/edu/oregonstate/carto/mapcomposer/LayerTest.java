@@ -0,0 +1,83 @@
+package edu.oregonstate.carto.mapcomposer;
+
+import edu.oregonstate.carto.tilemanager.DecodedTileCache;
+import edu.oregonstate.carto.tilemanager.Tile;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import javax.xml.bind.JAXBException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LayerTest {
+
+    /**
+     * Writes a grid tile with a constant value in the binary grid format.
+     */
+    private static void writeGrid(File file, float value) throws IOException {
+        file.getParentFile().mkdirs();
+        int cells = Tile.TILE_SIZE * Tile.TILE_SIZE;
+        ByteBuffer bb = ByteBuffer.allocate(cells * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < cells; i++) {
+            bb.putFloat(value);
+        }
+        Files.write(file.toPath(), bb.array());
+    }
+
+    @Test
+    public void testIDWGridTilesAreCached() throws IOException {
+        File dir = Files.createTempDirectory("idwtiles").toFile();
+        File file1 = new File(dir, "1/3/1/2.bin");
+        File file2 = new File(dir, "2/3/1/2.bin");
+        try {
+            writeGrid(file1, 0.2f);
+            writeGrid(file2, 0.7f);
+            Layer layer = new Layer("idw");
+            layer.setColorType(Layer.ColorType.INTERPOLATE);
+            // valid templates contain "//"
+            String url = "file://" + dir.getAbsolutePath() + "/";
+            layer.setIDWGridTileURLTemplates(url + "1/{z}/{x}/{y}.bin",
+                    url + "2/{z}/{x}/{y}.bin");
+            DecodedTileCache cache = DecodedTileCache.getInstance();
+
+            layer.renderMetaTile(3, 1, 5, 1);
+            long hits = cache.getHitCount();
+            long misses = cache.getMissCount();
+
+            // the second render decodes no grid tile, including the missing
+            // neighbors of the block
+            layer.renderMetaTile(3, 1, 5, 1);
+            assertEquals(misses, cache.getMissCount());
+            assertEquals(hits + 2 * 9, cache.getHitCount());
+        } finally {
+            for (String path : new String[]{"1/3/1/2.bin", "2/3/1/2.bin",
+                "1/3/1", "2/3/1", "1/3", "2/3", "1", "2", ""}) {
+                new File(dir, path).delete();
+            }
+        }
+    }
+
+    @Test
+    public void testRenderHash() throws JAXBException {
+        Layer layer = new Layer("hash");
+        String hash = layer.getRenderHash();
+        assertSame(hash, layer.getRenderHash());
+
+        // compositing properties do not change the rendered image
+        layer.setOpacity(0.5f);
+        layer.setName("renamed");
+        assertEquals(hash, layer.getRenderHash());
+
+        layer.setGaussBlur(2);
+        assertFalse(hash.equals(layer.getRenderHash()));
+
+        // properties modified in place require an explicit notification
+        hash = layer.getRenderHash();
+        layer.getTint().setTintColor(java.awt.Color.RED);
+        assertSame(hash, layer.getRenderHash());
+        layer.renderingChanged();
+        assertFalse(hash.equals(layer.getRenderHash()));
+    }
+}
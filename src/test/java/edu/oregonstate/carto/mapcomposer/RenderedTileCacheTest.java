@@ -0,0 +1,40 @@
+package edu.oregonstate.carto.mapcomposer;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RenderedTileCacheTest {
+
+    @Test
+    public void testLayerChangeRendersTile() throws IOException {
+        Map map = new Map();
+        Layer layer = new Layer("solid");
+        layer.setColorType(Layer.ColorType.SOLID);
+        map.addLayer(layer);
+        RenderedTileCache cache = RenderedTileCache.getInstance();
+
+        byte[] png = cache.getPNG(map, 3, 1, 2);
+        assertSame(png, cache.getPNG(map, 3, 1, 2));
+
+        // a setter of the layer changes the style hash of the map
+        Tint tint = new Tint();
+        tint.setTintColor(Color.RED);
+        layer.setTint(tint);
+        byte[] red = cache.getPNG(map, 3, 1, 2);
+        assertFalse(Arrays.equals(png, red));
+
+        // compositing properties change the style hash as well
+        layer.setOpacity(0.5f);
+        assertFalse(Arrays.equals(red, cache.getPNG(map, 3, 1, 2)));
+
+        // in-place modifications require an explicit notification
+        png = cache.getPNG(map, 3, 1, 2);
+        layer.getTint().setTintColor(Color.BLUE);
+        assertSame(png, cache.getPNG(map, 3, 1, 2));
+        map.styleChanged();
+        assertFalse(Arrays.equals(png, cache.getPNG(map, 3, 1, 2)));
+    }
+}
@@ -0,0 +1,70 @@
+package edu.oregonstate.carto.mapcomposer;
+
+import edu.oregonstate.carto.tilemanager.DecodedTileCache;
+import edu.oregonstate.carto.utils.BufferPool;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the number of bytes allocated on the heap for rendering a tile with
+ * and without the BufferPool. Uses the sample tiles in the data directory.
+ * Run with main() from the project directory.
+ */
+public class TileAllocationBenchmark {
+
+    private static final int TILES = 200;
+
+    static Map createMap() {
+        String base = "file://" + new File("data/TMS_tiles_MountHood").getAbsolutePath() + "/";
+        Map map = new Map();
+
+        Layer forest = new Layer("Forest");
+        forest.setColorType(Layer.ColorType.SOLID);
+        forest.setMaskTileSetURLTemplate(base + "forestMask/{z}/{x}/{y}.png");
+        forest.setMaskTileSetTMSSchema(true);
+        forest.setOpacity(0.7f);
+        map.addLayer(forest);
+
+        Layer multiply = new Layer("Multiply", base + "Tiled_Orthoimages/{z}/{x}/{y}.png");
+        multiply.setTileSetTMSSchema(true);
+        multiply.setBlending(Layer.BlendType.MULTIPLY);
+        multiply.setOpacity(0.5f);
+        map.addLayer(multiply);
+
+        Layer ortho = new Layer("Ortho", base + "Tiled_Orthoimages/{z}/{x}/{y}.png");
+        ortho.setTileSetTMSSchema(true);
+        map.addLayer(ortho);
+        return map;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void measure(Map map, boolean pooling) {
+        BufferPool.setEnabled(pooling);
+        // warm up and fill the pool
+        for (int i = 0; i < TILES / 4; i++) {
+            BufferPool.release(map.generateTile(11, 331, 733));
+        }
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < TILES; i++) {
+            BufferPool.release(map.generateTile(11, 331, 733));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double mbPerTile = (allocatedBytes() - bytes) / 1024d / 1024d / TILES;
+        System.out.println(String.format("Buffer pool %-5s %8.2f MB per tile %8.1f MB/s",
+                pooling, mbPerTile, mbPerTile * TILES / seconds));
+    }
+
+    public static void main(String[] args) {
+        // allocations are measured for the current thread only
+        Map.setLayerRenderThreads(1);
+        Map map = createMap();
+        measure(map, false);
+        measure(map, true);
+        System.out.println("Decoded tiles: " + DecodedTileCache.getInstance());
+    }
+}
@@ -0,0 +1,69 @@
+package edu.oregonstate.carto.mapcomposer;
+
+import edu.oregonstate.carto.tilemanager.TileEncoder;
+import edu.oregonstate.carto.utils.Benchmark;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+/**
+ * Compares encoding time and size of tiles encoded with ImageIO and with
+ * TileEncoder. Uses a tile of the sample data rendered by the map of
+ * TileAllocationBenchmark. Run with main() from the project directory.
+ */
+public class TileEncoderBenchmark {
+
+    private static void benchmarkImageIO(final BufferedImage tile) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ImageIO.write(tile, "png", os);
+        Benchmark.run(String.format("ImageIO PNG %28d bytes", os.size()), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ImageIO.write(tile, "png", new ByteArrayOutputStream());
+                } catch (IOException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        });
+    }
+
+    private static void benchmark(final BufferedImage tile, final TileEncoder encoder,
+            String name) throws IOException {
+        int size = encoder.encode(tile).length;
+        Benchmark.run(String.format("%-30s %9d bytes", name, size), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    encoder.encode(tile);
+                } catch (IOException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        });
+    }
+
+    public static void main(String[] args) throws IOException {
+        BufferedImage tile = TileAllocationBenchmark.createMap().generateTile(11, 331, 733);
+        benchmarkImageIO(tile);
+
+        TileEncoder encoder = new TileEncoder();
+        for (int level : new int[]{1, 4, 6, 9}) {
+            encoder.setCompressionLevel(level);
+            benchmark(tile, encoder, "PNG level " + level);
+        }
+        encoder.setCompressionLevel(4);
+        for (TileEncoder.Filter filter : TileEncoder.Filter.values()) {
+            encoder.setFilter(filter);
+            benchmark(tile, encoder, "PNG filter " + filter);
+        }
+        encoder.setFilter(TileEncoder.Filter.ADAPTIVE);
+
+        encoder.setFormat(TileEncoder.Format.PNG_PALETTE);
+        benchmark(tile, encoder, "PNG palette");
+
+        encoder.setFormat(TileEncoder.Format.JPEG);
+        benchmark(tile, encoder, "JPEG quality 0.85");
+    }
+}
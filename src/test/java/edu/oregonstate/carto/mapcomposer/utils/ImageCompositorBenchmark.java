@@ -0,0 +1,72 @@
+package edu.oregonstate.carto.mapcomposer.utils;
+
+import com.jhlabs.composite.MultiplyComposite;
+import edu.oregonstate.carto.mapcomposer.Layer;
+import edu.oregonstate.carto.tilemanager.Tile;
+import edu.oregonstate.carto.utils.Benchmark;
+import java.awt.AlphaComposite;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Compares the time for blending a layer with ImageCompositor and with
+ * Graphics2D.drawImage, as used by Map.generateTile. Run with main().
+ */
+public class ImageCompositorBenchmark {
+
+    /**
+     * Creates an image with random colors.
+     *
+     * @param random Random number generator.
+     * @param masked If true, the left half of the image is transparent as for
+     * a masked layer. Otherwise all pixels are opaque as for the tile that
+     * layers are blended with.
+     */
+    private static BufferedImage randomImage(Random random, boolean masked) {
+        BufferedImage img = new BufferedImage(Tile.TILE_SIZE, Tile.TILE_SIZE,
+                BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ImageCompositor.pixels(img);
+        for (int i = 0; i < pixels.length; i++) {
+            boolean transparent = masked && i % Tile.TILE_SIZE < Tile.TILE_SIZE / 2;
+            pixels[i] = transparent ? 0 : random.nextInt() | 0xFF000000;
+        }
+        return img;
+    }
+
+    private static void benchmark(final Layer.BlendType blending, final float opacity) {
+        Random random = new Random(0);
+        final BufferedImage dst = randomImage(random, false);
+        final BufferedImage src = randomImage(random, true);
+        final Composite composite = blending == Layer.BlendType.NORMAL
+                ? AlphaComposite.getInstance(AlphaComposite.SRC_OVER, opacity)
+                : new MultiplyComposite(opacity);
+
+        Benchmark.run("Graphics2D " + blending + " " + opacity, new Runnable() {
+            @Override
+            public void run() {
+                Graphics2D g2d = dst.createGraphics();
+                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g2d.setComposite(composite);
+                g2d.drawImage(src, null, null);
+                g2d.dispose();
+            }
+        });
+        Benchmark.run("ImageCompositor " + blending + " " + opacity, new Runnable() {
+            @Override
+            public void run() {
+                ImageCompositor.composite(dst, src, blending, opacity);
+            }
+        });
+    }
+
+    public static void main(String[] args) {
+        benchmark(Layer.BlendType.NORMAL, 1f);
+        benchmark(Layer.BlendType.NORMAL, 0.5f);
+        benchmark(Layer.BlendType.MULTIPLY, 1f);
+        benchmark(Layer.BlendType.MULTIPLY, 0.5f);
+    }
+}
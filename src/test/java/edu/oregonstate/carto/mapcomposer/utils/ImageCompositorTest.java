@@ -0,0 +1,96 @@
+package edu.oregonstate.carto.mapcomposer.utils;
+
+import com.jhlabs.composite.MultiplyComposite;
+import edu.oregonstate.carto.mapcomposer.Layer;
+import java.awt.AlphaComposite;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares ImageCompositor with compositing by Graphics2D.
+ */
+public class ImageCompositorTest {
+
+    private static final int SIZE = 64;
+
+    /**
+     * Creates an image with random pixels.
+     *
+     * @param random Random number generator.
+     * @param opaque If true, all pixels are opaque.
+     */
+    private static BufferedImage randomImage(Random random, boolean opaque) {
+        BufferedImage img = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ImageCompositor.pixels(img);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+            if (opaque) {
+                pixels[i] |= 0xFF000000;
+            }
+        }
+        // include fully transparent and fully opaque pixels
+        pixels[0] = 0;
+        pixels[1] |= 0xFF000000;
+        return img;
+    }
+
+    private static BufferedImage copy(BufferedImage img) {
+        BufferedImage copy = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+        System.arraycopy(ImageCompositor.pixels(img), 0, ImageCompositor.pixels(copy), 0, SIZE * SIZE);
+        return copy;
+    }
+
+    private static void assertSimilar(BufferedImage expected, BufferedImage actual) {
+        int[] e = ImageCompositor.pixels(expected);
+        int[] a = ImageCompositor.pixels(actual);
+        for (int i = 0; i < e.length; i++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                int d = Math.abs(((e[i] >> shift) & 0xff) - ((a[i] >> shift) & 0xff));
+                assertTrue("pixel " + i + " expected " + Integer.toHexString(e[i])
+                        + " got " + Integer.toHexString(a[i]), d <= 1);
+            }
+        }
+    }
+
+    private static void compare(Layer.BlendType blending, float opacity) {
+        Random random = new Random(1);
+        BufferedImage dst = randomImage(random, true);
+        BufferedImage src = randomImage(random, false);
+
+        BufferedImage expected = copy(dst);
+        Graphics2D g2d = expected.createGraphics();
+        Composite composite = blending == Layer.BlendType.NORMAL
+                ? AlphaComposite.getInstance(AlphaComposite.SRC_OVER, opacity)
+                : new MultiplyComposite(opacity);
+        g2d.setComposite(composite);
+        g2d.drawImage(src, null, null);
+        g2d.dispose();
+
+        ImageCompositor.composite(dst, src, blending, opacity);
+        assertSimilar(expected, dst);
+    }
+
+    @Test
+    public void testNormal() {
+        compare(Layer.BlendType.NORMAL, 1f);
+    }
+
+    @Test
+    public void testNormalWithOpacity() {
+        compare(Layer.BlendType.NORMAL, 0.4f);
+    }
+
+    @Test
+    public void testMultiply() {
+        compare(Layer.BlendType.MULTIPLY, 1f);
+    }
+
+    @Test
+    public void testMultiplyWithOpacity() {
+        compare(Layer.BlendType.MULTIPLY, 0.7f);
+    }
+}
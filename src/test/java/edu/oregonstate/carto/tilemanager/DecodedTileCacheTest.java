@@ -0,0 +1,60 @@
+package edu.oregonstate.carto.tilemanager;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DecodedTileCacheTest {
+
+    /**
+     * Writes a grid tile with a constant value in the binary grid format.
+     */
+    private static void writeGrid(File file, float value) throws IOException {
+        file.getParentFile().mkdirs();
+        int cells = Tile.TILE_SIZE * Tile.TILE_SIZE;
+        ByteBuffer bb = ByteBuffer.allocate(cells * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < cells; i++) {
+            bb.putFloat(value);
+        }
+        Files.write(file.toPath(), bb.array());
+    }
+
+    @Test
+    public void testChangedFiles() throws IOException {
+        File dir = Files.createTempDirectory("decodedtiles").toFile();
+        TileSet tileSet = new TileSet(dir.toURI() + "{z}/{x}/{y}.bin");
+        DecodedTileCache cache = DecodedTileCache.getInstance();
+        File file = new File(dir, "3/2/1.bin");
+
+        // a missing tile is found after the file has been added
+        try {
+            cache.getGrid((GridTile) tileSet.getTile(3, 2, 1));
+            fail();
+        } catch (FileNotFoundException ex) {
+        }
+        writeGrid(file, 1);
+        assertEquals(1, cache.getGrid((GridTile) tileSet.getTile(3, 2, 1)).getValue(0, 0), 0f);
+
+        // a changed file is decoded again
+        writeGrid(file, 2);
+        file.setLastModified(file.lastModified() - 10000);
+        assertEquals(2, cache.getGrid((GridTile) tileSet.getTile(3, 2, 1)).getValue(0, 0), 0f);
+
+        // tiles of a tile set without decoded tile caching are not cached
+        TileSet uncached = new TileSet(dir.toURI() + "{z}/{x}/{y}.bin");
+        uncached.setDecodedTileCaching(false);
+        long size = cache.size();
+        assertEquals(2, cache.getGrid((GridTile) uncached.getTile(3, 2, 1)).getValue(0, 0), 0f);
+        assertEquals(size, cache.size());
+
+        file.delete();
+        new File(dir, "3/2").delete();
+        new File(dir, "3").delete();
+        dir.delete();
+    }
+}
@@ -0,0 +1,55 @@
+package edu.oregonstate.carto.tilemanager;
+
+import edu.oregonstate.carto.tilemanager.util.MosaicGrid;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GridTileTest {
+
+    /**
+     * Writes a grid tile with a constant value in the binary grid format.
+     */
+    private static void writeGrid(File file, float value) throws IOException {
+        file.getParentFile().mkdirs();
+        int cells = Tile.TILE_SIZE * Tile.TILE_SIZE;
+        ByteBuffer bb = ByteBuffer.allocate(cells * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < cells; i++) {
+            bb.putFloat(value);
+        }
+        Files.write(file.toPath(), bb.array());
+    }
+
+    @Test
+    public void testMosaicWithMissingTopLeftTile() throws IOException {
+        File dir = Files.createTempDirectory("gridtiles").toFile();
+        try {
+            // a block of 2 x 2 tiles at zoom 4, the top-left tile is missing
+            writeGrid(new File(dir, "4/6/5.bin"), 1);
+            writeGrid(new File(dir, "4/5/6.bin"), 2);
+            writeGrid(new File(dir, "4/6/6.bin"), 3);
+            TileSet tileSet = new TileSet(dir.toURI() + "{z}/{x}/{y}.bin");
+            GridTile tile = (GridTile) tileSet.getTile(4, 5, 5);
+            MosaicGrid mosaic = tile.createMosaic(2, 1);
+            assertEquals(2 * Tile.TILE_SIZE + 2, mosaic.getCols());
+            assertEquals(TileSet.groundPixelSize(4, 5), mosaic.getCellSize(), 0);
+            // each row of tiles has the cell size of its latitude
+            assertEquals(TileSet.groundPixelSize(4, 4), mosaic.getCellSize(0), 0);
+            assertEquals(TileSet.groundPixelSize(4, 5), mosaic.getCellSize(1), 0);
+            assertEquals(TileSet.groundPixelSize(4, 6), mosaic.getCellSize(Tile.TILE_SIZE + 1), 0);
+            assertTrue(mosaic.getCellSize(Tile.TILE_SIZE + 1) > mosaic.getCellSize(1));
+            assertEquals(0, mosaic.getValue(1, 1), 0f);
+            assertEquals(1, mosaic.getValue(Tile.TILE_SIZE + 1, 1), 0f);
+            assertEquals(2, mosaic.getValue(1, Tile.TILE_SIZE + 1), 0f);
+            assertEquals(3, mosaic.getValue(Tile.TILE_SIZE + 1, Tile.TILE_SIZE + 1), 0f);
+        } finally {
+            for (String path : new String[]{"4/6/5.bin", "4/5/6.bin", "4/6/6.bin", "4/6", "4/5", "4", ""}) {
+                new File(dir, path).delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package edu.oregonstate.carto.tilemanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ShardQueueTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("queue").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        new ShardQueue(directory).clear();
+        for (String state : new String[]{ShardQueue.PENDING, ShardQueue.RUNNING,
+            ShardQueue.DONE, ShardQueue.FAILED}) {
+            new File(directory, state).delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testClaim() throws IOException {
+        ShardQueue queue = new ShardQueue(directory);
+        queue.add("5-1-2");
+        queue.add("5-1-3");
+        assertEquals("5-1-2", queue.claim(1));
+        assertEquals("5-1-3", queue.claim(2));
+        assertNull(queue.claim(3));
+        assertEquals(1, queue.running(1).size());
+        assertEquals("5-1-3", queue.running(2).get(0));
+
+        queue.complete("5-1-2", 1);
+        assertEquals(1, queue.count(ShardQueue.DONE));
+        assertEquals(1, queue.count(ShardQueue.RUNNING));
+        assertTrue(queue.running(1).isEmpty());
+    }
+
+    @Test
+    public void testRetry() throws IOException {
+        ShardQueue queue = new ShardQueue(directory);
+        queue.add("overview");
+        assertEquals("overview", queue.claim(1));
+        assertTrue(queue.release("overview", 1, 2));
+        assertEquals("overview", queue.claim(2));
+        assertFalse(queue.release("overview", 2, 2));
+        assertNull(queue.claim(3));
+        assertEquals(1, queue.count(ShardQueue.FAILED));
+
+        queue.clear();
+        assertEquals(0, queue.count(ShardQueue.FAILED));
+    }
+}
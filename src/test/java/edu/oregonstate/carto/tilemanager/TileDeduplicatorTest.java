@@ -0,0 +1,91 @@
+package edu.oregonstate.carto.tilemanager;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TileDeduplicatorTest {
+
+    private static final int THREADS = 8;
+
+    private static final int TILES_PER_THREAD = 25;
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testConcurrentDuplicates() throws Exception {
+        final BufferedImage uniform = new BufferedImage(Tile.TILE_SIZE,
+                Tile.TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        final BufferedImage gradient = new BufferedImage(Tile.TILE_SIZE,
+                Tile.TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < Tile.TILE_SIZE; y++) {
+            for (int x = 0; x < Tile.TILE_SIZE; x++) {
+                uniform.setRGB(x, y, 0xFF336699);
+                gradient.setRGB(x, y, 0xFF000000 | x << 16 | y);
+            }
+        }
+
+        final File dir = Files.createTempDirectory("dedup").toFile();
+        TileEncoder encoder = new TileEncoder();
+        TileStatistics stats = new TileStatistics(2 * THREADS * TILES_PER_THREAD);
+        final TileDeduplicator deduplicator = new TileDeduplicator(dir, encoder, stats);
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        barrier.await();
+                        for (int i = 0; i < TILES_PER_THREAD; i++) {
+                            deduplicator.write(gradient, new File(dir, "g/" + thread + "/" + i + ".png"));
+                            deduplicator.write(uniform, new File(dir, "u/" + thread + "/" + i + ".png"));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+
+            // every tile is a link, and each shared file is counted once
+            long uniformSize = encoder.encode(uniform).length;
+            long gradientSize = encoder.encode(gradient).length;
+            int tiles = THREADS * TILES_PER_THREAD;
+            assertEquals(2 * tiles, deduplicator.getLinkedTiles());
+            assertEquals((tiles - 1) * (uniformSize + gradientSize),
+                    deduplicator.getSavedBytes());
+            assertEquals(uniformSize + gradientSize, stats.bytesWritten.get());
+            assertEquals(2, new File(dir, TileDeduplicator.SHARED_DIRECTORY_NAME).list().length);
+            for (int t = 0; t < THREADS; t++) {
+                for (int i = 0; i < TILES_PER_THREAD; i++) {
+                    assertTrue(Files.isSymbolicLink(new File(dir, "g/" + t + "/" + i + ".png").toPath()));
+                    assertTrue(Files.isSymbolicLink(new File(dir, "u/" + t + "/" + i + ".png").toPath()));
+                }
+            }
+        } finally {
+            executor.shutdown();
+            delete(dir);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package edu.oregonstate.carto.tilemanager;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TileEncoderTest {
+
+    private static BufferedImage createImage(int colors, boolean transparent) {
+        BufferedImage img = new BufferedImage(67, 45, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(1);
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                int rgb = colors > 0 ? random.nextInt(colors) * 0x030507 : random.nextInt();
+                int alpha = transparent ? random.nextInt(256) : 0xFF;
+                img.setRGB(x, y, rgb & 0xFFFFFF | alpha << 24);
+            }
+        }
+        return img;
+    }
+
+    private static void assertRoundTrip(TileEncoder encoder, BufferedImage img)
+            throws IOException {
+        byte[] data = encoder.encode(img);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(data));
+        assertEquals(img.getWidth(), decoded.getWidth());
+        assertEquals(img.getHeight(), decoded.getHeight());
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                int expected = img.getRGB(x, y);
+                int actual = decoded.getRGB(x, y);
+                if ((expected >>> 24) == 0) {
+                    assertEquals(0, actual >>> 24);
+                } else {
+                    assertEquals(expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFilters() throws IOException {
+        TileEncoder encoder = new TileEncoder();
+        for (TileEncoder.Filter filter : TileEncoder.Filter.values()) {
+            encoder.setFilter(filter);
+            assertRoundTrip(encoder, createImage(0, true));
+            assertRoundTrip(encoder, createImage(0, false));
+        }
+    }
+
+    @Test
+    public void testSubImage() throws IOException {
+        BufferedImage img = createImage(0, true);
+        assertRoundTrip(new TileEncoder(), img.getSubimage(3, 5, 40, 30));
+    }
+
+    @Test
+    public void testPalette() throws IOException {
+        TileEncoder encoder = new TileEncoder();
+        encoder.setFormat(TileEncoder.Format.PNG_PALETTE);
+        // palettes with 1, 2, 4 and 8 bits per pixel
+        for (int colors : new int[]{2, 3, 11, 200}) {
+            assertRoundTrip(encoder, createImage(colors, false));
+        }
+
+        // fully transparent pixels
+        BufferedImage img = createImage(10, false);
+        img.setRGB(4, 7, 0);
+        assertRoundTrip(encoder, img);
+
+        // partially transparent pixels require an alpha channel
+        assertRoundTrip(encoder, createImage(10, true));
+    }
+
+    @Test
+    public void testQuantization() throws IOException {
+        TileEncoder encoder = new TileEncoder();
+        encoder.setFormat(TileEncoder.Format.PNG_PALETTE);
+        BufferedImage img = createImage(0, false);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(encoder.encode(img)));
+        assertEquals(img.getWidth(), decoded.getWidth());
+        assertEquals(0xFF, decoded.getRGB(10, 10) >>> 24);
+    }
+}
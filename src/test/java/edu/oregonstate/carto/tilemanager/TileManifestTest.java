@@ -0,0 +1,57 @@
+package edu.oregonstate.carto.tilemanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TileManifestTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("manifest", ".txt");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        TileManifest manifest = new TileManifest(file);
+        manifest.put(3, 1, 2, "a");
+        manifest.put(3, 1, 3, "b");
+        manifest.put(3, 1, 2, "c");
+        manifest.close();
+
+        // a line partially written before a crash
+        Files.write(file.toPath(), "3 1".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        manifest = new TileManifest(file);
+        assertEquals(2, manifest.size());
+        assertTrue(manifest.isUpToDate(3, 1, 2, "c"));
+        assertFalse(manifest.isUpToDate(3, 1, 2, "a"));
+        assertTrue(manifest.isUpToDate(3, 1, 3, "b"));
+        assertFalse(manifest.isUpToDate(3, 2, 3, "b"));
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        TileManifest manifest = new TileManifest(file);
+        manifest.put(0, 0, 0, "a");
+        manifest.put(0, 0, 0, "b");
+        manifest.compact();
+        assertEquals(1, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+        assertTrue(new TileManifest(file).isUpToDate(0, 0, 0, "b"));
+    }
+}
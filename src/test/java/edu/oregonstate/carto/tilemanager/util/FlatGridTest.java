@@ -0,0 +1,90 @@
+package edu.oregonstate.carto.tilemanager.util;
+
+import edu.oregonstate.carto.grid.operators.ColorizerOperator;
+import edu.oregonstate.carto.grid.operators.GridBinarizeOperator;
+import edu.oregonstate.carto.grid.operators.GridSlopeOperator;
+import edu.oregonstate.carto.grid.operators.ShaderOperator;
+import edu.oregonstate.carto.grid.operators.ThreadedGridOperator;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FlatGridTest {
+
+    private static Grid randomGrid(int cols, int rows) {
+        Random random = new Random(0);
+        Grid grid = new Grid(cols, rows, 30);
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                grid.setValue(random.nextInt(20), col, row);
+            }
+        }
+        return grid;
+    }
+
+    private static void assertGridEquals(Grid expected, FlatGrid actual) {
+        assertEquals(expected.getCols(), actual.getCols());
+        assertEquals(expected.getRows(), actual.getRows());
+        for (int row = 0; row < expected.getRows(); row++) {
+            for (int col = 0; col < expected.getCols(); col++) {
+                assertEquals(expected.getValue(col, row), actual.getValue(col, row), 0f);
+            }
+        }
+    }
+
+    @Test
+    public void testWindow() {
+        Grid grid = randomGrid(10, 8);
+        grid.setWest(100);
+        grid.setNorth(200);
+        FlatGrid flat = new FlatGrid(grid);
+        assertGridEquals(grid, flat);
+
+        FlatGrid window = flat.window(2, 3, 5, 4);
+        assertEquals(10, window.getStride());
+        assertEquals(grid.getValue(2, 3), window.getValue(0, 0), 0f);
+        assertEquals(grid.getValue(6, 6), window.getValue(4, 3), 0f);
+        assertEquals(160, window.getWest(), 0);
+        assertEquals(110, window.getNorth(), 0);
+
+        Grid copy = window.toGrid();
+        assertEquals(5, copy.getCols());
+        assertEquals(grid.getValue(6, 6), copy.getValue(4, 3), 0f);
+    }
+
+    @Test
+    public void testOperators() {
+        Grid grid = randomGrid(300, 200);
+        FlatGrid flat = new FlatGrid(grid);
+        ThreadedGridOperator[] operators = new ThreadedGridOperator[]{
+            new GridBinarizeOperator(new float[]{3, 7}),
+            new GridSlopeOperator(),
+            new ShaderOperator()
+        };
+        for (ThreadedGridOperator op : operators) {
+            assertTrue(op.isFlatGridSupported());
+            assertGridEquals(op.operate(grid), op.operate(flat));
+        }
+
+        // operate on a window, which has a larger stride than its width
+        ShaderOperator shader = new ShaderOperator();
+        FlatGrid window = flat.window(1, 1, 296, 196);
+        assertGridEquals(shader.operate(window.toGrid()), shader.operate(window));
+    }
+
+    @Test
+    public void testColorizer() {
+        Grid grid = randomGrid(300, 200);
+        ShaderOperator shader = new ShaderOperator();
+        ColorizerOperator colorizer = new ColorizerOperator(ColorizerOperator.ColorVisualization.GRAY_SHADING);
+        BufferedImage expected = new BufferedImage(300, 200, BufferedImage.TYPE_INT_ARGB);
+        colorizer.operate(shader.operate(grid), grid, expected, 0, 0);
+        FlatGrid flat = new FlatGrid(grid);
+        BufferedImage img = new BufferedImage(300, 200, BufferedImage.TYPE_INT_ARGB);
+        colorizer.operate(shader.operate(flat), flat, img, 0, 0);
+        assertArrayEquals(((DataBufferInt) expected.getRaster().getDataBuffer()).getData(),
+                ((DataBufferInt) img.getRaster().getDataBuffer()).getData());
+    }
+}
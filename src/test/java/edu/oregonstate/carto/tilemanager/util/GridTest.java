@@ -0,0 +1,52 @@
+package edu.oregonstate.carto.tilemanager.util;
+
+import edu.oregonstate.carto.grid.operators.GridScaleToRangeOperator;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GridTest {
+
+    @Test
+    public void testStatistics() {
+        Grid grid = new Grid(10, 8, 30, 5);
+        grid.setValue(Float.NaN, 3, 3);
+        grid.setValue(-2, 4, 4);
+        Grid.GeoGridStatistics stats = grid.getStatistics();
+        assertEquals(-2, stats.min, 0f);
+        assertEquals(5, stats.max, 0f);
+        assertEquals(1, stats.voidCount);
+        assertSame(stats, grid.getStatistics());
+
+        // changing a value discards the cached statistics
+        grid.setValue(9, 0, 0);
+        assertArrayEquals(new float[]{-2, 9}, grid.getMinMax(), 0f);
+
+        // an operator writing to the grid discards the cached statistics
+        new GridScaleToRangeOperator(0, 1).operate(grid, grid);
+        assertArrayEquals(new float[]{0, 1}, grid.getMinMax(), 0f);
+
+        // changing the array requires invalidating the statistics
+        grid.getGrid()[1][1] = 2;
+        grid.invalidateStatistics();
+        assertEquals(2, grid.getStatistics().max, 0f);
+    }
+
+    @Test
+    public void testMerge() {
+        Grid grid = new Grid(6, 6, 1);
+        for (int row = 0; row < 6; row++) {
+            for (int col = 0; col < 6; col++) {
+                grid.setValue(row * 6 + col, col, row);
+            }
+        }
+        float[][] g = grid.getGrid();
+        Grid.GeoGridStatistics top = new Grid.GeoGridStatistics(g, 0, 2, 0, 6);
+        Grid.GeoGridStatistics stats = top.merge(new Grid.GeoGridStatistics(g, 2, 6, 0, 6));
+        Grid.GeoGridStatistics expected = grid.getStatistics();
+        assertEquals(expected.min, stats.min, 0f);
+        assertEquals(expected.max, stats.max, 0f);
+        assertEquals(expected.mean, stats.mean, 1e-6f);
+        // merging does not change the merged statistics
+        assertEquals(11, top.max, 0f);
+    }
+}
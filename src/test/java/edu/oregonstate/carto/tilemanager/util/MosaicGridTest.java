@@ -0,0 +1,138 @@
+package edu.oregonstate.carto.tilemanager.util;
+
+import edu.oregonstate.carto.grid.operators.ColorizerOperator;
+import edu.oregonstate.carto.grid.operators.GridBinarizeOperator;
+import edu.oregonstate.carto.grid.operators.GridOperatorChain;
+import edu.oregonstate.carto.grid.operators.GridToImageOperator;
+import edu.oregonstate.carto.grid.operators.ShaderOperator;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MosaicGridTest {
+
+    private static final int TILE_SIZE = 128;
+
+    /**
+     * Creates a view of 3 x 3 tiles with random values. The tile at the top
+     * right is missing.
+     */
+    private static MosaicGrid randomMosaic() {
+        Random random = new Random(0);
+        Grid[] tiles = new Grid[9];
+        for (int i = 0; i < tiles.length; i++) {
+            if (i == 2) {
+                continue;
+            }
+            tiles[i] = new Grid(TILE_SIZE, TILE_SIZE, 30);
+            for (int row = 0; row < TILE_SIZE; row++) {
+                for (int col = 0; col < TILE_SIZE; col++) {
+                    tiles[i].setValue(random.nextInt(20), col, row);
+                }
+            }
+        }
+        return new MosaicGrid(tiles, 3, TILE_SIZE, 30, 1000, 2000);
+    }
+
+    @Test
+    public void testValues() {
+        MosaicGrid mosaic = randomMosaic();
+        assertEquals(3 * TILE_SIZE, mosaic.getCols());
+        assertEquals(3 * TILE_SIZE, mosaic.getRows());
+        Grid grid = mosaic.toGrid();
+        for (int row = 0; row < grid.getRows(); row++) {
+            for (int col = 0; col < grid.getCols(); col++) {
+                assertEquals(grid.getValue(col, row), mosaic.getValue(col, row), 0f);
+            }
+        }
+        assertEquals(0, mosaic.getValue(2 * TILE_SIZE + 5, 7), 0f);
+
+        // a block of one tile with a border of 2 cells
+        MosaicGrid cropped = mosaic.crop(TILE_SIZE - 2, TILE_SIZE - 2, TILE_SIZE + 4, TILE_SIZE + 4);
+        assertEquals(TILE_SIZE + 4, cropped.getCols());
+        assertEquals(1000 + (TILE_SIZE - 2) * 30, cropped.getWest(), 0);
+        assertEquals(2000 - (TILE_SIZE - 2) * 30, cropped.getNorth(), 0);
+        assertEquals(mosaic.getValue(TILE_SIZE - 2, TILE_SIZE - 2), cropped.getValue(0, 0), 0f);
+        assertEquals(mosaic.getValue(2 * TILE_SIZE + 1, 2 * TILE_SIZE + 1),
+                cropped.getValue(TILE_SIZE + 3, TILE_SIZE + 3), 0f);
+        assertEquals(2, cropped.segmentLength(0));
+        assertEquals(TILE_SIZE - 2, cropped.segmentStart(0));
+        assertEquals(2, cropped.segmentLength(TILE_SIZE + 2));
+
+        float[] row = new float[cropped.getCols()];
+        cropped.copyRow(5, row, 0);
+        for (int col = 0; col < row.length; col++) {
+            assertEquals(cropped.getValue(col, 5), row[col], 0f);
+        }
+    }
+
+    @Test
+    public void testStatistics() {
+        MosaicGrid mosaic = randomMosaic();
+        MosaicGrid[] views = new MosaicGrid[]{mosaic,
+            mosaic.crop(TILE_SIZE - 1, TILE_SIZE - 1, TILE_SIZE + 2, TILE_SIZE + 2),
+            mosaic.crop(5, 0, 2 * TILE_SIZE, 3)};
+        for (MosaicGrid view : views) {
+            Grid.GeoGridStatistics expected = view.toGrid().getStatistics();
+            Grid.GeoGridStatistics stats = view.getStatistics();
+            assertEquals(expected.min, stats.min, 0f);
+            assertEquals(expected.max, stats.max, 0f);
+            assertEquals(expected.mean, stats.mean, 1e-4f);
+            assertEquals(expected.voidCount, stats.voidCount);
+        }
+    }
+
+    @Test
+    public void testChain() {
+        MosaicGrid mosaic = randomMosaic();
+        Grid grid = mosaic.toGrid();
+        int size = mosaic.getCols();
+
+        GridOperatorChain mask = new GridOperatorChain(new GridBinarizeOperator(new float[]{4}));
+        GridToImageOperator toImage = new GridToImageOperator();
+        assertArrayEquals(
+                ((DataBufferByte) toImage.operate(mask, grid, 0, 1).getRaster().getDataBuffer()).getData(),
+                ((DataBufferByte) toImage.operate(mask, mosaic, 0, 1).getRaster().getDataBuffer()).getData());
+
+        GridOperatorChain shading = new GridOperatorChain(new ShaderOperator());
+        ColorizerOperator colorizer = new ColorizerOperator(ColorizerOperator.ColorVisualization.GRAY_SHADING);
+        BufferedImage expected = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        colorizer.operate(shading, grid, expected, 0, 0);
+        BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        colorizer.operate(shading, mosaic, img, 0, 0);
+        assertArrayEquals(((DataBufferInt) expected.getRaster().getDataBuffer()).getData(),
+                ((DataBufferInt) img.getRaster().getDataBuffer()).getData());
+    }
+
+    @Test
+    public void testShadingWithBorder() {
+        MosaicGrid mosaic = randomMosaic();
+        ColorizerOperator colorizer = new ColorizerOperator(ColorizerOperator.ColorVisualization.GRAY_SHADING);
+        GridOperatorChain shading = new GridOperatorChain(new ShaderOperator());
+        int size = mosaic.getCols();
+        BufferedImage expected = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        colorizer.operate(shading, mosaic, expected, 0, 0);
+
+        // shade the central tile with a border of one cell into a sub-image
+        MosaicGrid cropped = mosaic.crop(TILE_SIZE - 1, TILE_SIZE - 1, TILE_SIZE + 2, TILE_SIZE + 2);
+        BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage dst = img.getSubimage(TILE_SIZE - 1, TILE_SIZE - 1, TILE_SIZE + 2, TILE_SIZE + 2);
+        colorizer.operate(shading, cropped, dst, 0, 0);
+        for (int row = 0; row < size; row++) {
+            for (int col = 0; col < size; col++) {
+                boolean inTile = col >= TILE_SIZE && col < 2 * TILE_SIZE
+                        && row >= TILE_SIZE && row < 2 * TILE_SIZE;
+                boolean inBorder = col >= TILE_SIZE - 1 && col <= 2 * TILE_SIZE
+                        && row >= TILE_SIZE - 1 && row <= 2 * TILE_SIZE;
+                if (inTile) {
+                    assertEquals(expected.getRGB(col, row), img.getRGB(col, row));
+                } else if (!inBorder) {
+                    assertEquals(0, img.getRGB(col, row));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package edu.oregonstate.carto.utils;
+
+import java.util.Arrays;
+
+/**
+ * A minimal harness for micro benchmarks that are run from a main method. Each
+ * benchmark is first run repeatedly to let the JIT compiler optimize the code,
+ * then the median duration of a number of measured runs is reported.
+ */
+public final class Benchmark {
+
+    /**
+     * Number of runs that are not measured.
+     */
+    private static final int WARM_UP_RUNS = 20;
+
+    /**
+     * Number of measured runs.
+     */
+    private static final int MEASURED_RUNS = 30;
+
+    private Benchmark() {
+    }
+
+    /**
+     * Runs a benchmark and prints the median duration.
+     *
+     * @param name The name of the benchmark.
+     * @param task The task to measure.
+     * @return Median duration of one run in milliseconds.
+     */
+    public static double run(String name, Runnable task) {
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            task.run();
+        }
+        double[] durations = new double[MEASURED_RUNS];
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            durations[i] = (System.nanoTime() - start) / 1e6;
+        }
+        Arrays.sort(durations);
+        double median = durations[MEASURED_RUNS / 2];
+        System.out.println(String.format("%-50s %10.3f ms", name, median));
+        return median;
+    }
+}